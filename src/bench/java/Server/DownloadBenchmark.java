@@ -0,0 +1,104 @@
+package Server;
+
+import Shared.Message;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+// A whole download over loopback, from the request until the client has read the last byte:
+// FILE_DOWNLOAD goes through sendFileFromPath and transferTo, DOWNLOAD_RANGE through
+// checksummed chunks. From the second download on, the file is served from the HotFileCache,
+// as a popular file would be. The setting has to reach the forked JVM to measure reading it
+// from disk: gradle jmh -PjmhArgs='DownloadBenchmark -jvmArgsAppend -Dserver.fileCache.bytes=0'
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class DownloadBenchmark {
+    private static final String FILE_NAME = "download-bench.bin";
+
+    @Param({"1048576", "67108864"})
+    int size;
+
+    @Param({"FILE_DOWNLOAD", "DOWNLOAD_RANGE"})
+    String request;
+
+    private LoopbackServer server;
+    private LoopbackServer.Peer client;
+    private final byte[] buffer = new byte[64 * 1024];
+    private final Message received = new Message();
+
+    @Setup
+    public void start() throws IOException {
+        Path directory = LoopbackServer.tempDirectory();
+        byte[] data = new byte[size];
+        new Random(42).nextBytes(data);
+        Files.write(directory.resolve(FILE_NAME), data);
+        server = new LoopbackServer(directory);
+        client = server.connect();
+    }
+
+    // Returns the bytes received, which have to be the file's size
+    @Benchmark
+    public long download() throws IOException {
+        int type = request.equals("FILE_DOWNLOAD") ? Message.FILE_DOWNLOAD : Message.DOWNLOAD_RANGE;
+        client.out.writeMessage(new Message(type, "bench", FILE_NAME));
+        client.out.flush();
+        Message reply = next(type);
+        if (reply.fileLength != size) {
+            throw new IOException("Unexpected reply: " + reply.content);
+        }
+        if (type == Message.FILE_DOWNLOAD) {
+            return skip(reply.fileLength);
+        }
+        long total = 0;
+        while (total < size) {
+            total += skip(next(Message.FILE_CHUNK).fileLength);
+        }
+        return total;
+    }
+
+    private Message next(int type) throws IOException {
+        Message message;
+        do {
+            message = client.in.readMessage(received);
+            if (message == null) {
+                throw new IOException("Connection closed");
+            }
+        } while (message.type != type);
+        return message;
+    }
+
+    private long skip(long length) throws IOException {
+        for (long left = length; left > 0; ) {
+            int read = client.in.stream().read(buffer, 0, (int) Math.min(buffer.length, left));
+            if (read == -1) {
+                throw new IOException("Connection closed");
+            }
+            left -= read;
+        }
+        return length;
+    }
+
+    @TearDown
+    public void stop() throws IOException {
+        server.close();
+    }
+}
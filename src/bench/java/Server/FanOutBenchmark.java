@@ -0,0 +1,68 @@
+package Server;
+
+import Shared.Message;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+// One broadcast from a session until every other client has read it, over loopback sockets
+// into clients that each read on a thread of their own
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class FanOutBenchmark {
+    @Param({"10", "100", "500"})
+    int clients;
+
+    private LoopbackServer server;
+    private ClientSession sender;
+    private final Semaphore delivered = new Semaphore(0);
+
+    @Setup
+    public void start() throws IOException {
+        server = new LoopbackServer(LoopbackServer.tempDirectory());
+        sender = server.connect().session;
+        for (int i = 0; i < clients; i++) {
+            LoopbackServer.Peer peer = server.connect();
+            Thread reader = new Thread(() -> {
+                Message message = new Message();
+                try {
+                    while (peer.in.readMessage(message) != null) {
+                        delivered.release();
+                    }
+                } catch (IOException e) {
+                    // Closed at the end of the trial
+                }
+            });
+            reader.setDaemon(true);
+            reader.start();
+        }
+    }
+
+    @Benchmark
+    public void broadcast() throws InterruptedException {
+        sender.broadcast("user1: a chat message of a typical length for the benchmark");
+        delivered.acquire(clients);
+    }
+
+    @TearDown
+    public void stop() throws IOException {
+        server.close();
+    }
+}
@@ -0,0 +1,94 @@
+package Server;
+
+import Shared.FrameReader;
+import Shared.FrameWriter;
+import Shared.Protocol;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.stream.Stream;
+
+// A blocking-mode server in the benchmark's own process, with its files in a temp directory.
+// Every connect() returns a framed client connection together with the server's session for
+// it, so a benchmark can drive either end.
+final class LoopbackServer implements Closeable {
+    // One client connection and the ClientHandler serving it
+    static final class Peer {
+        final Socket socket;
+        final FrameReader in;
+        final FrameWriter out;
+        final ClientHandler session;
+
+        private Peer(Socket socket, ClientHandler session) throws IOException {
+            this.socket = socket;
+            this.session = session;
+            this.in = new FrameReader(socket.getInputStream());
+            this.out = new FrameWriter(socket.getOutputStream());
+        }
+    }
+
+    final Path directory;
+    final ClientRegistry clients = new ClientRegistry();
+    final FileCatalog files;
+    private final RoomManager rooms = new RoomManager(1);
+    private final ServerSocketChannel listener;
+    private final Executor threads = task -> {
+        Thread thread = new Thread(task);
+        thread.setDaemon(true);
+        thread.start();
+    };
+    private final List<Peer> peers = new ArrayList<>();
+
+    // directory may already hold files to download
+    LoopbackServer(Path directory) throws IOException {
+        this.directory = directory;
+        this.files = FileCatalog.open(directory);
+        this.listener = ServerSocketChannel.open().bind(new InetSocketAddress("localhost", 0));
+    }
+
+    static Path tempDirectory() {
+        try {
+            return Files.createTempDirectory("loopback-bench");
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    // Connects, handshakes with the newest protocol version and waits until the server counts
+    // the connection among its clients
+    Peer connect() throws IOException {
+        Socket socket = new Socket("localhost", ((InetSocketAddress) listener.getLocalAddress()).getPort());
+        socket.setTcpNoDelay(true);
+        ClientHandler session = new ClientHandler(listener.accept().socket(), clients, rooms, files, threads);
+        threads.execute(session);
+        Peer peer = new Peer(socket, session);
+        Protocol.connect(peer.in, peer.out);
+        int expected = peers.size() + 1;
+        while (clients.size() < expected) {
+            Thread.onSpinWait();
+        }
+        peers.add(peer);
+        return peer;
+    }
+
+    @Override
+    public void close() throws IOException {
+        for (Peer peer : peers) {
+            peer.socket.close();
+        }
+        listener.close();
+        try (Stream<Path> paths = Files.walk(directory)) {
+            paths.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+}
@@ -0,0 +1,105 @@
+package Server;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.Random;
+
+// Download throughput over loopback for the ways ClientHandler can send a file body:
+// the original 4 KB heap loop, the 256 KB copy fallback, transferTo, and writes from a
+// HotFileCache mapping.
+//
+// Usage: TransferBench [file size in MB] [rounds]
+public class TransferBench {
+    interface Strategy {
+        void send(OutboundFile file, Socket socket) throws IOException;
+    }
+
+    public static void main(String[] args) throws Exception {
+        int sizeMb = args.length > 0 ? Integer.parseInt(args[0]) : 256;
+        int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+
+        File file = File.createTempFile("transfer-bench", ".bin");
+        file.deleteOnExit();
+        writeRandom(file, sizeMb * 1024L * 1024L);
+
+        try (ServerSocketChannel sink = ServerSocketChannel.open().bind(new InetSocketAddress("localhost", 0))) {
+            Thread drain = new Thread(() -> drain(sink), "sink");
+            drain.setDaemon(true);
+            drain.start();
+            int port = ((InetSocketAddress) sink.getLocalAddress()).getPort();
+
+            System.out.println("File " + sizeMb + " MB, best of " + rounds + " rounds");
+            run("4 KB heap loop (old)", file, port, rounds, TransferBench::heapLoop);
+            run("256 KB copy", file, port, rounds, (f, socket) -> FileTransfer.copy(f,
+                    socket.getOutputStream(), ByteBuffer.allocate(FileTransfer.COPY_BUFFER_SIZE)));
+            run("transferTo", file, port, rounds, (f, socket) -> FileTransfer.transferTo(f, socket.getChannel()));
+            HotFileCache cache = new HotFileCache(Long.MAX_VALUE, Long.MAX_VALUE, 1);
+            FileCatalog.Entry entry = new FileCatalog.Entry(file.getName(), file.toPath(), file.length(), file.lastModified(), null, null);
+            run("cached mapping", file, port, rounds, (f, socket) -> FileTransfer.transferTo(
+                    new OutboundFile(null, f.name, null, cache.get(entry), f.size), socket.getChannel()));
+        }
+    }
+
+    private static void run(String name, File file, int port, int rounds, Strategy strategy) throws IOException {
+        double best = 0;
+        for (int i = 0; i < rounds; i++) {
+            try (SocketChannel channel = SocketChannel.open(new InetSocketAddress("localhost", port));
+                 FileChannel fileChannel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+                OutboundFile outbound = new OutboundFile(null, file.getName(), fileChannel, null, fileChannel.size());
+                long start = System.nanoTime();
+                strategy.send(outbound, channel.socket());
+                double seconds = (System.nanoTime() - start) / 1e9;
+                best = Math.max(best, outbound.size / seconds / (1024 * 1024));
+            }
+        }
+        System.out.printf("%-22s %8.0f MB/s%n", name, best);
+    }
+
+    // What ClientHandler.writeFile did before: 4 KB reads into the buffered socket stream
+    private static void heapLoop(OutboundFile file, Socket socket) throws IOException {
+        OutputStream out = new BufferedOutputStream(socket.getOutputStream(), 64 * 1024);
+        ByteBuffer buffer = ByteBuffer.allocate(4096);
+        while (file.position < file.size) {
+            buffer.clear();
+            int bytesRead = file.channel.read(buffer, file.position);
+            out.write(buffer.array(), 0, bytesRead);
+            file.position += bytesRead;
+        }
+        out.flush();
+    }
+
+    private static void drain(ServerSocketChannel sink) {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(1024 * 1024);
+        try {
+            while (true) {
+                try (SocketChannel channel = sink.accept()) {
+                    while (channel.read(buffer.clear()) != -1) {
+                        // discard
+                    }
+                }
+            }
+        } catch (IOException e) {
+            // sink closed
+        }
+    }
+
+    private static void writeRandom(File file, long size) throws IOException {
+        byte[] block = new byte[1024 * 1024];
+        new Random(42).nextBytes(block);
+        try (OutputStream out = Files.newOutputStream(file.toPath())) {
+            for (long written = 0; written < size; written += block.length) {
+                out.write(block, 0, (int) Math.min(block.length, size - written));
+            }
+        }
+    }
+}
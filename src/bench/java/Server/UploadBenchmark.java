@@ -0,0 +1,69 @@
+package Server;
+
+import Shared.Message;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+// A whole FILE_UPLOAD over loopback, until the server has the file saved under its name. The
+// server handles a connection's messages in order, so the reply to a FILE_LIST sent after the
+// bytes marks the end of the upload.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class UploadBenchmark {
+    private static final String FILE_NAME = "upload-bench.bin";
+
+    @Param({"1048576", "67108864"})
+    int size;
+
+    private LoopbackServer server;
+    private LoopbackServer.Peer client;
+    private byte[] data;
+    private final Message received = new Message();
+
+    @Setup
+    public void start() throws IOException {
+        data = new byte[size];
+        new Random(42).nextBytes(data);
+        server = new LoopbackServer(LoopbackServer.tempDirectory());
+        client = server.connect();
+    }
+
+    @Benchmark
+    public Message upload() throws IOException {
+        client.out.writeMessage(new Message(Message.FILE_UPLOAD, "bench", FILE_NAME, size));
+        client.out.stream().write(data);
+        client.out.writeMessage(new Message(Message.FILE_LIST, "bench", ""));
+        client.out.flush();
+        Message message;
+        do {
+            message = client.in.readMessage(received);
+            if (message == null) {
+                throw new IOException("Connection closed");
+            }
+        } while (message.type != Message.FILE_LIST);
+        return message;
+    }
+
+    @TearDown
+    public void stop() throws IOException {
+        server.close();
+    }
+}
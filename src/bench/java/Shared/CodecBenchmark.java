@@ -0,0 +1,75 @@
+package Shared;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+// Encoding and decoding one Message with the Gson-based JSON codec and with BinaryCodec, for a
+// chat line, a file chunk header and a catalog change
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class CodecBenchmark {
+    @Param({"json", "binary"})
+    String codec;
+
+    @Param({"chat", "chunk", "catalog"})
+    String message;
+
+    private MessageCodec messageCodec;
+    private Message sample;
+    private byte[] encoded;
+    private final EncodeBuffer buffer = new EncodeBuffer();
+    private final Message target = new Message();
+
+    @Setup
+    public void prepare() {
+        messageCodec = codec.equals("json") ? JsonCodec.UTF8 : BinaryCodec.INSTANCE;
+        switch (message) {
+            case "chat":
+                sample = new Message(Message.CHAT, "Server", "user1: a chat message of a typical length for the benchmark");
+                sample.room = "lobby";
+                break;
+            case "chunk":
+                sample = new Message(Message.FILE_CHUNK, "Server", "holiday-photos.zip", Protocol.CHUNK_SIZE);
+                sample.offset = 37L * Protocol.CHUNK_SIZE;
+                sample.checksum = 0x9a3c51f2L;
+                sample.requestId = 12;
+                break;
+            default:
+                sample = new Message(Message.FILE_MODIFIED, "Server", new CatalogEntry("holiday-photos.zip",
+                        734_003_200L, 1_700_000_000_000L, "3f5a9c0e7d21b8a4c6e1f0d9b2a7c4e5f8d1a3b6c9e2f5a8d1c4b7e0a3f6c9d2").toJson());
+                sample.catalogVersion = 4711;
+                break;
+        }
+        messageCodec.encode(sample, buffer);
+        encoded = buffer.toByteArray();
+    }
+
+    @Benchmark
+    public int encode() {
+        buffer.reset();
+        messageCodec.encode(sample, buffer);
+        return buffer.length();
+    }
+
+    @Benchmark
+    public Message decode() throws IOException {
+        return messageCodec.decode(ByteBuffer.wrap(encoded), target);
+    }
+}
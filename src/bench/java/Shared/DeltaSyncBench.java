@@ -0,0 +1,99 @@
+package Shared;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Random;
+
+// Bytes on the wire for re-uploading an edited file: a full upload against a delta upload
+// (signature down, delta up), for a few kinds of small edit. Every rebuilt file is checked
+// against the edited one.
+//
+// Usage: DeltaSyncBench [file size in MB]
+public class DeltaSyncBench {
+    interface Edit {
+        byte[] apply(byte[] original, Random random);
+    }
+
+    public static void main(String[] args) throws Exception {
+        int sizeMb = args.length > 0 ? Integer.parseInt(args[0]) : 64;
+        Random random = new Random(42);
+        byte[] original = new byte[sizeMb * 1024 * 1024];
+        random.nextBytes(original);
+        File base = File.createTempFile("delta-bench", ".bin");
+        base.deleteOnExit();
+        Files.write(base.toPath(), original);
+
+        try (FileChannel channel = FileChannel.open(base.toPath(), StandardOpenOption.READ)) {
+            int blockSize = DeltaSync.blockSize(original.length);
+            long start = System.nanoTime();
+            byte[] signature = DeltaSync.signature(channel, blockSize);
+            double signatureMs = (System.nanoTime() - start) / 1e6;
+            System.out.printf("File %d MB, block size %d, signature %d bytes (%.0f ms)%n",
+                    sizeMb, blockSize, signature.length, signatureMs);
+            System.out.printf("%-28s %12s %12s %8s %10s%n", "edit", "full", "delta", "saved", "delta ms");
+
+            run("overwrite 100 bytes", original, signature, channel, blockSize, random, (data, r) -> {
+                byte[] edited = data.clone();
+                for (int i = 0; i < 100; i++) {
+                    edited[data.length / 2 + i] ^= (byte) 0x5A;
+                }
+                return edited;
+            });
+            run("insert 1 KB at a third", original, signature, channel, blockSize, random, (data, r) -> {
+                byte[] insert = new byte[1024];
+                r.nextBytes(insert);
+                return splice(data, data.length / 3, 0, insert);
+            });
+            run("delete 4 KB at two thirds", original, signature, channel, blockSize, random,
+                    (data, r) -> splice(data, data.length * 2 / 3, 4096, new byte[0]));
+            run("append 10 KB", original, signature, channel, blockSize, random, (data, r) -> {
+                byte[] tail = new byte[10 * 1024];
+                r.nextBytes(tail);
+                return splice(data, data.length, 0, tail);
+            });
+            run("10 scattered 50-byte edits", original, signature, channel, blockSize, random, (data, r) -> {
+                byte[] edited = data.clone();
+                for (int e = 0; e < 10; e++) {
+                    int at = r.nextInt(data.length - 50);
+                    for (int i = 0; i < 50; i++) {
+                        edited[at + i] = (byte) r.nextInt();
+                    }
+                }
+                return edited;
+            });
+        }
+    }
+
+    private static void run(String name, byte[] original, byte[] signature, FileChannel base, int blockSize,
+                            Random random, Edit edit) throws IOException {
+        byte[] edited = edit.apply(original, random);
+        ByteArrayOutputStream delta = new ByteArrayOutputStream();
+        long start = System.nanoTime();
+        DeltaSync.delta(DeltaSync.parseSignature(signature), new ByteArrayInputStream(edited), edited.length, delta);
+        double deltaMs = (System.nanoTime() - start) / 1e6;
+
+        ByteArrayOutputStream rebuilt = new ByteArrayOutputStream(edited.length);
+        DeltaSync.apply(base, blockSize, new ByteArrayInputStream(delta.toByteArray()), rebuilt);
+        if (!Arrays.equals(rebuilt.toByteArray(), edited)) {
+            throw new IllegalStateException("Rebuilt file differs for " + name);
+        }
+
+        long full = edited.length;
+        long wire = signature.length + delta.size();
+        System.out.printf("%-28s %12d %12d %7.2f%% %10.0f%n", name, full, wire, 100.0 * (full - wire) / full, deltaMs);
+    }
+
+    private static byte[] splice(byte[] data, int at, int remove, byte[] insert) {
+        byte[] result = new byte[data.length - remove + insert.length];
+        System.arraycopy(data, 0, result, 0, at);
+        System.arraycopy(insert, 0, result, at, insert.length);
+        System.arraycopy(data, at + remove, result, at + insert.length, data.length - at - remove);
+        return result;
+    }
+}
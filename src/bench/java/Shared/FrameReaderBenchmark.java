@@ -0,0 +1,85 @@
+package Shared;
+
+import com.google.gson.Gson;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+// Reading a stream of chat messages the way the server's reader does, per message: readLine is
+// the original ClientHandler loop (a byte at a time into a StringBuilder, and a new Gson for
+// each line), the others are FrameReader with each protocol version (legacy JSON lines, framed
+// JSON, binary)
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class FrameReaderBenchmark {
+    private static final int MESSAGES = 1000;
+
+    @Param({"readLine", "legacy", "framed", "binary"})
+    String reader;
+
+    private int version;
+    private byte[] stream;
+    private final Message target = new Message();
+
+    @Setup
+    public void prepare() throws IOException {
+        version = reader.equals("binary") ? Protocol.VERSION_BINARY
+                : reader.equals("framed") ? Protocol.VERSION_FRAMED : Protocol.VERSION_LEGACY;
+        EncodeBuffer out = new EncodeBuffer();
+        for (int i = 0; i < MESSAGES; i++) {
+            Message message = new Message(Message.CHAT, "user1", "a chat message of a typical length, number " + i);
+            message.room = "lobby";
+            Protocol.encodeFrame(message, version, out);
+        }
+        stream = out.toByteArray();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(MESSAGES)
+    public int read() throws IOException {
+        int count = 0;
+        if (reader.equals("readLine")) {
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(stream));
+            while (true) {
+                StringBuilder jsonBuilder = new StringBuilder();
+                int byteRead;
+                while ((byteRead = in.read()) != -1) {
+                    char c = (char) byteRead;
+                    if (c == '\n') break;
+                    jsonBuilder.append(c);
+                }
+                if (byteRead == -1) break;
+                String json = jsonBuilder.toString();
+                Gson gson = new Gson();
+                Message message = gson.fromJson(json, Message.class);
+                count += message.type;
+            }
+            return count;
+        }
+        FrameReader in = new FrameReader(new ByteArrayInputStream(stream));
+        in.setVersion(version);
+        Message message;
+        while ((message = in.readMessage(target)) != null) {
+            count += message.type;
+        }
+        return count;
+    }
+}
@@ -1,28 +1,67 @@
 package Client;
 
+import Shared.CatalogEntry;
+import Shared.Compression;
+import Shared.DeltaSync;
+import Shared.FrameReader;
+import Shared.FrameWriter;
 import Shared.Message;
-import com.google.gson.Gson;
+import Shared.Protocol;
 
 import java.io.*;
 import java.net.Socket;
 import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Scanner;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.LongSupplier;
+import java.util.zip.CRC32C;
 
 public class Client {
-    private static DataOutputStream out;
+    static final String HOST = "localhost";
+    static final int PORT = 12345;
+    // Whether to offer DEFLATE at login; the server decides whether to use it
+    static final boolean COMPRESSION = Boolean.parseBoolean(System.getProperty("client.compression", "true"));
+    private static FrameWriter out;
     private static String username;
-    private static String fileList;
-    private static String loginResponse;
+    // Where plain chat lines go; the server puts everyone in the lobby at login
+    private static String currentRoom = "lobby";
+    // A chunk the server finds corrupt is sent again this many times before giving up
+    static final int MAX_CHUNK_RETRIES = 3;
+    // How long to wait for the reply to a request before giving up on it
+    static final long REQUEST_TIMEOUT_SECONDS = Long.getLong("client.requestTimeoutSeconds", 30);
+    // Messages per /history page
+    static final int HISTORY_PAGE = Integer.getInteger("client.historyPage", 20);
+    private static final FileMirror fileMirror = new FileMirror();
+    private static final PendingRequests requests = new PendingRequests();
+    private static ClientReceiver receiver;
     private static Socket socket;
-    private static Message metadata;
-    private static byte[] downloadedFileData;
+    // Set at login if the server limits each download to the window this client grants it
+    private static volatile boolean streamWindows;
 
     public static void main(String[] args) throws Exception {
-        try (Socket socket = new Socket("localhost", 12345)) {
+        try (Socket socket = new Socket(HOST, PORT)) {
             Client.socket = socket;
-            out = new DataOutputStream(socket.getOutputStream());
+            out = new FrameWriter(socket.getOutputStream());
+            FrameReader in = new FrameReader(socket.getInputStream());
+            Protocol.connect(in, out);
 
-            ClientReceiver receiver = new ClientReceiver(socket);
+            receiver = new ClientReceiver(in, requests);
             new Thread(receiver).start();
 
             Scanner scanner = new Scanner(System.in);
@@ -36,19 +75,17 @@ public class Client {
                 System.out.print("Password: ");
                 String password = scanner.nextLine();
 
-                sendLoginRequest(username, password);
-
-                while (loginResponse == null) {
-                    Thread.sleep(100);
+                Message response = await(sendLoginRequest(username, password), "Login");
+                if (response == null) {
+                    return;
                 }
 
-                if (loginResponse.equals("success")) {
+                if (response.content.equals("success")) {
                     loggedIn = true;
                     System.out.println("Successfully connected to the server! Welcome, " + username + "!");
-                    loginResponse = null;
+                    requestCatalogSnapshot();
                 } else {
                     System.out.println("Invalid username or password. Please try again.");
-                    loginResponse = null;
                 }
             }
 
@@ -82,27 +119,86 @@ public class Client {
         System.out.println("0. Exit");
     }
 
-    private static void sendLoginRequest(String username, String password) throws IOException {
-        Gson gson = new Gson();
+    // Both the menu thread and the receiver send, so whole messages are written under the lock
+    static void send(Message message) throws IOException {
+        synchronized (out) {
+            out.writeMessage(message);
+            out.flush();
+        }
+    }
+
+    private static CompletableFuture<Message> sendLoginRequest(String username, String password) throws IOException {
         Message message = new Message(Message.LOGIN, username, password);
-        out.writeBytes(gson.toJson(message) + "\n");
-        out.flush();
+        message.flags = (COMPRESSION ? Protocol.FEATURE_DEFLATE : 0) | Protocol.FEATURE_STREAM_WINDOWS
+                | Protocol.FEATURE_HISTORY;
+        CompletableFuture<Message> reply = requests.register(message, REQUEST_TIMEOUT_SECONDS);
+        send(message);
+        return reply;
+    }
+
+    // Waits for the reply to a request; null if it failed or timed out, which is reported here
+    private static <T> T await(CompletableFuture<T> reply, String what) {
+        long started = System.nanoTime();
+        return await(reply, what, () -> started);
+    }
+
+    // Like await, for a reply that takes as long as a transfer: gives up only once nothing arrived
+    // for REQUEST_TIMEOUT_SECONDS since lastActivity, which the transfer moves on as it goes
+    private static <T> T await(CompletableFuture<T> reply, String what, LongSupplier lastActivity) {
+        long timeout = TimeUnit.SECONDS.toNanos(REQUEST_TIMEOUT_SECONDS);
+        try {
+            while (true) {
+                long wait = lastActivity.getAsLong() + timeout - System.nanoTime();
+                try {
+                    return reply.get(Math.max(wait, 0), TimeUnit.NANOSECONDS);
+                } catch (TimeoutException e) {
+                    if (lastActivity.getAsLong() + timeout - System.nanoTime() <= 0) {
+                        System.out.println(what + " failed: no reply from the server");
+                        return null;
+                    }
+                }
+            }
+        } catch (ExecutionException e) {
+            System.out.println(what + " failed: " + (e.getCause() instanceof TimeoutException
+                    ? "no reply from the server" : e.getCause().getMessage()));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return null;
     }
 
     private static void enterChat(Scanner scanner) throws IOException {
         System.out.println("You have entered the chat");
+        System.out.println("Type /msg <user> <text> for a private message, /join <room>, /leave <room> or /rooms"
+                + " to move between rooms, /history for earlier messages of the room, /metrics for the server metrics"
+                + " (admins only), /exit to leave");
 
         String messageString = "";
         while (!messageString.equalsIgnoreCase("/exit")) {
             messageString = scanner.nextLine();
 
-            if (!messageString.equalsIgnoreCase("/exit")) {
+            if (messageString.startsWith("/msg ")) {
+                sendDirectMessage(messageString.substring(5).trim());
+            } else if (messageString.startsWith("/join ")) {
+                currentRoom = messageString.substring(6).trim();
+                sendRoomMessage(Message.JOIN_ROOM, currentRoom);
+            } else if (messageString.startsWith("/leave ")) {
+                String room = messageString.substring(7).trim();
+                sendRoomMessage(Message.LEAVE_ROOM, room);
+                if (room.equals(currentRoom)) {
+                    currentRoom = "lobby";
+                }
+            } else if (messageString.equalsIgnoreCase("/rooms")) {
+                sendRoomMessage(Message.ROOM_LIST, null);
+            } else if (messageString.equalsIgnoreCase("/history")) {
+                requestHistory(currentRoom);
+            } else if (messageString.equalsIgnoreCase("/metrics")) {
+                send(new Message(Message.METRICS, username, ""));
+            } else if (!messageString.equalsIgnoreCase("/exit")) {
                 sendChatMessage(messageString);
             } else {
-                Gson gson = new Gson();
                 Message logoutMessage = new Message(Message.LOGOUT, username, "");
-                out.writeBytes(gson.toJson(logoutMessage) + "\n");
-                out.flush();
+                send(logoutMessage);
                 try {
                     Thread.sleep(100);
                 } catch (InterruptedException e) {
@@ -115,10 +211,39 @@ public class Client {
     }
 
     private static void sendChatMessage(String messageToSend) throws IOException {
-        Gson gson = new Gson();
         Message message = new Message(Message.CHAT, username, messageToSend);
-        out.writeBytes(gson.toJson(message) + "\n");
-        out.flush();
+        message.room = currentRoom;
+        send(message);
+    }
+
+    // Pages back from the oldest message of the room shown so far
+    private static void requestHistory(String room) throws IOException {
+        Long before = receiver.historyBefore(room);
+        if (before != null && before == 0) {
+            System.out.println("No earlier messages in room " + room + ".");
+            return;
+        }
+        Message message = new Message(Message.HISTORY, username, "", HISTORY_PAGE);
+        message.room = room;
+        message.offset = before != null ? before : 0;
+        send(message);
+    }
+
+    private static void sendRoomMessage(int type, String room) throws IOException {
+        Message message = new Message(type, username, "");
+        message.room = room;
+        send(message);
+    }
+
+    private static void sendDirectMessage(String command) throws IOException {
+        int space = command.indexOf(' ');
+        if (space <= 0) {
+            System.out.println("Usage: /msg <user> <text>");
+            return;
+        }
+        Message message = new Message(Message.DIRECT, username, command.substring(space + 1));
+        message.recipient = command.substring(0, space);
+        send(message);
     }
 
     private static void uploadFile(Scanner scanner) throws IOException {
@@ -135,7 +260,7 @@ public class Client {
             return;
         }
 
-        File[] files = clientDir.listFiles();
+        File[] files = clientDir.listFiles(File::isFile);
         if (files == null || files.length == 0) {
             System.out.println("No files found in " + clientDir.getAbsolutePath() + ". Please add files to src/main/resources/Client/" + username + " and try again.");
             return;
@@ -161,108 +286,311 @@ public class Client {
         }
 
         File file = files[choice];
-        byte[] fileData = readFileToByteArray(file);
+        long length = file.length();
+        FileDigest.Manifest manifest = FileDigest.manifest(file.toPath());
 
-        Gson gson = new Gson();
-        Message metadata = new Message(Message.FILE_UPLOAD, username, file.getName(), file.length());
-        out.writeBytes(gson.toJson(metadata) + "\n");
-        out.flush();
+        // A new version of a file the server has goes up as a delta against the old one
+        CatalogEntry existing = fileMirror.find(file.getName());
+        if (existing != null && existing.size > 0 && !manifest.digest.equals(existing.hash)
+                && uploadDelta(file, manifest.digest)) {
+            return;
+        }
 
-        out.write(fileData);
-        out.flush();
+        // The server keeps what it received of an interrupted upload under the file's hash and
+        // replies with where to continue, and which chunks it cannot find on its own. The result
+        // comes once it saved the file.
+        Message request = new Message(Message.UPLOAD_RESUME, username, file.getName(), length);
+        request.digest = manifest.digest;
+        request.chunkHashes = String.join(",", manifest.chunks);
+        CompletableFuture<Message> pending = requests.register(request, REQUEST_TIMEOUT_SECONDS);
+        CompletableFuture<Message> result = requests.expectResult(request.requestId);
+        send(request);
+        Message reply = await(pending, "Upload of " + file.getName());
+        if (reply == null || reply.content.startsWith("Upload failed")) {
+            result.cancel(false);
+            if (reply != null) {
+                System.out.println(reply.content);
+            }
+            return;
+        }
+        if (reply.offset > 0 && reply.offset < length) {
+            System.out.println("Resuming upload of " + file.getName() + " at " + reply.offset + " of " + length + " bytes");
+        }
+        // Sent once each, at their first position; null from a server that wants every chunk
+        Set<String> needed = reply.chunkHashes == null ? null
+                : new HashSet<>(Arrays.asList(reply.chunkHashes.isEmpty() ? new String[0] : reply.chunkHashes.split(",")));
+        if (needed != null) {
+            int remainingChunks = manifest.chunks.size() - (int) (reply.offset / Protocol.CHUNK_SIZE);
+            System.out.println("Sending " + needed.size() + " of " + remainingChunks + " chunks; the server has the rest");
+        }
 
+        // A chunk that fails its checksum on the server is answered with another UPLOAD_RESUME
+        // reply instead of the result, and everything from it on is sent again
+        long from = reply.offset;
+        for (int retries = 0; ; retries++) {
+            sendChunks(file, length, manifest, from, needed, result);
+            Message saved = await(result.orTimeout(REQUEST_TIMEOUT_SECONDS, TimeUnit.SECONDS), "Upload of " + file.getName());
+            if (saved == null) {
+                return;
+            }
+            if (saved.type != Message.UPLOAD_RESUME) {
+                reportUpload(file, saved);
+                return;
+            }
+            if (retries == MAX_CHUNK_RETRIES) {
+                System.out.println("Chunk at offset " + saved.offset + " of " + file.getName()
+                        + " keeps failing its checksum; uploading it again continues from there.");
+                return;
+            }
+            System.out.println("Chunk at offset " + saved.offset + " of " + file.getName()
+                    + " failed its checksum on the server, sending again from there.");
+            from = saved.offset;
+            result = requests.expectResult(request.requestId);
+        }
+    }
+
+    // Streamed straight from disk in checksummed chunks, so the file never has to fit in memory;
+    // other messages may go out between chunks. With compression, chunks that shrink go out
+    // deflated, unless the file's type or its first chunk shows it is not worth it. Stops early
+    // once the server answered, which it only does before the end to ask for a chunk again.
+    private static void sendChunks(File file, long length, FileDigest.Manifest manifest, long from, Set<String> needed,
+                                   CompletableFuture<Message> result) throws IOException {
+        if (needed != null) {
+            // Those before from were sent already, or the server found them itself
+            needed = new HashSet<>(needed);
+            needed.removeAll(manifest.chunks.subList(0, (int) (from / Protocol.CHUNK_SIZE)));
+        }
+        Compression compression;
+        synchronized (out) {
+            compression = out.compressing() ? new Compression() : null;
+        }
+        try (FileChannel fileIn = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            ByteBuffer buffer = ByteBuffer.allocate(Protocol.CHUNK_SIZE);
+            ByteBuffer packed = compression != null ? ByteBuffer.allocate(Protocol.CHUNK_SIZE) : null;
+            Boolean compressible = null;
+            CRC32C crc = new CRC32C();
+            long sent = from;
+            while (sent < length && !result.isDone()) {
+                buffer.clear().limit((int) Math.min(buffer.capacity(), length - sent));
+                if (needed != null && !needed.remove(manifest.chunks.get((int) (sent / Protocol.CHUNK_SIZE)))) {
+                    sent += buffer.limit();
+                    continue;
+                }
+                while (buffer.hasRemaining()) {
+                    if (fileIn.read(buffer, sent + buffer.position()) == -1) {
+                        throw new IOException("File " + file.getName() + " shrank while uploading");
+                    }
+                }
+                buffer.flip();
+                crc.reset();
+                crc.update(buffer.array(), 0, buffer.limit());
+                Message chunk = new Message(Message.FILE_CHUNK, username, file.getName(), buffer.limit());
+                chunk.offset = sent;
+                chunk.checksum = crc.getValue();
+                ByteBuffer sending = buffer;
+                if (compression != null) {
+                    if (compressible == null) {
+                        compressible = compression.worthCompressing(file.getName(), buffer);
+                    }
+                    if (compressible && compression.compressChunk(buffer, packed)) {
+                        chunk.fileLength = packed.remaining();
+                        chunk.flags = Protocol.FEATURE_DEFLATE;
+                        sending = packed;
+                    }
+                }
+                synchronized (out) {
+                    out.writeMessage(chunk);
+                    out.stream().write(sending.array(), 0, sending.limit());
+                    out.flush();
+                }
+                sent += buffer.limit();
+            }
+        } finally {
+            if (compression != null) {
+                compression.end();
+            }
+        }
+    }
+
+    // Returns false if the server could not save the file
+    private static boolean reportUpload(File file, Message result) {
+        if (result.content.startsWith("Upload failed")) {
+            System.out.println(result.content);
+            return false;
+        }
         System.out.println("File " + file.getName() + " uploaded successfully.");
         System.out.println("Please refresh the project in IntelliJ (Ctrl+Alt+Y) to see the updated files.");
+        return true;
     }
 
-    private static byte[] readFileToByteArray(File file) throws IOException {
-        try (FileInputStream fis = new FileInputStream(file);
-             ByteArrayOutputStream bos = new ByteArrayOutputStream()) {
-            byte[] buffer = new byte[4096];
-            int bytesRead;
-            while ((bytesRead = fis.read(buffer)) != -1) {
-                bos.write(buffer, 0, bytesRead);
+    // Fetches the server's signature of its version and sends only what changed. Returns false if
+    // that is not possible, would not be smaller or did not rebuild the file on the server, so the
+    // caller uploads the whole file.
+    private static boolean uploadDelta(File file, String digest) throws IOException {
+        Message request = new Message(Message.SIGNATURE, username, file.getName());
+        CompletableFuture<byte[]> reply = requests.register(request, REQUEST_TIMEOUT_SECONDS);
+        send(request);
+        // null if the server has no signature for it
+        byte[] signatureData = await(reply, "Signature of " + file.getName());
+        if (signatureData == null) {
+            return false;
+        }
+
+        long length = file.length();
+        File delta = File.createTempFile("upload", ".delta");
+        try {
+            long deltaLength;
+            try (InputStream in = new BufferedInputStream(new FileInputStream(file), 256 * 1024);
+                 OutputStream out = new BufferedOutputStream(new FileOutputStream(delta), 256 * 1024)) {
+                deltaLength = DeltaSync.delta(DeltaSync.parseSignature(signatureData), in, length, out);
+            }
+            if (deltaLength >= length) {
+                return false;
+            }
+            Message metadata = new Message(Message.DELTA_UPLOAD, username, file.getName(), deltaLength);
+            metadata.digest = digest;
+            metadata.requestId = requests.nextId();
+            CompletableFuture<Message> result = requests.expectResult(metadata.requestId);
+            synchronized (out) {
+                out.writeMessage(metadata);
+                Files.copy(delta.toPath(), out.stream());
+                out.flush();
+            }
+            System.out.println("Sent " + (signatureData.length + deltaLength) + " bytes for the changes instead of "
+                    + length + " (signature " + signatureData.length + ", delta " + deltaLength + ")");
+            // Without a result it is not known whether the server has the file, so it is not sent again
+            Message saved = await(result.orTimeout(REQUEST_TIMEOUT_SECONDS, TimeUnit.SECONDS), "Upload of " + file.getName());
+            if (saved == null || reportUpload(file, saved)) {
+                return true;
             }
-            return bos.toByteArray();
+            // Most likely the server's version changed after it sent the signature
+            System.out.println("Sending the whole file instead.");
+            return false;
+        } finally {
+            delta.delete();
         }
     }
 
     private static void requestDownload(Scanner scanner) throws IOException {
-        Gson gson = new Gson();
-        Message request = new Message(Message.FILE_LIST, username, "");
-        out.writeBytes(gson.toJson(request) + "\n");
-        out.flush();
-        while (fileList == null) {
-            try { Thread.sleep(100); } catch (InterruptedException e) {}
+        // The mirror is kept current by the server, so there is nothing to ask for here
+        List<CatalogEntry> files;
+        try {
+            files = fileMirror.awaitEntries(TimeUnit.SECONDS.toMillis(REQUEST_TIMEOUT_SECONDS));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+        }
+        if (files == null) {
+            System.out.println("Listing the files failed: no reply from the server");
+            return;
         }
 
-        if (fileList.equals("NO_FILES") || fileList.isEmpty()) {
+        if (files.isEmpty()) {
             System.out.println("No files available on server.");
-            fileList = null;
             return;
         }
 
-        String[] files = fileList.split(",");
         System.out.println("Available files on server:");
-        for (int i = 0; i < files.length; i++) {
-            System.out.println((i + 1) + ". " + files[i]);
+        for (int i = 0; i < files.size(); i++) {
+            System.out.println((i + 1) + ". " + files.get(i).name + " (" + files.get(i).size + " bytes)");
         }
 
-        System.out.print("Select file number to download: ");
-        int choice = Integer.parseInt(scanner.nextLine()) - 1;
-
-        if (choice < 0 || choice >= files.length) {
-            System.out.println("Invalid choice.");
-            fileList = null;
-            return;
+        System.out.print("Select file number(s) to download, e.g. 2 or 1,3: ");
+        Set<Integer> choices = new LinkedHashSet<>();
+        for (String part : scanner.nextLine().split(",")) {
+            int choice;
+            try {
+                choice = Integer.parseInt(part.trim()) - 1;
+            } catch (NumberFormatException e) {
+                choice = -1;
+            }
+            if (choice < 0 || choice >= files.size()) {
+                System.out.println("Invalid choice.");
+                return;
+            }
+            choices.add(choice);
         }
 
-        String fileName = files[choice];
-        Message downloadRequest = new Message(Message.FILE_DOWNLOAD, username, fileName);
-        out.writeBytes(gson.toJson(downloadRequest) + "\n");
-        out.flush();
-
-        while (metadata == null || downloadedFileData == null) {
-            try { Thread.sleep(100); } catch (InterruptedException e) {}
+        // Every range is requested up front, so the files arrive side by side; large ones come
+        // over connections of their own meanwhile
+        Map<String, CompletableFuture<File>> pending = new LinkedHashMap<>();
+        List<PartialDownload> parallel = new ArrayList<>();
+        for (int choice : choices) {
+            CatalogEntry entry = files.get(choice);
+            PartialDownload download = PartialDownload.open(downloadDirectory().toPath(), entry);
+            if (download.verified() > 0) {
+                System.out.println("Resuming download of " + entry.name + " at " + download.verified() + " of " + entry.size + " bytes");
+            }
+            if (ParallelDownload.worthwhile(download)) {
+                parallel.add(download);
+            } else {
+                pending.put(entry.name, receiver.download(download));
+            }
         }
+        for (PartialDownload download : parallel) {
+            downloadInParallel(download);
+        }
+        for (Map.Entry<String, CompletableFuture<File>> download : pending.entrySet()) {
+            CompletableFuture<File> done = download.getValue();
+            File downloadedFile = await(done, "Download of " + download.getKey(), () -> receiver.lastActivity(done));
+            if (downloadedFile != null) {
+                System.out.println("File downloaded successfully to: " + downloadedFile.getAbsolutePath());
+                System.out.println("Please refresh the project in IntelliJ (Ctrl+Alt+Y) to see the updated files.");
+            } else {
+                receiver.abandon(done);
+                System.err.println("Failed to download file " + download.getKey());
+            }
+        }
+    }
 
-        File clientDir = new File("src/main/resources/Client/" + username);
-        if (!clientDir.exists()) clientDir.mkdirs();
-
-        File file = new File(clientDir, fileName);
-        try (FileOutputStream fos = new FileOutputStream(file)) {
-            fos.write(downloadedFileData);
-            System.out.println("File downloaded successfully to: " + file.getAbsolutePath());
+    // Large files come over extra connections, one range each, on this thread; the receiver is
+    // not involved
+    private static void downloadInParallel(PartialDownload download) {
+        Path target = downloadDirectory().toPath().resolve(new File(download.name).getName());
+        try {
+            Path saved = new ParallelDownload(HOST, PORT, download).run(target);
+            System.out.println("File downloaded successfully to: " + saved.toAbsolutePath());
             System.out.println("Please refresh the project in IntelliJ (Ctrl+Alt+Y) to see the updated files.");
         } catch (IOException e) {
-            System.err.println("Failed to download file " + file.getAbsolutePath() + ": " + e.getMessage());
-            throw e;
+            System.err.println("Failed to download file " + download.name + ": " + e.getMessage());
+            if (download.verified() > 0 && !download.complete()) {
+                System.out.println("Downloading it again continues from " + download.verified() + " of " + download.size + " bytes.");
+            }
         }
+    }
 
-        // Request updated file list after download
-        fileList = null;
-        Message refreshRequest = new Message(Message.FILE_LIST, username, "");
-        out.writeBytes(gson.toJson(refreshRequest) + "\n");
-        out.flush();
+    public static FileMirror fileMirror() {
+        return fileMirror;
+    }
 
-        fileList = null;
-        metadata = null;
-        downloadedFileData = null;
+    // Called by the receiver when the mirror missed a change
+    public static void requestCatalogSnapshot() throws IOException {
+        send(new Message(Message.CATALOG_SNAPSHOT, username, ""));
     }
 
-    public static void setFileList(String fileList) {
-        Client.fileList = fileList;
+    // The server accepts the features it supports of those offered at login
+    static void acceptFeatures(Message loginResponse) {
+        if (!loginResponse.content.equals("success")) {
+            return;
+        }
+        if ((loginResponse.flags & Protocol.FEATURE_DEFLATE) != 0) {
+            synchronized (out) {
+                out.setCompression(new Compression());
+            }
+        }
+        streamWindows = (loginResponse.flags & Protocol.FEATURE_STREAM_WINDOWS) != 0;
     }
 
-    public static void setLoginResponse(String response) {
-        Client.loginResponse = response;
+    static boolean streamWindows() {
+        return streamWindows;
     }
 
-    public static void setMetadata(Message metadata) {
-        Client.metadata = metadata;
+    static String username() {
+        return username;
     }
 
-    public static void setDownloadedFileData(byte[] data) {
-        Client.downloadedFileData = data;
+    // Where the receiver saves downloads
+    public static File downloadDirectory() {
+        return new File("src/main/resources/Client/" + username);
     }
 }
\ No newline at end of file
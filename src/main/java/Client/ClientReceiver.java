@@ -1,48 +1,147 @@
 package Client;
 
+import Shared.BinaryCodec;
+import Shared.CatalogEntry;
+import Shared.Compression;
+import Shared.FrameReader;
 import Shared.Message;
-import com.google.gson.Gson;
+import Shared.Protocol;
 
 import java.io.*;
-import java.net.Socket;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
 
 public class ClientReceiver implements Runnable {
-    private final DataInputStream in;
+    // A chunk that fails its checksum is asked for again this many times before giving up
+    private static final int MAX_CHUNK_RETRIES = 3;
 
-    public ClientReceiver(Socket socket) throws Exception {
-        this.in = new DataInputStream(socket.getInputStream());
+    // A download in flight; done gets the saved file, or null if it failed. Chunks are stored
+    // under its lock, as the menu thread may give up on it meanwhile.
+    private static final class Download {
+        final PartialDownload file;
+        final CompletableFuture<File> done = new CompletableFuture<>();
+        int retries;
+        // System.nanoTime() of the request or of the last chunk
+        volatile long lastActivity = System.nanoTime();
+
+        Download(PartialDownload file) {
+            this.file = file;
+        }
+    }
+
+    private final FrameReader in;
+    private final PendingRequests requests;
+    // By the requestId of the range request their chunks answer, so several can be in flight
+    private final ConcurrentHashMap<Long, Download> downloads = new ConcurrentHashMap<>();
+    // Per room, the seq before which the server has older messages than those shown; 0 if none
+    private final ConcurrentHashMap<String, Long> historyBefore = new ConcurrentHashMap<>();
+    private byte[] chunkBuffer;
+    // For compressed chunks, which are read into packedBuffer first; created by the first one
+    private Compression compression;
+    private byte[] packedBuffer;
+
+    public ClientReceiver(FrameReader in, PendingRequests requests) {
+        this.in = in;
+        this.requests = requests;
+    }
+
+    // Asks for the rest of the file as checksummed chunks; the future completes once it is saved
+    CompletableFuture<File> download(PartialDownload file) throws IOException {
+        Download download = new Download(file);
+        request(download);
+        return download.done;
+    }
+
+    // When the download was last requested or got a chunk; now if it is not in flight
+    long lastActivity(CompletableFuture<File> done) {
+        Download download = find(done);
+        return download != null ? download.lastActivity : System.nanoTime();
+    }
+
+    // Stops waiting for a download the server went quiet on. The part file keeps what arrived,
+    // and chunks that still come for it are dropped.
+    void abandon(CompletableFuture<File> done) {
+        Download download = find(done);
+        if (download == null) {
+            return;
+        }
+        synchronized (download) {
+            if (downloads.values().remove(download)) {
+                download.file.close();
+                System.out.println("Download of " + download.file.name + " stalled at " + download.file.verified()
+                        + " of " + download.file.size + " bytes; downloading it again continues from there.");
+                download.done.complete(null);
+            }
+        }
+    }
+
+    private Download find(CompletableFuture<File> done) {
+        for (Download download : downloads.values()) {
+            if (download.done == done) {
+                return download;
+            }
+        }
+        return null;
+    }
+
+    private void request(Download download) throws IOException {
+        download.lastActivity = System.nanoTime();
+        Message request = new Message(Message.DOWNLOAD_RANGE, Client.username(), download.file.name);
+        request.offset = download.file.verified();
+        request.requestId = requests.nextId();
+        downloads.put(request.requestId, download);
+        Client.send(request);
     }
 
     @Override
     public void run() {
         try {
             while (true) {
-                StringBuilder jsonBuilder = new StringBuilder();
-                int byteRead;
-                while ((byteRead = in.read()) != -1) {
-                    char c = (char) byteRead;
-                    if (c == '\n') break;
-                    jsonBuilder.append(c);
-                }
-                if (byteRead == -1) break;
-
-                String json = jsonBuilder.toString();
-                Gson gson = new Gson();
-                Message message = gson.fromJson(json, Message.class);
+                Message message = in.readMessage();
+                if (message == null) break;
 
                 if (message.type == Message.CHAT) {
-                    System.out.println(message.content);
-                } else if (message.type == Message.FILE_LIST) {
-                    Client.setFileList(message.content);
+                    System.out.println(message.room != null ? "[" + message.room + "] " + message.content : message.content);
+                } else if (message.type == Message.DIRECT) {
+                    System.out.println("[private] " + message.sender + ": " + message.content);
+                } else if (message.type == Message.ROOM_LIST) {
+                    System.out.println("Rooms: " + message.content);
+                } else if (message.type == Message.HISTORY) {
+                    byte[] batch = new byte[(int) message.fileLength];
+                    in.stream().readFully(batch);
+                    showHistory(message, BinaryCodec.decodeBatch(batch));
+                } else if (message.type == Message.METRICS) {
+                    System.out.println("Server metrics: " + message.content);
+                } else if (message.type == Message.CATALOG_SNAPSHOT) {
+                    Client.fileMirror().applySnapshot(message.catalogVersion, CatalogEntry.arrayFromJson(message.content));
+                } else if (message.type == Message.FILE_ADDED || message.type == Message.FILE_REMOVED
+                        || message.type == Message.FILE_MODIFIED) {
+                    CatalogEntry entry = CatalogEntry.fromJson(message.content);
+                    if (!Client.fileMirror().applyChange(message.type, message.catalogVersion, entry)) {
+                        Client.requestCatalogSnapshot();
+                    }
                 } else if (message.type == Message.LOGIN_RESPONSE) {
-                    Client.setLoginResponse(message.content);
-                } else if (message.type == Message.FILE_DOWNLOAD) {
-                    if (message.content.startsWith("File not found")) {
-                        System.out.println(message.content);
-                    } else {
-                        Client.setMetadata(message);
-                        receiveFileData(message.content, (int) message.fileLength);
+                    // Before the reply is handed over, so whatever is sent next can use them
+                    Client.acceptFeatures(message);
+                    requests.complete(message.requestId, message);
+                } else if (message.type == Message.DOWNLOAD_RANGE) {
+                    startRange(message);
+                } else if (message.type == Message.FILE_CHUNK) {
+                    receiveChunk(message.requestId, message.offset, message.fileLength, message.checksum, message.flags);
+                } else if (message.type == Message.UPLOAD_RESUME) {
+                    // After the first, the server asks for a chunk again instead of sending the result
+                    if (!requests.complete(message.requestId, message)) {
+                        requests.completeResult(message.requestId, message);
                     }
+                } else if (message.type == Message.FILE_UPLOAD) {
+                    requests.completeResult(message.requestId, message);
+                } else if (message.type == Message.SIGNATURE) {
+                    // Only a reply with the signature has bytes after it
+                    byte[] signature = new byte[(int) message.fileLength];
+                    in.stream().readFully(signature);
+                    requests.complete(message.requestId, signature.length > 0 ? signature : null);
                 } else if (message.type == Message.LOGOUT) {
                     System.out.println("Received logout signal from server.");
                     break; // Exit the loop to stop the thread
@@ -51,28 +150,149 @@ public class ClientReceiver implements Runnable {
         } catch (Exception e) {
             System.out.println("Error in ClientReceiver: " + e.getMessage());
         } finally {
+            for (Download download : downloads.values()) {
+                download.file.close();
+                System.out.println("Download of " + download.file.name + " interrupted at " + download.file.verified()
+                        + " of " + download.file.size + " bytes; downloading it again continues from there.");
+                download.done.complete(null);
+            }
+            downloads.clear();
+            requests.failAll(new IOException("Connection closed"));
+            if (compression != null) {
+                compression.end();
+            }
             try {
-                in.close();
+                in.stream().close();
             } catch (Exception e) {
-                System.out.println("Error closing DataInputStream: " + e.getMessage());
+                System.out.println("Error closing input stream: " + e.getMessage());
             }
         }
     }
 
-    private void receiveFileData(String fileName, int fileLength) throws IOException {
-        byte[] data = new byte[fileLength];
-        int totalBytesRead = 0;
-        while (totalBytesRead < fileLength) {
-            int bytesRead = in.read(data, totalBytesRead, fileLength - totalBytesRead);
-            if (bytesRead == -1) break;
-            totalBytesRead += bytesRead;
-        }
-        System.out.println("Received file data for " + fileName + " (" + totalBytesRead + " bytes)");
-        if (totalBytesRead == fileLength) {
-            Client.setDownloadedFileData(data);
-        } else {
-            System.out.println("Incomplete file download: " + fileName);
-            Client.setDownloadedFileData(null); // Indicate failure
+    // The replay on joining a room, or a page asked for with /history
+    private void showHistory(Message reply, List<Message> messages) {
+        if (messages.isEmpty() && !reply.content.isEmpty()) {
+            System.out.println(reply.content);
+            return;
+        }
+        if (reply.room != null) {
+            historyBefore.put(reply.room, reply.offset);
+        }
+        System.out.println("--- " + messages.size() + " earlier messages in " + reply.room + " ---");
+        for (Message message : messages) {
+            System.out.println("[" + message.room + "] " + message.content);
+        }
+        System.out.println("--- " + (reply.offset == 0 ? "start of the history" : "/history for more") + " ---");
+    }
+
+    // null if the server sent nothing of the room's history yet
+    Long historyBefore(String room) {
+        return historyBefore.get(room);
+    }
+
+    // The server's reply to a range request, followed by the range's chunks
+    private void startRange(Message reply) {
+        Download download = downloads.get(reply.requestId);
+        if (download == null) {
+            return;
+        }
+        PartialDownload file = download.file;
+        if (!reply.content.equals(file.name)) {
+            System.out.println(reply.content);
+            file.close();
+            finish(reply.requestId, null);
+            return;
+        }
+        if (reply.fileLength != file.size
+                || (reply.digest != null && file.hash != null && !reply.digest.equals(file.hash))) {
+            // The chunks that follow are of a newer version, which gets a part file of its own
+            System.out.println("File " + file.name + " changed on the server. Please download it again.");
+            file.discard();
+            finish(reply.requestId, null);
+            return;
+        }
+        if (file.complete()) {
+            saveDownload(reply.requestId, download);
+        }
+    }
+
+    private void receiveChunk(long requestId, long offset, long length, long checksum, long flags) throws IOException {
+        if (length < 0 || length > Protocol.CHUNK_SIZE) {
+            throw new IOException("Invalid chunk length " + length);
+        }
+        if (chunkBuffer == null) {
+            chunkBuffer = new byte[Protocol.CHUNK_SIZE];
+        }
+        boolean compressed = (flags & Protocol.FEATURE_DEFLATE) != 0;
+        if (compressed && compression == null) {
+            compression = new Compression();
+            packedBuffer = new byte[Protocol.CHUNK_SIZE];
+        }
+        in.stream().readFully(compressed ? packedBuffer : chunkBuffer, 0, (int) length);
+        Download download = downloads.get(requestId);
+        // Without a download this is the rest of a range that was given up on, credited all the
+        // same so its stream can finish
+        if (download != null) {
+            synchronized (download) {
+                if (downloads.get(requestId) == download) {
+                    download.lastActivity = System.nanoTime();
+                    storeChunk(requestId, download, offset, (int) length, checksum, compressed);
+                }
+            }
+        }
+        // Only once the chunk is stored may the server send that many more bytes on its stream
+        if (Client.streamWindows()) {
+            Message update = new Message(Message.WINDOW_UPDATE, Client.username(), null, length);
+            update.requestId = requestId;
+            Client.send(update);
+        }
+    }
+
+    private void storeChunk(long requestId, Download download, long offset, int length, long checksum,
+                            boolean compressed) throws IOException {
+        PartialDownload file = download.file;
+        if (compressed) {
+            // A chunk that does not inflate to its place's size fails like a bad checksum
+            int expected = (int) Math.max(0, Math.min(Protocol.CHUNK_SIZE, file.size - offset));
+            int inflated = compression.inflateChunk(packedBuffer, 0, length, chunkBuffer, expected);
+            length = inflated == expected ? inflated : -1;
+        }
+        if (length < 0 || !file.write(offset, chunkBuffer, length, checksum)) {
+            // Everything up to the new request's reply is the rest of the old range
+            downloads.remove(requestId);
+            if (++download.retries > MAX_CHUNK_RETRIES) {
+                System.out.println("Chunk at offset " + offset + " of " + file.name + " keeps failing its checksum.");
+                file.close();
+                download.done.complete(null);
+            } else {
+                System.out.println("Chunk at offset " + offset + " of " + file.name + " failed its checksum, asking again.");
+                request(download);
+            }
+            return;
+        }
+        if (file.complete()) {
+            saveDownload(requestId, download);
+        }
+    }
+
+    // Verifies and renames the part file once every chunk arrived, so a cut-off download never
+    // shows up as a finished file
+    private void saveDownload(long requestId, Download download) {
+        PartialDownload file = download.file;
+        System.out.println("Received file data for " + file.name + " (" + file.size + " bytes)");
+        try {
+            Path target = Client.downloadDirectory().toPath().resolve(new File(file.name).getName());
+            finish(requestId, file.finish(target).toFile());
+        } catch (IOException e) {
+            System.out.println("Error saving " + file.name + ": " + e.getMessage());
+            finish(requestId, null);
+        }
+    }
+
+    private void finish(long requestId, File saved) {
+        Download download = downloads.remove(requestId);
+        if (download != null) {
+            download.done.complete(saved);
         }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,79 @@
+package Client;
+
+import Shared.Protocol;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HexFormat;
+import java.util.List;
+
+// SHA-256 of a whole file, as hex, the same way the server's catalog reports it
+final class FileDigest {
+    // The whole file's hash and the hash of each CHUNK_SIZE piece, which lets the server skip
+    // the chunks it already has
+    static final class Manifest {
+        final String digest;
+        final List<String> chunks;
+
+        Manifest(String digest, List<String> chunks) {
+            this.digest = digest;
+            this.chunks = chunks;
+        }
+    }
+
+    private FileDigest() {}
+
+    static String sha256(Path path) throws IOException {
+        MessageDigest digest = newDigest();
+        try (InputStream in = Files.newInputStream(path)) {
+            byte[] buffer = new byte[64 * 1024];
+            int bytesRead;
+            while ((bytesRead = in.read(buffer)) != -1) {
+                digest.update(buffer, 0, bytesRead);
+            }
+        }
+        return HexFormat.of().formatHex(digest.digest());
+    }
+
+    // One pass over the file for both kinds of hash
+    static Manifest manifest(Path path) throws IOException {
+        MessageDigest digest = newDigest();
+        MessageDigest chunkDigest = newDigest();
+        List<String> chunks = new ArrayList<>();
+        try (InputStream in = Files.newInputStream(path)) {
+            byte[] buffer = new byte[64 * 1024];
+            int inChunk = 0;
+            int bytesRead;
+            while ((bytesRead = in.read(buffer)) != -1) {
+                digest.update(buffer, 0, bytesRead);
+                for (int done = 0; done < bytesRead; ) {
+                    int count = Math.min(bytesRead - done, Protocol.CHUNK_SIZE - inChunk);
+                    chunkDigest.update(buffer, done, count);
+                    done += count;
+                    inChunk += count;
+                    if (inChunk == Protocol.CHUNK_SIZE) {
+                        chunks.add(HexFormat.of().formatHex(chunkDigest.digest()));
+                        inChunk = 0;
+                    }
+                }
+            }
+            if (inChunk > 0) {
+                chunks.add(HexFormat.of().formatHex(chunkDigest.digest()));
+            }
+        }
+        return new Manifest(HexFormat.of().formatHex(digest.digest()), chunks);
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,62 @@
+package Client;
+
+import Shared.CatalogEntry;
+import Shared.Message;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+// Local copy of the server's file catalog: one snapshot, then the changes the server pushes.
+// Each change carries the catalog version it leads to, so a missed one shows up as a gap.
+public class FileMirror {
+    private final Map<String, CatalogEntry> entries = new TreeMap<>();
+    private long version = -1; // -1 until a snapshot arrives
+
+    public synchronized void applySnapshot(long version, CatalogEntry[] snapshot) {
+        entries.clear();
+        for (CatalogEntry entry : snapshot) {
+            entries.put(entry.name, entry);
+        }
+        this.version = version;
+        notifyAll();
+    }
+
+    // Returns false if a change was missed; the mirror then ignores changes until the next snapshot
+    public synchronized boolean applyChange(int type, long version, CatalogEntry entry) {
+        if (this.version < 0 || version <= this.version) {
+            return true; // Waiting for a snapshot, or already part of the one we have
+        }
+        if (version != this.version + 1) {
+            this.version = -1;
+            return false;
+        }
+        if (type == Message.FILE_REMOVED) {
+            entries.remove(entry.name);
+        } else {
+            entries.put(entry.name, entry);
+        }
+        this.version = version;
+        return true;
+    }
+
+    // null if the server has no such file, or no snapshot arrived yet
+    public synchronized CatalogEntry find(String name) {
+        return entries.get(name);
+    }
+
+    // Entries sorted by name, waiting for the first snapshot if necessary
+    // null if no snapshot arrived within the timeout
+    public synchronized List<CatalogEntry> awaitEntries(long timeoutMillis) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        while (version < 0) {
+            long wait = deadline - System.currentTimeMillis();
+            if (wait <= 0) {
+                return null;
+            }
+            wait(wait);
+        }
+        return new ArrayList<>(entries.values());
+    }
+}
@@ -0,0 +1,223 @@
+package Client;
+
+import Shared.Compression;
+import Shared.FrameReader;
+import Shared.FrameWriter;
+import Shared.Message;
+import Shared.Protocol;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.Socket;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+// A client without a console or static state, for scripts and the LoadGenerator: each instance
+// is one connection with a receiver thread of its own, and every request returns a future that
+// the reply completes. Downloaded bytes are counted and dropped, not saved.
+public final class HeadlessClient implements Closeable {
+    // A download in flight; done gets the number of bytes received
+    private static final class Transfer {
+        final String name;
+        final CompletableFuture<Long> done = new CompletableFuture<>();
+        long size = -1;
+        long received;
+
+        Transfer(String name) {
+            this.name = name;
+        }
+    }
+
+    private final Socket socket;
+    private final FrameReader in;
+    private final FrameWriter out;
+    private final long timeoutSeconds;
+    private final PendingRequests requests = new PendingRequests();
+    // By the requestId of the range request their chunks answer
+    private final ConcurrentHashMap<Long, Transfer> downloads = new ConcurrentHashMap<>();
+    private final byte[] chunkBuffer = new byte[Protocol.CHUNK_SIZE];
+    private volatile Consumer<Message> chatListener = message -> { };
+    private volatile String username;
+    private volatile boolean streamWindows;
+
+    private HeadlessClient(Socket socket, long timeoutSeconds) throws IOException {
+        this.socket = socket;
+        this.timeoutSeconds = timeoutSeconds;
+        out = new FrameWriter(socket.getOutputStream());
+        in = new FrameReader(socket.getInputStream());
+        Protocol.connect(in, out);
+    }
+
+    // Connects and starts receiving; requests that get no reply within the timeout fail with a
+    // TimeoutException
+    public static HeadlessClient connect(String host, int port, long timeoutSeconds) throws IOException {
+        Socket socket = new Socket(host, port);
+        try {
+            HeadlessClient client = new HeadlessClient(socket, timeoutSeconds);
+            Thread.ofVirtual().name("headless-receiver").start(client::receive);
+            return client;
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+    }
+
+    // Gets every CHAT and DIRECT message, on the receiver thread
+    public void onChat(Consumer<Message> listener) {
+        chatListener = listener;
+    }
+
+    // Completes with whether the server accepted the login. Features are the Protocol.FEATURE_*
+    // flags to offer; the server picks those it supports.
+    public CompletableFuture<Boolean> login(String username, String password, long features) throws IOException {
+        this.username = username;
+        Message request = new Message(Message.LOGIN, username, password);
+        request.flags = features;
+        CompletableFuture<Boolean> reply = requests.register(request, timeoutSeconds);
+        send(request);
+        return reply;
+    }
+
+    public void chat(String room, String text) throws IOException {
+        Message message = new Message(Message.CHAT, username, text);
+        message.room = room;
+        send(message);
+    }
+
+    // Completes with the server's file list
+    public CompletableFuture<String> listFiles() throws IOException {
+        Message request = new Message(Message.FILE_LIST, username, "");
+        CompletableFuture<String> reply = requests.register(request, timeoutSeconds);
+        send(request);
+        return reply;
+    }
+
+    // Completes with the number of bytes once the server has saved them under the name. The
+    // server handles a connection's messages in order, so the reply to a FILE_LIST sent after
+    // the bytes marks the end of the upload.
+    public CompletableFuture<Long> upload(String name, byte[] data) throws IOException {
+        Message barrier = new Message(Message.FILE_LIST, username, "");
+        CompletableFuture<String> reply = requests.register(barrier, timeoutSeconds);
+        synchronized (out) {
+            out.writeMessage(new Message(Message.FILE_UPLOAD, username, name, data.length));
+            out.stream().write(data);
+            out.writeMessage(barrier);
+            out.flush();
+        }
+        return reply.thenApply(list -> (long) data.length);
+    }
+
+    // Completes with the size of the file once all of it arrived as range chunks
+    public CompletableFuture<Long> download(String name) throws IOException {
+        Message request = new Message(Message.DOWNLOAD_RANGE, username, name);
+        request.requestId = requests.nextId();
+        Transfer transfer = new Transfer(name);
+        downloads.put(request.requestId, transfer);
+        transfer.done.orTimeout(timeoutSeconds, TimeUnit.SECONDS)
+                .whenComplete((size, error) -> downloads.remove(request.requestId));
+        send(request);
+        return transfer.done;
+    }
+
+    private void send(Message message) throws IOException {
+        synchronized (out) {
+            out.writeMessage(message);
+            out.flush();
+        }
+    }
+
+    private void receive() {
+        IOException cause = new IOException("Connection closed");
+        try {
+            Message message;
+            while ((message = in.readMessage()) != null) {
+                switch (message.type) {
+                    case Message.CHAT, Message.DIRECT -> chatListener.accept(message);
+                    case Message.LOGIN_RESPONSE -> {
+                        acceptFeatures(message);
+                        requests.complete(message.requestId, message.content.equals("success"));
+                    }
+                    case Message.FILE_LIST -> requests.complete(message.requestId, message.content);
+                    case Message.DOWNLOAD_RANGE -> startRange(message);
+                    case Message.FILE_CHUNK -> receiveChunk(message);
+                    case Message.LOGOUT -> {
+                        return;
+                    }
+                    default -> {
+                        // Catalog changes, notices and the like are of no interest here
+                    }
+                }
+            }
+        } catch (IOException e) {
+            cause = e;
+        } finally {
+            for (Transfer transfer : downloads.values()) {
+                transfer.done.completeExceptionally(cause);
+            }
+            requests.failAll(cause);
+            close();
+        }
+    }
+
+    private void acceptFeatures(Message loginResponse) {
+        if ((loginResponse.flags & Protocol.FEATURE_DEFLATE) != 0) {
+            synchronized (out) {
+                out.setCompression(new Compression());
+            }
+        }
+        streamWindows = (loginResponse.flags & Protocol.FEATURE_STREAM_WINDOWS) != 0;
+    }
+
+    private void startRange(Message reply) {
+        Transfer transfer = downloads.get(reply.requestId);
+        if (transfer == null) {
+            return;
+        }
+        // Anything but the file's name is the reason there is no range
+        if (!reply.content.equals(transfer.name)) {
+            transfer.done.completeExceptionally(new IOException(reply.content));
+            return;
+        }
+        transfer.size = reply.fileLength;
+        if (transfer.size == 0) {
+            transfer.done.complete(0L);
+        }
+    }
+
+    // The bytes are read and dropped; a compressed chunk counts as the file bytes it stands for
+    private void receiveChunk(Message chunk) throws IOException {
+        if (chunk.fileLength < 0 || chunk.fileLength > Protocol.CHUNK_SIZE) {
+            throw new IOException("Invalid chunk length " + chunk.fileLength);
+        }
+        in.stream().readFully(chunkBuffer, 0, (int) chunk.fileLength);
+        Transfer transfer = downloads.get(chunk.requestId);
+        if (transfer != null && transfer.size >= 0) {
+            transfer.received += Math.min(Protocol.CHUNK_SIZE, transfer.size - chunk.offset);
+            if (transfer.received >= transfer.size) {
+                transfer.done.complete(transfer.received);
+            }
+        }
+        // Credited even when given up on, so the stream can finish
+        if (streamWindows) {
+            Message update = new Message(Message.WINDOW_UPDATE, username, null, chunk.fileLength);
+            update.requestId = chunk.requestId;
+            send(update);
+        }
+    }
+
+    // False once the connection is gone, when nothing sent will be answered
+    public boolean isOpen() {
+        return !socket.isClosed();
+    }
+
+    @Override
+    public void close() {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            // Closing anyway
+        }
+    }
+}
@@ -0,0 +1,314 @@
+package Client;
+
+import Shared.LatencyHistogram;
+import Shared.Message;
+import Shared.Protocol;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+// Simulates many users against a running server and reports what it sustained: every user is a
+// HeadlessClient on a virtual thread that performs actions picked from the mix, so that all of
+// them together keep to the target rate. Chat messages carry the time they were sent, so every
+// user that receives one records its end-to-end latency; the clock is this JVM's, which is why
+// the senders and receivers have to be in it. Only the part after the warm-up is reported.
+//
+// Configured with -Dload.* properties, e.g.
+//   java -Dload.users=2000 -Dload.rate=1000 -Dload.mix=chat:90,list:5,download:3,upload:1,login:1 Client.LoadGenerator
+public class LoadGenerator {
+    static final String HOST = System.getProperty("load.host", "localhost");
+    static final int PORT = Integer.getInteger("load.port", 12345);
+    static final int USERS = Integer.getInteger("load.users", 100);
+    // Actions per second, of all users together
+    static final double RATE = Double.parseDouble(System.getProperty("load.rate", "200"));
+    static final int WARMUP_SECONDS = Integer.getInteger("load.warmupSeconds", 5);
+    static final int DURATION_SECONDS = Integer.getInteger("load.durationSeconds", 30);
+    // Relative weights of the actions
+    static final String MIX = System.getProperty("load.mix", "chat:90,list:5,download:3,upload:1,login:1");
+    // The size of uploads, and of the file every download fetches
+    static final int FILE_BYTES = Integer.getInteger("load.fileBytes", 256 * 1024);
+    // The server only knows its built-in users, so the simulated ones take turns with their names
+    static final String[] ACCOUNTS = System.getProperty("load.accounts", "user1,user2,user3,user4,user5").split(",");
+    static final String PASSWORD = System.getProperty("load.password", "1234");
+    static final boolean COMPRESSION = Boolean.parseBoolean(System.getProperty("load.compression", "false"));
+    // The same seed picks the same actions in the same order, run after run
+    static final long SEED = Long.getLong("load.seed", 42);
+    static final long TIMEOUT_SECONDS = Long.getLong("load.timeoutSeconds", 30);
+
+    private static final String ROOM = "lobby";
+    private static final String DOWNLOAD_FILE = "loadgen-download.bin";
+    // Chat lines carry "#<System.nanoTime() when sent>"; the server puts "<sender>: " before it
+    private static final String STAMP = ": #";
+    private static final List<String> ACTIONS = List.of("chat", "list", "download", "upload", "login");
+
+    // Of the measured part of the run
+    private static final class Stats {
+        final LatencyHistogram chatLatency = new LatencyHistogram();
+        final LatencyHistogram listLatency = new LatencyHistogram();
+        final LatencyHistogram loginLatency = new LatencyHistogram();
+        final LongAdder chatsSent = new LongAdder();
+        final LongAdder actions = new LongAdder();
+        final LongAdder late = new LongAdder();
+        final LongAdder errors = new LongAdder();
+        final LongAdder uploads = new LongAdder();
+        final LongAdder uploadedBytes = new LongAdder();
+        final LongAdder uploadNanos = new LongAdder();
+        final LongAdder downloads = new LongAdder();
+        final LongAdder downloadedBytes = new LongAdder();
+        final LongAdder downloadNanos = new LongAdder();
+    }
+
+    private static final Stats stats = new Stats();
+    private static volatile long measureFrom = Long.MAX_VALUE;
+    private static volatile long measureUntil = Long.MAX_VALUE;
+
+    public static void main(String[] args) throws Exception {
+        int[] weights = parseMix(MIX);
+        byte[] data = new byte[FILE_BYTES];
+        new Random(SEED).nextBytes(data);
+
+        System.out.println("Connecting " + USERS + " users to " + HOST + ":" + PORT);
+        HeadlessClient[] clients = new HeadlessClient[USERS];
+        List<Thread> logins = new ArrayList<>();
+        for (int i = 0; i < USERS; i++) {
+            int user = i;
+            logins.add(Thread.ofVirtual().start(() -> clients[user] = loginQuietly(user)));
+        }
+        for (Thread login : logins) {
+            login.join();
+        }
+        if (clients[0] == null) {
+            System.out.println("Could not log in; is the server running?");
+            return;
+        }
+        // Every download fetches the same file, as users do with a popular one
+        clients[0].upload(DOWNLOAD_FILE, data).get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+
+        long start = System.nanoTime();
+        measureFrom = start + TimeUnit.SECONDS.toNanos(WARMUP_SECONDS);
+        measureUntil = measureFrom + TimeUnit.SECONDS.toNanos(DURATION_SECONDS);
+        // Each user acts every interval, starting at a random point of the first, so the actions
+        // are spread evenly over time
+        long interval = (long) (TimeUnit.SECONDS.toNanos(1) * USERS / RATE);
+        Random offsets = new Random(SEED);
+        List<Thread> users = new ArrayList<>();
+        for (int i = 0; i < USERS; i++) {
+            int user = i;
+            long first = start + (long) (offsets.nextDouble() * interval);
+            users.add(Thread.ofVirtual().start(() -> run(user, clients, first, interval, weights, data)));
+        }
+        for (Thread user : users) {
+            user.join();
+        }
+        // Chat messages still on their way are not waited for
+        for (HeadlessClient client : clients) {
+            if (client != null) {
+                client.close();
+            }
+        }
+        report();
+    }
+
+    private static void run(int user, HeadlessClient[] clients, long next, long interval, int[] weights, byte[] data) {
+        Random random = new Random(SEED + user);
+        while (next < measureUntil) {
+            long wait = next - System.nanoTime();
+            if (wait > 0) {
+                try {
+                    TimeUnit.NANOSECONDS.sleep(wait);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+            String action = pick(random, weights);
+            long started = System.nanoTime();
+            boolean measured = started >= measureFrom && started < measureUntil;
+            if (measured) {
+                stats.actions.increment();
+                // A user still busy with its last action when the next is due falls behind the rate
+                if (started - next > interval) {
+                    stats.late.increment();
+                }
+            }
+            try {
+                if (clients[user] == null || action.equals("login")) {
+                    if (clients[user] != null) {
+                        clients[user].close();
+                    }
+                    clients[user] = login(user);
+                    record(measured, stats.loginLatency, started);
+                } else {
+                    act(clients[user], user, action, measured, data);
+                }
+            } catch (Exception e) {
+                if (measured) {
+                    stats.errors.increment();
+                }
+                // A lost connection is made again at the user's next turn
+                if (clients[user] != null && !clients[user].isOpen()) {
+                    clients[user] = null;
+                }
+            }
+            next += interval;
+        }
+    }
+
+    private static void act(HeadlessClient client, int user, String action, boolean measured, byte[] data)
+            throws IOException, ExecutionException, InterruptedException {
+        long started = System.nanoTime();
+        switch (action) {
+            case "chat" -> {
+                client.chat(ROOM, "#" + started);
+                if (measured) {
+                    stats.chatsSent.increment();
+                }
+            }
+            case "list" -> {
+                client.listFiles().get();
+                record(measured, stats.listLatency, started);
+            }
+            case "upload" -> {
+                long bytes = client.upload("loadgen-" + user + ".bin", data).get();
+                if (measured) {
+                    stats.uploads.increment();
+                    stats.uploadedBytes.add(bytes);
+                    stats.uploadNanos.add(System.nanoTime() - started);
+                }
+            }
+            case "download" -> {
+                long bytes = client.download(DOWNLOAD_FILE).get();
+                if (measured) {
+                    stats.downloads.increment();
+                    stats.downloadedBytes.add(bytes);
+                    stats.downloadNanos.add(System.nanoTime() - started);
+                }
+            }
+        }
+    }
+
+    private static HeadlessClient login(int user) throws IOException, ExecutionException, InterruptedException {
+        HeadlessClient client = HeadlessClient.connect(HOST, PORT, TIMEOUT_SECONDS);
+        client.onChat(LoadGenerator::received);
+        long features = Protocol.FEATURE_STREAM_WINDOWS | (COMPRESSION ? Protocol.FEATURE_DEFLATE : 0);
+        CompletableFuture<Boolean> accepted = client.login(ACCOUNTS[user % ACCOUNTS.length], PASSWORD, features);
+        if (!accepted.get()) {
+            client.close();
+            throw new IOException("Login of " + ACCOUNTS[user % ACCOUNTS.length] + " refused");
+        }
+        return client;
+    }
+
+    private static HeadlessClient loginQuietly(int user) {
+        try {
+            return login(user);
+        } catch (Exception e) {
+            System.out.println("User " + user + " could not log in: " + e.getMessage());
+            return null;
+        }
+    }
+
+    // On every user's receiver thread, for every chat line it gets
+    private static void received(Message message) {
+        int stamp = message.content.indexOf(STAMP);
+        if (message.type != Message.CHAT || stamp < 0) {
+            return;
+        }
+        long sent;
+        try {
+            sent = Long.parseLong(message.content.substring(stamp + STAMP.length()));
+        } catch (NumberFormatException e) {
+            return;
+        }
+        if (sent >= measureFrom && sent < measureUntil) {
+            stats.chatLatency.record(System.nanoTime() - sent);
+        }
+    }
+
+    private static void record(boolean measured, LatencyHistogram histogram, long started) {
+        if (measured) {
+            histogram.record(System.nanoTime() - started);
+        }
+    }
+
+    private static String pick(Random random, int[] weights) {
+        int total = 0;
+        for (int weight : weights) {
+            total += weight;
+        }
+        int choice = random.nextInt(total);
+        for (int i = 0; i < weights.length; i++) {
+            choice -= weights[i];
+            if (choice < 0) {
+                return ACTIONS.get(i);
+            }
+        }
+        throw new IllegalStateException();
+    }
+
+    // "chat:90,list:5" gives the actions that are not named a weight of 0
+    private static int[] parseMix(String mix) {
+        int[] weights = new int[ACTIONS.size()];
+        for (String part : mix.split(",")) {
+            String[] nameAndWeight = part.trim().split(":");
+            int action = ACTIONS.indexOf(nameAndWeight[0]);
+            if (action < 0 || nameAndWeight.length != 2) {
+                throw new IllegalArgumentException("Expected load.mix like chat:90,list:5, not " + mix);
+            }
+            weights[action] = Integer.parseInt(nameAndWeight[1]);
+        }
+        int total = 0;
+        for (int weight : weights) {
+            total += weight;
+        }
+        if (total <= 0) {
+            throw new IllegalArgumentException("load.mix has no action with a weight: " + mix);
+        }
+        return weights;
+    }
+
+    private static void report() {
+        double seconds = DURATION_SECONDS;
+        Map<String, String> lines = new LinkedHashMap<>();
+        lines.put("Run", USERS + " users, " + DURATION_SECONDS + " s after a " + WARMUP_SECONDS + " s warm-up, mix " + MIX);
+        lines.put("Actions", String.format("%d, %.1f/s of %.1f/s targeted, %d late, %d failed",
+                stats.actions.sum(), stats.actions.sum() / seconds, RATE, stats.late.sum(), stats.errors.sum()));
+        lines.put("Chat", String.format("%d sent, %d delivered (%.0f/s), latency %s",
+                stats.chatsSent.sum(), stats.chatLatency.count(), stats.chatLatency.count() / seconds,
+                percentiles(stats.chatLatency)));
+        lines.put("List", stats.listLatency.count() + ", latency " + percentiles(stats.listLatency));
+        lines.put("Login", stats.loginLatency.count() + ", latency " + percentiles(stats.loginLatency));
+        lines.put("Upload", throughput(stats.uploads.sum(), stats.uploadedBytes.sum(), stats.uploadNanos.sum(), seconds));
+        lines.put("Download", throughput(stats.downloads.sum(), stats.downloadedBytes.sum(), stats.downloadNanos.sum(), seconds));
+        lines.forEach((name, line) -> System.out.printf("%-9s %s%n", name + ":", line));
+    }
+
+    private static String percentiles(LatencyHistogram histogram) {
+        if (histogram.count() == 0) {
+            return "-";
+        }
+        return "p50 " + micros(histogram.percentile(0.50)) + ", p99 " + micros(histogram.percentile(0.99))
+                + ", p999 " + micros(histogram.percentile(0.999)) + ", max " + micros(histogram.percentile(1));
+    }
+
+    private static String micros(long micros) {
+        return micros < 10_000 ? micros + " us" : String.format("%.1f ms", micros / 1000.0);
+    }
+
+    // Both what one transfer got on average and what all of them moved per second of the run
+    private static String throughput(long count, long bytes, long nanos, double seconds) {
+        if (count == 0) {
+            return "-";
+        }
+        double megabytes = bytes / (1024.0 * 1024.0);
+        return String.format("%d, %.1f MB, %.1f MB/s per transfer, %.1f MB/s in all",
+                count, megabytes, megabytes / (nanos / 1e9), megabytes / seconds);
+    }
+}
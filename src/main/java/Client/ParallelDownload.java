@@ -0,0 +1,177 @@
+package Client;
+
+import Shared.FrameReader;
+import Shared.FrameWriter;
+import Shared.Message;
+import Shared.Protocol;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32C;
+
+// Fetches a large file over several connections at once. The rest of the file is split into
+// ranges on chunk boundaries; each range gets its own connection, asks for its bytes with
+// DOWNLOAD_RANGE and writes every verified chunk straight to its place in the part file.
+//
+// Chunks land out of order, which PartialDownload cannot resume from on its own, so this is only
+// used when the catalog has the file's hash: the whole file is checked before it is renamed.
+final class ParallelDownload {
+    static final int CONNECTIONS = Integer.getInteger("client.downloadConnections", 4);
+    // Below this the extra handshakes cost more than they save
+    static final long MIN_SIZE = Long.getLong("client.parallelDownloadMinBytes", 8L * 1024 * 1024);
+    private static final int MAX_ATTEMPTS = 3;
+
+    // One connection's share of the file
+    private static final class Range {
+        final long start;
+        final long end;
+        volatile long done; // bytes from start that were verified and written
+
+        Range(long start, long end) {
+            this.start = start;
+            this.end = end;
+        }
+    }
+
+    private final String host;
+    private final int port;
+    private final PartialDownload download;
+    private final List<Range> ranges = new ArrayList<>();
+
+    ParallelDownload(String host, int port, PartialDownload download) {
+        this.host = host;
+        this.port = port;
+        this.download = download;
+        long start = download.verified();
+        long perRange = (download.size - start + CONNECTIONS - 1) / CONNECTIONS;
+        perRange = Math.max(Protocol.CHUNK_SIZE, (perRange + Protocol.CHUNK_SIZE - 1) / Protocol.CHUNK_SIZE * Protocol.CHUNK_SIZE);
+        for (long offset = start; offset < download.size; offset += perRange) {
+            ranges.add(new Range(offset, Math.min(download.size, offset + perRange)));
+        }
+    }
+
+    static boolean worthwhile(PartialDownload download) {
+        return CONNECTIONS > 1 && download.hash != null && download.size - download.verified() >= MIN_SIZE;
+    }
+
+    // Downloads every range and moves the finished file to target. On failure the part file keeps
+    // the verified prefix for the next attempt.
+    Path run(Path target) throws IOException {
+        long before = download.verified();
+        long started = System.nanoTime();
+        ExecutorService pool = Executors.newFixedThreadPool(ranges.size());
+        IOException failure = null;
+        try {
+            List<Future<?>> fetches = new ArrayList<>();
+            for (Range range : ranges) {
+                fetches.add(pool.submit(() -> {
+                    fetch(range);
+                    return null;
+                }));
+            }
+            for (Future<?> fetch : fetches) {
+                try {
+                    fetch.get();
+                } catch (ExecutionException e) {
+                    if (failure == null) {
+                        failure = e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause());
+                    }
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            failure = new IOException("Download interrupted");
+        } finally {
+            pool.shutdownNow();
+        }
+
+        download.setVerified(verifiedPrefix());
+        if (failure != null) {
+            download.close();
+            throw failure;
+        }
+        double seconds = (System.nanoTime() - started) / 1e9;
+        long bytes = download.size - before;
+        System.out.printf("Received %d bytes of %s over %d connections in %.1f s (%.1f MB/s)%n",
+                bytes, download.name, ranges.size(), seconds, bytes / seconds / (1024 * 1024));
+        return download.finish(target);
+    }
+
+    // Retries a range from where it stopped, on a new connection each time
+    private void fetch(Range range) throws IOException {
+        IOException last = null;
+        for (int attempt = 0; attempt < MAX_ATTEMPTS && range.start + range.done < range.end; attempt++) {
+            try (Socket socket = new Socket(host, port)) {
+                // A connection the server stops sending on fails like a dropped one
+                socket.setSoTimeout((int) TimeUnit.SECONDS.toMillis(Client.REQUEST_TIMEOUT_SECONDS));
+                receive(socket, range);
+            } catch (IOException e) {
+                last = e;
+            }
+        }
+        if (range.start + range.done < range.end) {
+            throw last != null ? last : new IOException("Range of " + download.name + " at " + range.start + " incomplete");
+        }
+    }
+
+    private void receive(Socket socket, Range range) throws IOException {
+        FrameWriter out = new FrameWriter(socket.getOutputStream());
+        FrameReader in = new FrameReader(socket.getInputStream());
+        Protocol.connect(in, out);
+        long from = range.start + range.done;
+        Message request = new Message(Message.DOWNLOAD_RANGE, "", download.name, range.end - from);
+        request.offset = from;
+        out.writeMessage(request);
+        out.flush();
+
+        byte[] buffer = new byte[Protocol.CHUNK_SIZE];
+        CRC32C crc = new CRC32C();
+        Message message = new Message();
+        while (range.start + range.done < range.end) {
+            if (in.readMessage(message) == null) {
+                throw new IOException("Connection closed");
+            }
+            if (message.type == Message.DOWNLOAD_RANGE) {
+                if (!message.content.equals(download.name) || message.fileLength != download.size
+                        || (message.digest != null && !message.digest.equals(download.hash))) {
+                    throw new IOException(message.content.equals(download.name)
+                            ? "File " + download.name + " changed on the server" : message.content);
+                }
+            } else if (message.type == Message.FILE_CHUNK) {
+                if (message.fileLength < 0 || message.fileLength > buffer.length) {
+                    throw new IOException("Invalid chunk length " + message.fileLength);
+                }
+                int length = (int) message.fileLength;
+                in.stream().readFully(buffer, 0, length);
+                crc.reset();
+                crc.update(buffer, 0, length);
+                if (message.offset != range.start + range.done || crc.getValue() != message.checksum) {
+                    throw new IOException("Chunk at offset " + message.offset + " of " + download.name + " failed its checksum");
+                }
+                download.writeAt(message.offset, buffer, length);
+                range.done += length;
+            }
+            // Anything else is a broadcast every connection gets
+        }
+    }
+
+    // The ranges are in file order, so the prefix ends at the first one that is not complete
+    private long verifiedPrefix() {
+        long prefix = download.verified();
+        for (Range range : ranges) {
+            prefix = range.start + range.done;
+            if (range.start + range.done < range.end) {
+                break;
+            }
+        }
+        return prefix;
+    }
+}
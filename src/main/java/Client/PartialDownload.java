@@ -0,0 +1,122 @@
+package Client;
+
+import Shared.CatalogEntry;
+import Shared.Protocol;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32C;
+
+// A download into a part file under .downloads, named after the file and its hash (or size and
+// time while the server has not hashed it yet). Only chunks whose checksum matched are written,
+// so after a dropped connection or a restart the next attempt asks for the rest.
+final class PartialDownload {
+    final String name;
+    final long size;
+    final String hash; // null if the catalog did not have one yet
+    private final Path temp;
+    private final FileChannel channel;
+    private final CRC32C crc = new CRC32C();
+    private long verified;
+
+    private PartialDownload(CatalogEntry entry, Path temp, FileChannel channel, long verified) {
+        this.name = entry.name;
+        this.size = entry.size;
+        this.hash = entry.hash;
+        this.temp = temp;
+        this.channel = channel;
+        this.verified = verified;
+    }
+
+    static PartialDownload open(Path directory, CatalogEntry entry) throws IOException {
+        Path tempDir = directory.resolve(".downloads");
+        Files.createDirectories(tempDir);
+        String version = entry.hash != null ? entry.hash.substring(0, 16) : entry.size + "-" + entry.modified;
+        Path temp = tempDir.resolve(new File(entry.name).getName() + "." + version + ".part");
+        FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        // Chunks are written in order, so everything but a chunk torn by a crash was verified
+        long kept = Math.min(channel.size(), entry.size);
+        if (kept < entry.size) {
+            kept -= kept % Protocol.CHUNK_SIZE;
+        }
+        channel.truncate(kept);
+        return new PartialDownload(entry, temp, channel, kept);
+    }
+
+    // Bytes stored and verified; the next range starts here
+    long verified() {
+        return verified;
+    }
+
+    boolean complete() {
+        return verified == size;
+    }
+
+    // Writes the chunk if it continues the file and its checksum matches; returns false otherwise
+    boolean write(long offset, byte[] data, int length, long checksum) throws IOException {
+        crc.reset();
+        crc.update(data, 0, length);
+        if (offset != verified || crc.getValue() != checksum) {
+            return false;
+        }
+        writeAt(offset, data, length);
+        verified += length;
+        return true;
+    }
+
+    // For ParallelDownload: the chunk goes to its own place in the file, from any thread, once
+    // the caller verified it; verified() only moves with setVerified
+    void writeAt(long offset, byte[] data, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(data, 0, length);
+        while (buffer.hasRemaining()) {
+            channel.write(buffer, offset + buffer.position());
+        }
+    }
+
+    // Everything before verified is known good; anything written past it is dropped unless the
+    // file is complete, so the next attempt resumes from a clean prefix
+    void setVerified(long verified) throws IOException {
+        this.verified = verified;
+        if (verified < size) {
+            channel.truncate(verified);
+        }
+    }
+
+    // Checks the whole file against the catalog's hash and moves it into place; a file that does
+    // not match is deleted, so the next attempt starts over
+    Path finish(Path target) throws IOException {
+        channel.close();
+        if (hash != null && !hash.equals(FileDigest.sha256(temp))) {
+            Files.deleteIfExists(temp);
+            throw new IOException("Downloaded " + name + " does not match its hash");
+        }
+        Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        return target;
+    }
+
+    // Keeps the verified chunks for the next attempt
+    void close() {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            System.out.println("Error closing partial download " + temp + ": " + e.getMessage());
+        }
+    }
+
+    // For a part file of a version the server no longer has
+    void discard() {
+        close();
+        try {
+            Files.deleteIfExists(temp);
+        } catch (IOException e) {
+            System.out.println("Error deleting partial download " + temp + ": " + e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,72 @@
+package Client;
+
+import Shared.Message;
+
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Requests waiting for their reply, by the requestId the server copies into it. The receiver
+// completes them as replies arrive, so any number can be in flight at once and the caller waits
+// only as long as it takes, or until its timeout.
+final class PendingRequests {
+    private final AtomicLong nextId = new AtomicLong();
+    private final ConcurrentHashMap<Long, CompletableFuture<?>> pending = new ConcurrentHashMap<>();
+    // Uploads waiting for their FILE_UPLOAD result, by the requestId of the request that started them
+    private final ConcurrentHashMap<Long, CompletableFuture<Message>> results = new ConcurrentHashMap<>();
+
+    long nextId() {
+        return nextId.incrementAndGet();
+    }
+
+    // Gives the request an ID and returns the future its reply completes. The future fails with
+    // a TimeoutException if no reply came within the timeout.
+    <T> CompletableFuture<T> register(Message request, long timeoutSeconds) {
+        long id = nextId();
+        request.requestId = id;
+        CompletableFuture<T> reply = new CompletableFuture<>();
+        pending.put(id, reply);
+        reply.orTimeout(timeoutSeconds, TimeUnit.SECONDS).whenComplete((value, error) -> pending.remove(id));
+        return reply;
+    }
+
+    // Returns false if nothing waits for this ID (any more)
+    @SuppressWarnings("unchecked")
+    <T> boolean complete(long requestId, T value) {
+        CompletableFuture<T> reply = (CompletableFuture<T>) pending.remove(requestId);
+        return reply != null && reply.complete(value);
+    }
+
+    // The result of the upload the request with this ID starts, which may arrive before its own
+    // reply is handled. Only as long as sending the upload takes is not known, so the caller sets
+    // the timeout once everything is sent; cancelling the future stops waiting for it.
+    CompletableFuture<Message> expectResult(long requestId) {
+        CompletableFuture<Message> result = new CompletableFuture<>();
+        results.put(requestId, result);
+        result.whenComplete((value, error) -> results.remove(requestId));
+        return result;
+    }
+
+    boolean completeResult(long requestId, Message result) {
+        CompletableFuture<Message> waiting = results.remove(requestId);
+        return waiting != null && waiting.complete(result);
+    }
+
+    // The connection is gone; nothing will be answered
+    void failAll(IOException cause) {
+        for (Long id : pending.keySet()) {
+            CompletableFuture<?> reply = pending.remove(id);
+            if (reply != null) {
+                reply.completeExceptionally(cause);
+            }
+        }
+        for (Long id : results.keySet()) {
+            CompletableFuture<Message> result = results.remove(id);
+            if (result != null) {
+                result.completeExceptionally(cause);
+            }
+        }
+    }
+}
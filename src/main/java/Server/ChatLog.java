@@ -0,0 +1,587 @@
+package Server;
+
+import Shared.BinaryCodec;
+import Shared.EncodeBuffer;
+import Shared.Message;
+import sun.misc.Unsafe;
+
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.zip.CRC32C;
+
+// Room chat, appended to memory-mapped segment files and kept in a ring of the most recent
+// messages, which serves the replay at login and most pages of older history without touching
+// the segments. An append copies the record into the mapped segment and returns; a committer
+// thread forces what was appended to disk every commitMillis, so one fsync covers every message
+// of that interval and no sender waits for the disk. A crash loses at most that interval.
+//
+// A record is [int length][int CRC32C][long seq][BinaryCodec message], where length and CRC
+// cover the seq and the message. Each message gets the next seq; a segment is named after the
+// seq of its first record and ends at a zero length or its first record that does not check
+// out. Only the newest maxSegments segments are kept. A message that is not logged, because it
+// does not fit a segment or the disk failed, uses up no seq.
+//
+// The room shards append in parallel: only taking the seq and the record's place in the segment
+// is done under the lock, the record is encoded before and copied into the mapping after it. A
+// record is forced to disk once every record before it in its segment was copied in, so after a
+// crash the segment still ends at the first one missing.
+//
+// Each room's seqs are indexed, so a page reads just the messages it returns, however quiet the
+// room is among the busy ones. A room's index is only touched on its shard, which all of the
+// room's appends and pages run on.
+final class ChatLog {
+    // A logged message: its seq, its room, and the message encoded with BinaryCodec
+    static final class Entry {
+        final long seq;
+        final String room;
+        final byte[] message;
+
+        private Entry(long seq, String room, byte[] message) {
+            this.seq = seq;
+            this.room = room;
+            this.message = message;
+        }
+    }
+
+    // Messages of a room in the order they were sent, and the seq to page back from for older
+    // ones; 0 if there are none
+    static final class Page {
+        final List<Entry> entries;
+        final long before;
+
+        private Page(List<Entry> entries, long before) {
+            this.entries = entries;
+            this.before = before;
+        }
+    }
+
+    private static final int HEADER = 8;
+    private static final String SUFFIX = ".log";
+    private static final Unsafe UNSAFE = unsafe();
+
+    // Guarded by the ChatLog's lock, except for the mapping's contents
+    private static final class Segment {
+        final long firstSeq;
+        final Path path;
+        final MappedByteBuffer map;
+        // Of each record, by seq - firstSeq, and whether it was copied in yet
+        int[] positions = new int[1024];
+        boolean[] written = new boolean[1024];
+        int count;
+        // Where the next record goes
+        int end;
+        // Records copied in with none missing before them
+        int writtenCount;
+        // Up to where the mapping was forced to disk
+        int committed;
+        // Threads copying into, reading or forcing the mapping. Once the segment is dropped from
+        // the log it is unmapped as soon as there are none.
+        int users;
+        boolean retired;
+
+        Segment(long firstSeq, Path path, MappedByteBuffer map) {
+            this.firstSeq = firstSeq;
+            this.path = path;
+            this.map = map;
+        }
+
+        // Takes the place of the next record; returns its index
+        int reserve(int length) {
+            if (count == positions.length) {
+                positions = Arrays.copyOf(positions, count * 2);
+                written = Arrays.copyOf(written, count * 2);
+            }
+            positions[count] = end;
+            end += length;
+            return count++;
+        }
+
+        void written(int index) {
+            written[index] = true;
+            while (writtenCount < count && written[writtenCount]) {
+                writtenCount++;
+            }
+        }
+
+        // Up to where every record was copied in
+        int writtenEnd() {
+            return writtenCount < count ? positions[writtenCount] : end;
+        }
+    }
+
+    // The seqs of a room's messages, oldest first, in seqs[start, end). Seqs below the oldest one
+    // still in the segments are trimmed lazily, by the room's shard.
+    private static final class RoomIndex {
+        long[] seqs = new long[64];
+        int start;
+        int end;
+
+        void add(long seq, long oldestSeq) {
+            if (end == seqs.length) {
+                start = lowerBound(oldestSeq);
+                // Reuses the room of trimmed seqs once they are half of it
+                if (start >= seqs.length / 2) {
+                    System.arraycopy(seqs, start, seqs, 0, end - start);
+                    end -= start;
+                    start = 0;
+                } else {
+                    seqs = Arrays.copyOf(seqs, seqs.length * 2);
+                }
+            }
+            seqs[end++] = seq;
+        }
+
+        // Where the first seq not below seq is, or end
+        int lowerBound(long seq) {
+            int low = start;
+            int high = end;
+            while (low < high) {
+                int middle = (low + high) >>> 1;
+                if (seqs[middle] < seq) {
+                    low = middle + 1;
+                } else {
+                    high = middle;
+                }
+            }
+            return low;
+        }
+
+        long last() {
+            return seqs[end - 1];
+        }
+    }
+
+    // Each shard encodes its records in a buffer of its own
+    private static final class Encoder {
+        final EncodeBuffer buffer = new EncodeBuffer();
+        final CRC32C crc = new CRC32C();
+    }
+
+    private final Path directory;
+    private final int segmentBytes;
+    private final int maxSegments;
+    private final AtomicReferenceArray<Entry> recent;
+    private final List<Segment> segments = new ArrayList<>();
+    // Updated with compute(), so retain() cannot drop an index while a seq is added to it
+    private final Map<String, RoomIndex> rooms = new ConcurrentHashMap<>();
+    private final ThreadLocal<Encoder> encoders = ThreadLocal.withInitial(Encoder::new);
+    private ScheduledExecutorService committer;
+    private long nextSeq = 1;
+    // The first seq of the oldest segment
+    private volatile long oldestSeq = 1;
+    private boolean closed;
+
+    private ChatLog(Path directory, int segmentBytes, int maxSegments, int recentCapacity) {
+        this.directory = directory;
+        this.segmentBytes = segmentBytes;
+        this.maxSegments = Math.max(1, maxSegments);
+        this.recent = new AtomicReferenceArray<>(Math.max(1, recentCapacity));
+    }
+
+    // Recovers what the segments in the directory hold and starts the committer
+    static ChatLog open(Path directory, int segmentBytes, int maxSegments, int recentCapacity, long commitMillis)
+            throws IOException {
+        Files.createDirectories(directory);
+        ChatLog log = new ChatLog(directory, segmentBytes, maxSegments, recentCapacity);
+        synchronized (log) {
+            log.recover();
+        }
+        log.committer = Executors.newSingleThreadScheduledExecutor(task -> {
+            Thread thread = new Thread(task, "chat-log-committer");
+            thread.setDaemon(true);
+            return thread;
+        });
+        log.committer.scheduleWithFixedDelay(log::commit, commitMillis, commitMillis, TimeUnit.MILLISECONDS);
+        Runtime.getRuntime().addShutdownHook(new Thread(log::commit));
+        return log;
+    }
+
+    private void recover() throws IOException {
+        List<Path> files = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, "*" + SUFFIX)) {
+            stream.forEach(files::add);
+        }
+        // Zero-padded names sort by seq
+        Collections.sort(files);
+        CRC32C crc = new CRC32C();
+        for (Path file : files) {
+            long firstSeq;
+            try {
+                firstSeq = Long.parseLong(file.getFileName().toString().replace(SUFFIX, ""));
+            } catch (NumberFormatException e) {
+                continue;
+            }
+            Segment segment = map(firstSeq, file);
+            scan(segment, crc);
+            // Left behind by a failed append, or the newest segment before its first record
+            if (segment.count == 0) {
+                retire(segment);
+                continue;
+            }
+            // One that overlaps those before it starts the log afresh; after a gap, paging just
+            // skips over the missing seqs
+            if (firstSeq < nextSeq && !segments.isEmpty()) {
+                Log.warn("Chat log segment " + file.getFileName() + " overlaps seq " + (nextSeq - 1)
+                        + "; dropping the older segments");
+                segments.forEach(this::retire);
+                segments.clear();
+            }
+            segments.add(segment);
+            nextSeq = firstSeq + segment.count;
+        }
+        Message decoded = new Message();
+        for (Segment segment : segments) {
+            for (int i = 0; i < segment.count; i++) {
+                long seq = segment.firstSeq + i;
+                byte[] message = read(segment.map, segment.positions[i]);
+                String room = decode(message, decoded).room;
+                index(room, seq);
+                if (seq >= nextSeq - recent.length()) {
+                    remember(new Entry(seq, room, message));
+                }
+            }
+        }
+        retain();
+        Log.info("Chat log: " + segments.stream().mapToLong(segment -> segment.count).sum() + " messages in "
+                + segments.size() + " segments in " + directory);
+    }
+
+    private Segment map(long firstSeq, Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE)) {
+            // The mapping stays valid after the channel is closed
+            return new Segment(firstSeq, path, channel.map(FileChannel.MapMode.READ_WRITE, 0,
+                    Math.max(channel.size(), segmentBytes)));
+        }
+    }
+
+    // Finds the records that check out, in seq order; the first one that does not is where the
+    // segment ends and the next append goes
+    private static void scan(Segment segment, CRC32C crc) {
+        MappedByteBuffer map = segment.map;
+        int position = 0;
+        while (position + HEADER + 8 <= map.capacity()) {
+            int length = map.getInt(position);
+            if (length < 8 || position + HEADER + length > map.capacity()
+                    || map.getLong(position + HEADER) != segment.firstSeq + segment.count) {
+                break;
+            }
+            crc.reset();
+            crc.update(map.slice(position + HEADER, length));
+            if ((int) crc.getValue() != map.getInt(position + 4)) {
+                break;
+            }
+            segment.written(segment.reserve(HEADER + length));
+            position += HEADER + length;
+        }
+        segment.committed = position;
+    }
+
+    // Called on the room shard threads, in the order each room's members get the messages;
+    // returns the message's seq, or 0 if it was not logged
+    long append(Message message) {
+        Encoder encoder = encoders.get();
+        EncodeBuffer encoded = encoder.buffer;
+        encoded.reset();
+        encoded.writeInt(0);
+        encoded.writeInt(0);
+        encoded.writeLong(0);
+        BinaryCodec.INSTANCE.encode(message, encoded);
+        int length = encoded.length();
+        if (length > segmentBytes) {
+            Log.warn("Not logging a message of " + length + " bytes in room " + message.room
+                    + "; segments hold " + segmentBytes);
+            return 0;
+        }
+
+        Segment segment;
+        int index;
+        int position;
+        long seq;
+        synchronized (this) {
+            if (closed) {
+                return 0;
+            }
+            try {
+                segment = writableSegment(length);
+            } catch (IOException e) {
+                Log.warn("Error appending to the chat log: " + e.getMessage());
+                return 0;
+            }
+            seq = nextSeq++;
+            index = segment.reserve(length);
+            position = segment.positions[index];
+            segment.users++;
+        }
+        try {
+            encoded.putInt(0, length - HEADER);
+            encoded.putLong(HEADER, seq);
+            encoder.crc.reset();
+            encoder.crc.update(encoded.array(), HEADER, length - HEADER);
+            encoded.putInt(4, (int) encoder.crc.getValue());
+            segment.map.put(position, encoded.array(), 0, length);
+        } finally {
+            synchronized (this) {
+                segment.written(index);
+                release(segment);
+            }
+        }
+        index(message.room, seq);
+        remember(new Entry(seq, message.room, Arrays.copyOfRange(encoded.array(), HEADER + 8, length)));
+        return seq;
+    }
+
+    private void index(String room, long seq) {
+        if (room == null) {
+            return;
+        }
+        long oldest = oldestSeq;
+        rooms.compute(room, (name, index) -> {
+            if (index == null) {
+                index = new RoomIndex();
+            }
+            index.add(seq, oldest);
+            return index;
+        });
+    }
+
+    // Called with the lock held. The record has to fit an empty segment.
+    private Segment writableSegment(int recordLength) throws IOException {
+        Segment last = segments.isEmpty() ? null : segments.get(segments.size() - 1);
+        if (last != null && last.firstSeq + last.count == nextSeq && last.end + recordLength <= last.map.capacity()) {
+            return last;
+        }
+        if (last != null && last.end + 4 <= last.map.capacity()) {
+            last.map.putInt(last.end, 0);
+        }
+        Path path = directory.resolve(String.format("%020d", nextSeq) + SUFFIX);
+        Segment segment;
+        try {
+            segment = map(nextSeq, path);
+        } catch (IOException e) {
+            Files.deleteIfExists(path);
+            throw e;
+        }
+        segments.add(segment);
+        retain();
+        return segment;
+    }
+
+    // Called with the lock held
+    private void retain() {
+        boolean dropped = false;
+        while (segments.size() > maxSegments) {
+            retire(segments.remove(0));
+            dropped = true;
+        }
+        oldestSeq = segments.isEmpty() ? nextSeq : segments.get(0).firstSeq;
+        if (dropped) {
+            long oldest = oldestSeq;
+            for (String room : rooms.keySet()) {
+                rooms.computeIfPresent(room, (name, index) -> index.last() < oldest ? null : index);
+            }
+        }
+    }
+
+    // Called with the lock held, for a segment no longer in the log
+    private void retire(Segment segment) {
+        unmapWhenUnused(segment);
+        try {
+            Files.deleteIfExists(segment.path);
+        } catch (IOException e) {
+            Log.warn("Error deleting " + segment.path + ": " + e.getMessage());
+        }
+    }
+
+    // Called with the lock held. Unmaps the segment now, rather than whenever the mapping is
+    // collected, or once the last thread using it is done.
+    private void unmapWhenUnused(Segment segment) {
+        segment.retired = true;
+        if (segment.users == 0) {
+            unmap(segment);
+        }
+    }
+
+    private void release(Segment segment) {
+        if (--segment.users == 0 && segment.retired) {
+            unmap(segment);
+        }
+    }
+
+    private static void unmap(Segment segment) {
+        if (UNSAFE != null) {
+            UNSAFE.invokeCleaner(segment.map);
+        }
+    }
+
+    private static Unsafe unsafe() {
+        try {
+            Field field = Unsafe.class.getDeclaredField("theUnsafe");
+            field.setAccessible(true);
+            return (Unsafe) field.get(null);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            Log.warn("Dropped chat log segments stay mapped until collected: " + e.getMessage());
+            return null;
+        }
+    }
+
+    private void remember(Entry entry) {
+        recent.set((int) (entry.seq % recent.length()), entry);
+    }
+
+    // Forces everything appended since the last commit to disk. The ranges are taken under the
+    // lock, but forced outside it, so appends carry on meanwhile.
+    void commit() {
+        List<Segment> dirty = new ArrayList<>();
+        List<int[]> ranges = new ArrayList<>();
+        synchronized (this) {
+            for (Segment segment : segments) {
+                int end = segment.writtenEnd();
+                if (end > segment.committed) {
+                    dirty.add(segment);
+                    ranges.add(new int[]{segment.committed, end});
+                    segment.committed = end;
+                    segment.users++;
+                }
+            }
+        }
+        try {
+            for (int i = 0; i < dirty.size(); i++) {
+                int[] range = ranges.get(i);
+                try {
+                    dirty.get(i).map.force(range[0], range[1] - range[0]);
+                } catch (RuntimeException e) {
+                    Log.warn("Error committing the chat log: " + e.getMessage());
+                }
+            }
+        } finally {
+            synchronized (this) {
+                dirty.forEach(this::release);
+            }
+        }
+    }
+
+    // Commits and unmaps the segments; nothing is logged or read from them afterwards
+    void close() {
+        if (committer != null) {
+            committer.shutdown();
+        }
+        commit();
+        synchronized (this) {
+            closed = true;
+            segments.forEach(this::unmapWhenUnused);
+            segments.clear();
+        }
+    }
+
+    // The last count messages of the room, for the replay at login or on joining it
+    Page recent(String room, int count) {
+        return page(room, 0, count);
+    }
+
+    // Up to count messages of the room sent before seq `before`, or the newest ones for 0, and
+    // the seq to ask for the next page before (0 when there is no more). Called on the room's
+    // shard.
+    Page page(String room, long before, int count) {
+        RoomIndex index = rooms.get(room);
+        if (index == null) {
+            return new Page(new ArrayList<>(), 0);
+        }
+        index.start = index.lowerBound(oldestSeq);
+        int end = index.lowerBound(before <= 0 ? Long.MAX_VALUE : before);
+        int from = Math.max(index.start, end - count);
+        Entry[] found = new Entry[end - from];
+        boolean missing = false;
+        for (int i = 0; i < found.length; i++) {
+            long seq = index.seqs[from + i];
+            Entry entry = recent.get((int) (seq % recent.length()));
+            if (entry != null && entry.seq == seq) {
+                found[i] = entry;
+            } else {
+                missing = true;
+            }
+        }
+        if (missing) {
+            read(room, index.seqs, from, found);
+        }
+        List<Entry> entries = new ArrayList<>(found.length);
+        for (Entry entry : found) {
+            if (entry != null) {
+                entries.add(entry);
+            }
+        }
+        return new Page(entries, from > index.start ? index.seqs[from] : 0);
+    }
+
+    // Reads the messages no longer in the ring from their segments. Where they are is looked up
+    // under the lock and they are copied out after it; any dropped since the page was started
+    // are left out.
+    private void read(String room, long[] seqs, int from, Entry[] found) {
+        Segment[] owners = new Segment[found.length];
+        int[] positions = new int[found.length];
+        synchronized (this) {
+            int s = segments.size() - 1;
+            for (int i = found.length - 1; i >= 0 && s >= 0; i--) {
+                if (found[i] != null) {
+                    continue;
+                }
+                long seq = seqs[from + i];
+                while (s >= 0 && seq < segments.get(s).firstSeq) {
+                    s--;
+                }
+                if (s >= 0) {
+                    Segment segment = segments.get(s);
+                    owners[i] = segment;
+                    positions[i] = segment.positions[(int) (seq - segment.firstSeq)];
+                    segment.users++;
+                }
+            }
+        }
+        try {
+            for (int i = 0; i < found.length; i++) {
+                if (owners[i] != null) {
+                    found[i] = new Entry(seqs[from + i], room, read(owners[i].map, positions[i]));
+                }
+            }
+        } finally {
+            synchronized (this) {
+                for (Segment owner : owners) {
+                    if (owner != null) {
+                        release(owner);
+                    }
+                }
+            }
+        }
+    }
+
+    private static byte[] read(MappedByteBuffer map, int position) {
+        byte[] message = new byte[map.getInt(position) - 8];
+        map.get(position + HEADER + 8, message);
+        return message;
+    }
+
+    private static Message decode(byte[] message, Message target) {
+        try {
+            return BinaryCodec.INSTANCE.decode(ByteBuffer.wrap(message), target);
+        } catch (IOException e) {
+            throw new IllegalStateException("Chat log record does not decode: " + e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,62 @@
+package Server;
+
+import Shared.Protocol;
+
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Content addressing over the catalog: which file has a given SHA-256, and where a CHUNK_SIZE
+// piece with a given SHA-256 can be read. Uploads use it to skip bytes the server already has.
+// FileCatalog updates it under its lock; lookups come from any thread.
+final class ChunkIndex {
+    static final class Location {
+        final Path path;
+        final long offset;
+        final int length;
+
+        Location(Path path, long offset, int length) {
+            this.path = path;
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+
+    private final ConcurrentHashMap<String, FileCatalog.Entry> files = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, Location> chunks = new ConcurrentHashMap<>();
+
+    void add(FileCatalog.Entry entry) {
+        if (entry.hash != null) {
+            files.put(entry.hash, entry);
+        }
+        List<String> chunkHashes = entry.chunks;
+        if (chunkHashes != null) {
+            for (int i = 0; i < chunkHashes.size(); i++) {
+                long offset = (long) i * Protocol.CHUNK_SIZE;
+                int length = (int) Math.min(Protocol.CHUNK_SIZE, entry.size - offset);
+                chunks.put(chunkHashes.get(i), new Location(entry.path, offset, length));
+            }
+        }
+    }
+
+    // Only mappings that point at this entry go; the caller re-adds any other file with the
+    // same content
+    void remove(FileCatalog.Entry entry) {
+        if (entry.hash != null) {
+            files.remove(entry.hash, entry);
+        }
+        if (entry.chunks != null) {
+            for (String chunk : entry.chunks) {
+                chunks.computeIfPresent(chunk, (hash, location) -> location.path.equals(entry.path) ? null : location);
+            }
+        }
+    }
+
+    FileCatalog.Entry file(String hash) {
+        return hash == null ? null : files.get(hash);
+    }
+
+    Location chunk(String hash) {
+        return chunks.get(hash);
+    }
+}
@@ -1,291 +1,272 @@
 package Server;
 
+import Shared.Compression;
+import Shared.FrameReader;
+import Shared.FrameWriter;
 import Shared.Message;
-import com.google.gson.Gson;
+import Shared.Protocol;
 
 import java.io.*;
 import java.net.Socket;
-import java.net.URL;
-import java.util.ArrayList;
-import java.util.List;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+// Blocking mode: one thread per client reading the socket stream, plus a writer that drains
+// the client's outbound queue so a stalled socket only ever blocks its own writer. The writer
+// leaves frames in the stream's buffer while more are queued and flushes them in one write.
+public class ClientHandler extends ClientSession implements Runnable {
+    private static final long LINGER_NANOS = TimeUnit.MICROSECONDS.toNanos(ServerConfig.WRITE_LINGER_MICROS);
 
-public class ClientHandler implements Runnable {
     private final Socket socket;
-    private DataInputStream in;
-    private DataOutputStream out;
-    private final List<ClientHandler> allClients;
-    private String username;
+    private final Executor writerExecutor;
+    private FrameReader in;
+    private FrameWriter out;
+    // Upload bytes pass through this on their way to disk; allocated on the first upload
+    private byte[] uploadBuffer;
+    // Only needed when the socket has no channel for transferTo
+    private ByteBuffer copyBuffer;
 
-    public ClientHandler(Socket socket, List<ClientHandler> allClients) {
+    public ClientHandler(Socket socket, ClientRegistry allClients, RoomManager rooms, FileCatalog files,
+                         Executor writerExecutor) {
+        super(allClients, rooms, files);
         this.socket = socket;
-        this.allClients = allClients;
+        this.writerExecutor = writerExecutor;
         try {
-            this.in = new DataInputStream(socket.getInputStream());
-            this.out = new DataOutputStream(socket.getOutputStream());
+            socket.setTcpNoDelay(ServerConfig.TCP_NO_DELAY);
+            this.in = new FrameReader(new CountingInputStream(socket.getInputStream()));
+            this.out = new FrameWriter(socket.getOutputStream(), Math.max(64 * 1024, ServerConfig.WRITE_BATCH_BYTES));
         } catch (IOException e) {
-            e.printStackTrace();
+            Log.error("Error setting up connection " + socket.getRemoteSocketAddress() + ": " + e.getMessage());
         }
     }
 
-    private void sendMessage(String msg) throws IOException {
-        out.writeBytes(msg + "\n");
-        out.flush();
-    }
-
     @Override
     public void run() {
         try {
+            if (in == null) {
+                return; // Logged by the constructor
+            }
+            Protocol.accept(in, out);
+            writerExecutor.execute(this::writeLoop);
+            // Only now does the wire format for broadcasts to this client exist
+            allClients.add(this);
+            Message received = new Message();
             while (true) {
-                StringBuilder jsonBuilder = new StringBuilder();
-                int byteRead;
-                while ((byteRead = in.read()) != -1) {
-                    char c = (char) byteRead;
-                    if (c == '\n') break;
-                    jsonBuilder.append(c);
-                }
-                if (byteRead == -1) break;
+                Message message = in.readMessage(received);
+                if (message == null) break;
 
-                String json = jsonBuilder.toString();
-                Gson gson = new Gson();
-                Message message = gson.fromJson(json, Message.class);
-
-                switch (message.type) {
-                    case Message.LOGIN:
-                        handleLogin(message.sender, message.content);
-                        break;
-                    case Message.CHAT:
-                        broadcast(message.sender + ": " + message.content);
-                        break;
-                    case Message.FILE_LIST:
-                        sendFileList();
-                        break;
-                    case Message.FILE_UPLOAD:
-                        receiveFile(message.content, (int) message.fileLength);
-                        break;
-                    case Message.FILE_DOWNLOAD:
-                        sendFile(message.content);
-                        break;
-                    case Message.LOGOUT:
-                        allClients.remove(this);
-                        if (username != null) {
-                            broadcast(username + " left the chat.");
-                        }
-                        socket.close();
-                        return; // Exit the run loop
+                if (!handleMessage(message)) {
+                    return; // Exit the run loop
                 }
+                receiveUploadData();
             }
         } catch (Exception e) {
-            System.out.println("Error in ClientHandler: " + e.getMessage());
+            Log.warn("Error in ClientHandler: " + e.getMessage());
         } finally {
-            try {
-                allClients.remove(this);
-                if (username != null) {
-                    broadcast(username + " left the chat.");
-                }
-                socket.close();
-            } catch (IOException e) {
-                System.out.println("Error closing socket: " + e.getMessage());
-            }
+            disconnect();
         }
     }
 
-    private void sendFile(String fileName) throws IOException {
-        // Check in src/main/resources/Server/Files
-        File serverDir = new File("src/main/resources/Server/Files");
-        File serverFile = new File(serverDir, fileName);
-        if (serverFile.exists()) {
-            sendFileFromPath(serverFile);
-            return;
+    private void receiveUploadData() throws IOException {
+        if (uploadRemaining() > 0 && uploadBuffer == null) {
+            uploadBuffer = new byte[64 * 1024];
+        }
+        long remaining;
+        while ((remaining = uploadRemaining()) > 0) {
+            int bytesRead = in.stream().read(uploadBuffer, 0, (int) Math.min(uploadBuffer.length, remaining));
+            if (bytesRead == -1) break;
+            acceptUploadData(uploadBuffer, 0, bytesRead);
         }
+    }
 
-        // Also check via classpath in case it's not in the source directory yet
+    private void writeLoop() {
         try {
-            URL resourceUrl = getClass().getClassLoader().getResource("Server/Files/" + fileName);
-            if (resourceUrl != null) {
-                File file = new File(resourceUrl.toURI());
-                sendFileFromPath(file);
-                return;
+            // Frame bytes not flushed yet, and until when to wait for more before flushing them
+            long buffered = 0;
+            long lingerUntil = 0;
+            while (true) {
+                Outbound item;
+                if (buffered == 0) {
+                    item = outbound.take();
+                    if (item == null) {
+                        break;
+                    }
+                } else {
+                    item = outbound.poll();
+                    if (item == null && LINGER_NANOS > 0) {
+                        item = outbound.take(lingerUntil - System.nanoTime());
+                    }
+                    if (item == null) {
+                        flushFrames();
+                        buffered = 0;
+                        continue;
+                    }
+                }
+                if (item instanceof OutboundFile) {
+                    writeFile((OutboundFile) item);
+                } else if (item instanceof OutboundRange) {
+                    writeRange((OutboundRange) item);
+                } else {
+                    if (buffered == 0) {
+                        lingerUntil = System.nanoTime() + LINGER_NANOS;
+                    }
+                    buffered += writeFrame((OutboundMessage) item);
+                    if (buffered >= ServerConfig.WRITE_BATCH_BYTES) {
+                        flushFrames();
+                        buffered = 0;
+                    }
+                    continue;
+                }
+                // Whatever of the file or chunk went through the stream
+                out.flush();
+                buffered = 0;
             }
-        } catch (Exception e) {
-            System.out.println("Error accessing resource file " + fileName + ": " + e.getMessage());
+        } catch (IOException e) {
+            Log.warn("Error writing to client: " + e.getMessage());
+            requestDisconnect();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            releaseOutboundCompression();
         }
-
-        // If not found, send error
-        Message error = new Message(Message.FILE_DOWNLOAD, "Server", "File not found: " + fileName);
-        sendMessage(new Gson().toJson(error));
     }
 
-    private void sendFileFromPath(File file) throws IOException {
-        Gson gson = new Gson();
-        Message metadata = new Message(Message.FILE_DOWNLOAD, "Server", file.getName(), file.length());
-        sendMessage(gson.toJson(metadata));
+    private int writeFrame(OutboundMessage message) throws IOException {
+        byte[] frame = message.frame(out.getVersion(), outboundCompression());
+        out.stream().write(frame);
+        Metrics.sent(message, frame.length);
+        return frame.length;
+    }
 
-        try (FileInputStream fis = new FileInputStream(file)) {
-            byte[] buffer = new byte[4096];
-            int bytesRead;
-            long totalBytesSent = 0;
-            while ((bytesRead = fis.read(buffer)) != -1) {
-                out.write(buffer, 0, bytesRead);
-                totalBytesSent += bytesRead;
-            }
-            out.flush();
-            System.out.println("Sent file " + file.getName() + " (" + totalBytesSent + " bytes)");
-        }
+    private void flushFrames() throws IOException {
+        out.flush();
+        Metrics.wrote();
     }
 
-    private void receiveFile(String filename, int fileLength) throws IOException {
-        byte[] data = new byte[fileLength];
-        int totalBytesRead = 0;
-        while (totalBytesRead < fileLength) {
-            int bytesRead = in.read(data, totalBytesRead, fileLength - totalBytesRead);
-            if (bytesRead == -1) break;
-            totalBytesRead += bytesRead;
-        }
-        System.out.println("Received " + totalBytesRead + " bytes for file " + filename);
-        if (totalBytesRead == fileLength) {
-            saveUploadedFile(filename, data);
-            broadcast(username + " uploaded file " + filename);
-            // Immediately update the file list for all clients
-            sendFileListToAllClients();
-        } else {
-            System.out.println("Incomplete file upload: " + filename);
+    private void writeFile(OutboundFile file) throws IOException {
+        try {
+            writeFrame(file.metadata);
+            // The metadata, and any frames before it, have to reach the socket before the file
+            // bytes that bypass the stream
+            flushFrames();
+            SocketChannel channel = socket.getChannel();
+            if (channel != null) {
+                FileTransfer.transferTo(file, channel);
+            } else {
+                if (copyBuffer == null) {
+                    copyBuffer = ByteBuffer.allocate(FileTransfer.COPY_BUFFER_SIZE);
+                }
+                FileTransfer.copy(file, out.stream(), copyBuffer);
+            }
+            Metrics.downloaded(file.size);
+            Log.info("Sent file " + file.name + " (" + file.size + " bytes)");
+        } finally {
+            file.release();
         }
     }
 
-    private void saveUploadedFile(String filename, byte[] data) throws IOException {
-        File serverDir = new File("src/main/resources/Server/Files");
-        if (!serverDir.exists()) {
-            serverDir.mkdirs();
-            System.out.println("Created directory: " + serverDir.getAbsolutePath());
+    // A range comes up once for its reply, which opens its stream, and then once per chunk
+    private void writeRange(OutboundRange range) throws IOException {
+        Compression compression = outboundCompression();
+        if (!range.started) {
+            range.started = true;
+            writeFrame(range.header);
+            if (range.done()) {
+                finishRange(range);
+            } else {
+                openStream(range);
+            }
+            return;
         }
-
-        File file = new File(serverDir, filename);
-        try (FileOutputStream fos = new FileOutputStream(file)) {
-            fos.write(data);
-            System.out.println("Saved file to: " + file.getAbsolutePath());
-            System.out.println("Please refresh the project in IntelliJ (Ctrl+Alt+Y) to see the updated files.");
+        try {
+            ByteBuffer frame = range.nextChunk(out.getVersion(), compression);
+            outbound.sent(range, range.data().remaining());
+            Metrics.sent(Message.FILE_CHUNK, frame.remaining());
+            Metrics.downloaded(range.data().remaining());
+            out.stream().write(frame.array(), frame.arrayOffset(), frame.remaining());
+            // Each chunk header, and any frames before it, has to reach the socket before its bytes
+            flushFrames();
+            WritableByteChannel channel = socket.getChannel();
+            if (channel == null) {
+                channel = Channels.newChannel(out.stream());
+            }
+            while (range.hasData()) {
+                channel.write(range.data());
+            }
         } catch (IOException e) {
-            System.err.println("Failed to save file " + file.getAbsolutePath() + ": " + e.getMessage());
+            // The queue no longer releases a stream whose last chunk was taken
+            if (range.done()) {
+                range.release();
+            }
             throw e;
         }
+        if (range.done()) {
+            finishRange(range);
+        }
     }
 
-    private void sendFileList() throws IOException {
-        List<String> fileNames = new ArrayList<>();
+    private static void finishRange(OutboundRange range) {
+        Log.info("Sent " + (range.end - range.start) + " bytes of file " + range.name
+                + " from offset " + range.start);
+        range.release();
+    }
 
-        // Get files from src/main/resources/Server/Files
-        File serverDir = new File("src/main/resources/Server/Files");
-        if (serverDir.exists()) {
-            File[] serverFiles = serverDir.listFiles();
-            if (serverFiles != null) {
-                System.out.println("Found " + serverFiles.length + " items in directory: " + serverDir.getAbsolutePath());
-                for (File file : serverFiles) {
-                    System.out.println("Item: " + file.getName() + " | isFile: " + file.isFile() + " | isDirectory: " + file.isDirectory());
-                    if (file.isFile()) {
-                        fileNames.add(file.getName());
-                    }
-                }
-            }
-        } else {
-            System.out.println("Directory does not exist: " + serverDir.getAbsolutePath());
-        }
+    @Override
+    protected void onOutboundReady() {
+        // The writer is already waiting on the queue
+    }
 
-        // Also check via classpath to include any files not yet in the source directory
+    @Override
+    protected void requestDisconnect() {
+        // Closing the socket makes the reader thread fail and run disconnect()
         try {
-            URL resourceUrl = getClass().getClassLoader().getResource("Server/Files");
-            if (resourceUrl != null) {
-                File resourceDir = new File(resourceUrl.toURI());
-                File[] resourceFiles = resourceDir.listFiles();
-                if (resourceFiles != null) {
-                    System.out.println("Found " + resourceFiles.length + " items in resource directory: " + resourceDir.getAbsolutePath());
-                    for (File file : resourceFiles) {
-                        System.out.println("Item: " + file.getName() + " | isFile: " + file.isFile() + " | isDirectory: " + file.isDirectory());
-                        if (file.isFile() && !fileNames.contains(file.getName())) {
-                            fileNames.add(file.getName());
-                        }
-                    }
-                }
-            } else {
-                System.out.println("Resource directory not found: Server/Files");
-            }
-        } catch (Exception e) {
-            System.out.println("Error accessing resource directory: " + e.getMessage());
+            socket.close();
+        } catch (IOException e) {
+            Log.warn("Error closing socket: " + e.getMessage());
         }
+    }
 
-        String fileListStr = fileNames.isEmpty() ? "NO_FILES" : String.join(",", fileNames);
-        System.out.println("Sending file list to client: " + fileListStr);
-        Gson gson = new Gson();
-        Message message = new Message(Message.FILE_LIST, "Server", fileListStr);
-        sendMessage(gson.toJson(message));
+    @Override
+    protected void closeConnection() throws IOException {
+        socket.close();
     }
 
-    private void sendFileListToAllClients() throws IOException {
-        List<String> fileNames = new ArrayList<>();
+    @Override
+    protected String remoteAddress() {
+        return String.valueOf(socket.getInetAddress());
+    }
 
-        // Get files from src/main/resources/Server/Files
-        File serverDir = new File("src/main/resources/Server/Files");
-        if (serverDir.exists()) {
-            File[] serverFiles = serverDir.listFiles();
-            if (serverFiles != null) {
-                for (File file : serverFiles) {
-                    if (file.isFile()) {
-                        fileNames.add(file.getName());
-                    }
-                }
-            }
-        }
+    @Override
+    protected int protocolVersion() {
+        return in.getVersion();
+    }
 
-        // Also check via classpath
-        try {
-            URL resourceUrl = getClass().getClassLoader().getResource("Server/Files");
-            if (resourceUrl != null) {
-                File resourceDir = new File(resourceUrl.toURI());
-                File[] resourceFiles = resourceDir.listFiles();
-                if (resourceFiles != null) {
-                    for (File file : resourceFiles) {
-                        if (file.isFile() && !fileNames.contains(file.getName())) {
-                            fileNames.add(file.getName());
-                        }
-                    }
-                }
-            }
-        } catch (Exception e) {
-            System.out.println("Error accessing resource directory: " + e.getMessage());
+    // Counts the bytes read from the socket, a buffer fill at a time
+    private static final class CountingInputStream extends FilterInputStream {
+        CountingInputStream(InputStream in) {
+            super(in);
         }
 
-        String fileListStr = fileNames.isEmpty() ? "NO_FILES" : String.join(",", fileNames);
-        Gson gson = new Gson();
-        Message message = new Message(Message.FILE_LIST, "Server", fileListStr);
-        synchronized (allClients) {
-            for (ClientHandler client : allClients) {
-                client.sendMessage(gson.toJson(message));
+        @Override
+        public int read() throws IOException {
+            int b = in.read();
+            if (b != -1) {
+                Metrics.bytesIn(1);
             }
+            return b;
         }
-    }
 
-    private void broadcast(String msg) throws IOException {
-        Gson gson = new Gson();
-        Message message = new Message(Message.CHAT, "Server", msg);
-        String json = gson.toJson(message);
-        synchronized (allClients) {
-            for (ClientHandler client : allClients) {
-                if (client != this) {
-                    client.sendMessage(json);
-                }
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            int count = in.read(buffer, offset, length);
+            if (count > 0) {
+                Metrics.bytesIn(count);
             }
+            return count;
         }
     }
-
-    private void handleLogin(String username, String password) throws IOException {
-        boolean authenticated = Server.authenticate(username, password);
-        Gson gson = new Gson();
-        Message response = new Message(Message.LOGIN_RESPONSE, "Server", authenticated ? "success" : "failure");
-        sendMessage(gson.toJson(response));
-
-        if (authenticated) {
-            this.username = username;
-            System.out.println("Client connected successfully: " + username + " (" + socket.getInetAddress() + ")");
-            broadcast(username + " joined the chat!");
-        }
-    }
-}
\ No newline at end of file
+}
@@ -0,0 +1,56 @@
+package Server;
+
+import java.util.Iterator;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Every connected session, plus an index of the logged-in ones by username. Both are concurrent
+// maps: adding and removing is O(1) without a global lock, and iteration never throws or blocks
+// while other threads join and leave, so fan-out can walk it directly.
+public final class ClientRegistry implements Iterable<ClientSession> {
+    private final Set<ClientSession> sessions = ConcurrentHashMap.newKeySet();
+    private final ConcurrentHashMap<String, ClientSession> byUsername = new ConcurrentHashMap<>();
+
+    void add(ClientSession session) {
+        sessions.add(session);
+    }
+
+    // Also drops the username entry, unless a newer login for the same name has replaced it
+    void remove(ClientSession session) {
+        sessions.remove(session);
+        String username = session.getUsername();
+        if (username != null) {
+            byUsername.remove(username, session);
+        }
+    }
+
+    // Called before the session's username changes. A second login with the same name takes over
+    // direct messages for that name.
+    void bindUsername(ClientSession session, String username) {
+        String previous = session.getUsername();
+        if (previous != null) {
+            byUsername.remove(previous, session);
+        }
+        byUsername.put(username, session);
+    }
+
+    // The session logged in as username, or null
+    ClientSession find(String username) {
+        return username == null ? null : byUsername.get(username);
+    }
+
+    public int size() {
+        return sessions.size();
+    }
+
+    public int loggedIn() {
+        return byUsername.size();
+    }
+
+    // Weakly consistent: sees every session present for the whole iteration, and may or may not
+    // see ones that join or leave meanwhile
+    @Override
+    public Iterator<ClientSession> iterator() {
+        return sessions.iterator();
+    }
+}
@@ -0,0 +1,655 @@
+package Server;
+
+import Shared.BinaryCodec;
+import Shared.Compression;
+import Shared.EncodeBuffer;
+import Shared.JsonCodec;
+import Shared.Message;
+import Shared.Protocol;
+
+import java.io.*;
+import java.nio.channels.FileChannel;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.StringJoiner;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+// Protocol logic shared by every server mode. Everything sent to the client goes through its
+// OutboundQueue; subclasses provide the writer that drains it and the socket handling.
+public abstract class ClientSession {
+    protected final ClientRegistry allClients;
+    protected final RoomManager rooms;
+    protected final FileCatalog files;
+    protected final OutboundQueue outbound = new OutboundQueue();
+    protected String username;
+    // Rooms this session has joined; only touched on the connection's own thread
+    private final Set<String> joinedRooms = new HashSet<>();
+
+    // Set from FILE_UPLOAD, UPLOAD_RESUME or DELTA_UPLOAD until the upload is complete; the
+    // FILE_UPLOAD result goes out with the requestId of the request that started it
+    private PartialUpload upload;
+    private long uploadRequestId;
+
+    private final AtomicBoolean disconnected = new AtomicBoolean();
+
+    // Set at login if the client offered compression and the server allows it
+    private volatile boolean compressOutbound;
+    // Set at login if the client offered to grant windows for its ranged downloads
+    private volatile boolean streamWindows;
+    // Set at login if the client reads HISTORY batches, so joining a room replays its chat
+    private volatile boolean readsHistory;
+    // The writer's, for frames and download chunks; the reader's, for compressed upload chunks
+    private Compression outboundCompression;
+    private Compression chunkCompression;
+
+    protected ClientSession(ClientRegistry allClients, RoomManager rooms, FileCatalog files) {
+        this.allClients = allClients;
+        this.rooms = rooms;
+        this.files = files;
+    }
+
+    // Called after an item was queued, so the writer can pick it up
+    protected abstract void onOutboundReady();
+
+    // Asks the connection's own thread to disconnect; used from other threads
+    protected abstract void requestDisconnect();
+
+    protected abstract void closeConnection() throws IOException;
+
+    protected abstract String remoteAddress();
+
+    // Wire version negotiated in the handshake
+    protected abstract int protocolVersion();
+
+    // Whether the calling thread may wait for this client's queue to drain
+    protected boolean senderMayBlock() {
+        return !EventLoop.inAnyEventLoop();
+    }
+
+    public String getUsername() {
+        return username;
+    }
+
+    public int outboundDepth() {
+        return outbound.depth();
+    }
+
+    public int outboundHighWater() {
+        return outbound.highWater();
+    }
+
+    // For the writer only: its compression, or null while the client has not agreed to it
+    protected Compression outboundCompression() {
+        if (!compressOutbound) {
+            return null;
+        }
+        if (outboundCompression == null) {
+            outboundCompression = new Compression();
+        }
+        return outboundCompression;
+    }
+
+    // For the writer, once it is done with the connection
+    protected void releaseOutboundCompression() {
+        if (outboundCompression != null) {
+            outboundCompression.end();
+            outboundCompression = null;
+        }
+    }
+
+    // For the writer, once a range's reply is written: its chunks now take turns with the other
+    // streams, whenever no message is waiting
+    protected void openStream(OutboundRange range) {
+        outbound.open(range, streamWindows ? ServerConfig.STREAM_WINDOW_BYTES : Long.MAX_VALUE);
+    }
+
+    protected void sendMessage(Message message) {
+        enqueue(new OutboundMessage(message, false));
+    }
+
+    // Marks a message as the answer to a request, so the client can match them up
+    private static Message reply(long requestId, Message message) {
+        message.requestId = requestId;
+        return message;
+    }
+
+    // Fan-out path: one OutboundMessage shared by every recipient, so it is encoded only once
+    protected void deliver(OutboundMessage message) {
+        enqueue(message);
+    }
+
+    private void enqueue(Outbound item) {
+        switch (outbound.offer(item, senderMayBlock())) {
+            case ACCEPTED:
+                onOutboundReady();
+                break;
+            case OVERFLOW:
+                // Closing the queue makes every later offer a no-op, so this runs once per client
+                outbound.close();
+                Log.warn("Disconnecting slow client " + (username != null ? username : remoteAddress()));
+                requestDisconnect();
+                break;
+            default:
+                break;
+        }
+    }
+
+    // Queues the FILE_DOWNLOAD metadata and the raw file bytes as one item. A popular file is
+    // sent from the HotFileCache instead of being opened again.
+    protected void sendFileFromPath(FileCatalog.Entry entry, long requestId) throws IOException {
+        HotFileCache.CachedFile cached = files.cache().get(entry);
+        FileChannel channel = cached == null ? FileChannel.open(entry.path, StandardOpenOption.READ) : null;
+        long size = cached != null ? cached.entry.size : channel.size();
+        Message metadata = reply(requestId, new Message(Message.FILE_DOWNLOAD, "Server", entry.name, size));
+        enqueue(new OutboundFile(new OutboundMessage(metadata, false), entry.name, channel, cached, size));
+    }
+
+    // Returns false once the client has logged out. Replies carry the request's requestId.
+    protected boolean handleMessage(Message message) throws IOException {
+        Metrics.received(message.type);
+        switch (message.type) {
+            case Message.LOGIN:
+                handleLogin(message.sender, message.content, message.flags, message.requestId);
+                break;
+            case Message.CHAT:
+                sendToRoom(message.room != null ? message.room : RoomManager.LOBBY, message.content);
+                break;
+            case Message.DIRECT:
+                sendDirect(message.recipient, message.content);
+                break;
+            case Message.FILE_LIST:
+                sendFileList(message.requestId);
+                break;
+            case Message.CATALOG_SNAPSHOT:
+                files.subscribe(this);
+                break;
+            case Message.FILE_UPLOAD:
+                beginUpload(message.content, message.fileLength, message.requestId);
+                break;
+            case Message.FILE_DOWNLOAD:
+                sendFile(message.content, message.requestId);
+                break;
+            case Message.DOWNLOAD_RANGE:
+                sendRange(message.content, message.offset, message.fileLength, message.requestId);
+                break;
+            case Message.UPLOAD_RESUME:
+                resumeUpload(message.content, message.fileLength, message.digest, message.chunkHashes,
+                        message.requestId);
+                break;
+            case Message.FILE_CHUNK:
+                beginChunk(message.offset, message.fileLength, message.checksum, message.flags);
+                break;
+            case Message.SIGNATURE:
+                sendSignature(message.content, message.requestId);
+                break;
+            case Message.WINDOW_UPDATE:
+                if (outbound.grant(message.requestId, message.fileLength)) {
+                    onOutboundReady();
+                }
+                break;
+            case Message.DELTA_UPLOAD:
+                beginDeltaUpload(message.content, message.fileLength, message.digest, message.requestId);
+                break;
+            case Message.JOIN_ROOM:
+                joinRoom(message.room);
+                break;
+            case Message.LEAVE_ROOM:
+                leaveRoom(message.room);
+                break;
+            case Message.ROOM_LIST:
+                sendRoomList(message.requestId);
+                break;
+            case Message.METRICS:
+                sendMetrics(message.requestId);
+                break;
+            case Message.HISTORY:
+                sendHistoryPage(message.room, message.offset, message.fileLength, message.requestId);
+                break;
+            case Message.LOGOUT:
+                disconnect();
+                return false;
+        }
+        return true;
+    }
+
+    // Removes the client and tells the others; safe to call more than once
+    protected void disconnect() {
+        if (!disconnected.compareAndSet(false, true)) return;
+        allClients.remove(this);
+        files.unsubscribe(this);
+        for (String room : joinedRooms) {
+            rooms.leave(this, room, null);
+        }
+        joinedRooms.clear();
+        if (upload != null) {
+            Log.info("Incomplete file upload: " + upload.name + " (" + upload.received()
+                    + " of " + upload.length + " bytes" + (upload.resumable() ? ", kept for resuming)" : ")"));
+            upload.interrupt();
+            upload = null;
+        }
+        if (chunkCompression != null) {
+            chunkCompression.end();
+            chunkCompression = null;
+        }
+        if (username != null) {
+            broadcast(username + " left the chat.");
+        }
+        outbound.close();
+        try {
+            closeConnection();
+        } catch (IOException e) {
+            Log.warn("Error closing socket: " + e.getMessage());
+        }
+    }
+
+    protected long uploadRemaining() {
+        return upload == null ? 0 : upload.remaining();
+    }
+
+    // Feeds raw upload bytes; the caller never passes more than uploadRemaining()
+    protected void acceptUploadData(byte[] buffer, int offset, int length) throws IOException {
+        Metrics.uploaded(length);
+        if (!upload.write(buffer, offset, length)) {
+            // A bad chunk: another UPLOAD_RESUME reply says where to continue
+            Message resend = reply(uploadRequestId, new Message(Message.UPLOAD_RESUME, "Server", upload.name, upload.length));
+            resend.offset = upload.received();
+            sendMessage(resend);
+            return;
+        }
+        if (upload.remaining() == 0) {
+            upload.fillLocal();
+        }
+        if (upload.complete()) {
+            finishUpload();
+        }
+    }
+
+    // The bytes are streamed to a temp file as they arrive, so memory use does not depend on
+    // the file size
+    private void beginUpload(String filename, long fileLength, long requestId) throws IOException {
+        checkNoUpload(fileLength);
+        upload = PartialUpload.open(files.uploadDirectory(), safeFileName(filename), fileLength);
+        uploadRequestId = requestId;
+        if (fileLength == 0) {
+            finishUpload();
+        }
+    }
+
+    // Replies with how many bytes of the file the server already has; the client sends the rest
+    // as FILE_CHUNKs. With chunk hashes, the reply lists the only chunks the client has to send.
+    // A file the server already has is done at once. Another connection still writing the same
+    // file is an error the client retries later. Unless the reply says the upload failed, the FILE_UPLOAD
+    // result follows once the file is saved.
+    private void resumeUpload(String filename, long fileLength, String digest, String chunkHashes, long requestId)
+            throws IOException {
+        checkNoUpload(fileLength);
+        String name = safeFileName(filename);
+        Message reply = reply(requestId, new Message(Message.UPLOAD_RESUME, "Server", name, fileLength));
+        FileCatalog.Entry existing = files.findByHash(digest);
+        if (existing != null && existing.size == fileLength) {
+            Path path = PartialUpload.link(files.uploadDirectory(), name, existing.path);
+            files.added(name, path, digest);
+            reply.offset = fileLength;
+            reply.chunkHashes = chunkHashes != null ? "" : null;
+            sendMessage(reply);
+            sendUploadResult(requestId, name);
+            Log.info("Upload of " + name + " has the content of " + existing.name + ", nothing to receive");
+            broadcast(username + " uploaded file " + name);
+            return;
+        }
+        List<String> needed;
+        try {
+            upload = PartialUpload.resume(files.uploadDirectory(), name, fileLength, digest);
+            uploadRequestId = requestId;
+            needed = chunkHashes == null ? null
+                    : upload.plan(chunkHashes.isEmpty() ? new String[0] : chunkHashes.split(","), files);
+        } catch (IOException e) {
+            if (upload != null) {
+                upload.interrupt();
+                upload = null;
+            }
+            reply.content = "Upload failed: " + e.getMessage();
+            sendMessage(reply);
+            return;
+        }
+        reply.offset = upload.received();
+        if (needed != null) {
+            reply.chunkHashes = String.join(",", needed);
+        }
+        sendMessage(reply);
+        if (upload.received() > 0) {
+            Log.info("Resuming upload of " + name + " at " + upload.received() + " of " + fileLength + " bytes");
+        }
+        upload.fillLocal();
+        if (upload.complete()) {
+            finishUpload();
+        }
+    }
+
+    // The client's next step is a DELTA_UPLOAD against this version, or a normal upload if the
+    // delta would not be smaller
+    private void sendSignature(String fileName, long requestId) {
+        FileCatalog.Entry entry = files.find(fileName);
+        if (entry == null) {
+            sendMessage(reply(requestId, new Message(Message.SIGNATURE, "Server", "File not found: " + fileName)));
+            return;
+        }
+        files.signature(entry).whenComplete((signature, error) -> {
+            if (error != null) {
+                deliver(new OutboundMessage(reply(requestId, new Message(Message.SIGNATURE, "Server",
+                        "Cannot read " + fileName + ": " + error.getMessage())), false));
+                return;
+            }
+            Message reply = reply(requestId, new Message(Message.SIGNATURE, "Server", entry.name, signature.length));
+            reply.digest = entry.hash;
+            deliver(new OutboundMessage(reply, false, signature));
+        });
+    }
+
+    // The delta's bytes are received like an upload's; the new version is built when they are in
+    private void beginDeltaUpload(String filename, long deltaLength, String digest, long requestId)
+            throws IOException {
+        checkNoUpload(deltaLength);
+        String name = safeFileName(filename);
+        FileCatalog.Entry base = files.find(name);
+        if (base == null) {
+            throw new IOException("No file " + name + " to apply a delta to");
+        }
+        upload = PartialUpload.delta(files.uploadDirectory(), name, deltaLength, base.path, digest);
+        uploadRequestId = requestId;
+        if (deltaLength == 0) {
+            finishUpload();
+        }
+    }
+
+    private void beginChunk(long offset, long length, long checksum, long flags) throws IOException {
+        if (upload == null) {
+            throw new IOException("File chunk without an upload");
+        }
+        Compression compression = null;
+        if ((flags & Protocol.FEATURE_DEFLATE) != 0) {
+            if (chunkCompression == null) {
+                chunkCompression = new Compression();
+            }
+            compression = chunkCompression;
+        }
+        upload.beginChunk(offset, length, checksum, compression);
+    }
+
+    private void checkNoUpload(long fileLength) throws IOException {
+        if (fileLength < 0) {
+            throw new IOException("Invalid file length " + fileLength);
+        }
+        if (upload != null) {
+            throw new IOException("Upload of " + upload.name + " is still in progress");
+        }
+    }
+
+    // A file that fails to save, such as one that does not match its digest, is reported to the
+    // client, which can send it again on the same connection
+    private void finishUpload() {
+        PartialUpload finished = upload;
+        upload = null;
+
+        Log.info("Received " + finished.length + (finished.isDelta() ? " delta bytes" : " bytes")
+                + " for file " + finished.name);
+        try {
+            Path path = finished.commit(files);
+            files.added(finished.name, path, finished.hash());
+            Log.info("Saved file to: " + path.toAbsolutePath());
+            Log.info("Please refresh the project in IntelliJ (Ctrl+Alt+Y) to see the updated files.");
+        } catch (IOException e) {
+            Log.error("Failed to save file " + finished.name + ": " + e.getMessage());
+            sendUploadResult(uploadRequestId, "Upload failed: " + e.getMessage());
+            return;
+        }
+        sendUploadResult(uploadRequestId, finished.name);
+        // Catalog subscribers get the new file as a FILE_ADDED change
+        broadcast(username + " uploaded file " + finished.name);
+    }
+
+    // Only clients that gave the upload a requestId wait for its result: the file's name, or why
+    // it failed
+    private void sendUploadResult(long requestId, String result) {
+        if (requestId != 0) {
+            sendMessage(reply(requestId, new Message(Message.FILE_UPLOAD, "Server", result)));
+        }
+    }
+
+    // Uploads land in the files directory itself: no paths, and no hidden names that could clash
+    // with the temp directory
+    private static String safeFileName(String filename) {
+        String name = filename == null ? "" : new File(filename).getName();
+        return name.isEmpty() || name.startsWith(".") ? "_" + name : name;
+    }
+
+    private void sendFile(String fileName, long requestId) throws IOException {
+        FileCatalog.Entry entry = files.find(fileName);
+        if (entry != null) {
+            try {
+                sendFileFromPath(entry, requestId);
+                return;
+            } catch (NoSuchFileException e) {
+                // Deleted before the watcher noticed
+                files.refresh(fileName);
+            }
+        }
+        sendMessage(reply(requestId, new Message(Message.FILE_DOWNLOAD, "Server", "File not found: " + fileName)));
+    }
+
+    // Sends fileLength bytes from offset (all the rest if 0) as checksummed chunks, so a client
+    // can resume a download from the last chunk it verified. A popular file is sent from the
+    // HotFileCache.
+    private void sendRange(String fileName, long offset, long length, long requestId) throws IOException {
+        FileCatalog.Entry entry = files.find(fileName);
+        if (entry != null) {
+            HotFileCache.CachedFile cached = files.cache().get(entry);
+            FileChannel channel = null;
+            if (cached == null) {
+                try {
+                    channel = FileChannel.open(entry.path, StandardOpenOption.READ);
+                } catch (NoSuchFileException e) {
+                    files.refresh(fileName);
+                }
+            }
+            if (cached != null || channel != null) {
+                long size = cached != null ? cached.entry.size : channel.size();
+                if (offset < 0 || length < 0 || offset > size) {
+                    if (channel != null) {
+                        channel.close();
+                    }
+                    sendMessage(reply(requestId, new Message(Message.DOWNLOAD_RANGE, "Server",
+                            "Invalid range of " + fileName + ": offset " + offset + " of " + size + " bytes")));
+                    return;
+                }
+                long end = length == 0 ? size : Math.min(size, offset + length);
+                // The reply carries the whole file's size and hash, so the client can tell
+                // whether its partial copy is of the same file
+                Message header = reply(requestId, new Message(Message.DOWNLOAD_RANGE, "Server", entry.name, size));
+                header.offset = offset;
+                header.digest = entry.size == size ? entry.hash : null;
+                enqueue(new OutboundRange(new OutboundMessage(header, false), entry.name, channel, cached, offset, end));
+                return;
+            }
+        }
+        sendMessage(reply(requestId, new Message(Message.DOWNLOAD_RANGE, "Server", "File not found: " + fileName)));
+    }
+
+    // Comma-separated names for clients that do not use catalog snapshots; served from the
+    // catalog, without touching the disk
+    private void sendFileList(long requestId) {
+        sendMessage(reply(requestId, new Message(Message.FILE_LIST, "Server", files.list())));
+    }
+
+    // Only the room's members get the message, not every connection
+    private void sendToRoom(String room, String text) {
+        if (username == null) {
+            sendMessage(new Message(Message.CHAT, "Server", "Log in before chatting."));
+            return;
+        }
+        if (!joinedRooms.contains(room)) {
+            sendMessage(roomNotice(room, "Join room " + room + " before chatting there."));
+            return;
+        }
+        OutboundMessage message = new OutboundMessage(roomNotice(room, username + ": " + text), true);
+        rooms.publish(room, this, message);
+        relay(Federation.ROOM, message.message());
+    }
+
+    private void joinRoom(String room) {
+        if (username == null) {
+            sendMessage(new Message(Message.CHAT, "Server", "Log in before joining rooms."));
+            return;
+        }
+        if (!RoomManager.isValidName(room)) {
+            sendMessage(new Message(Message.CHAT, "Server", "Invalid room name."));
+            return;
+        }
+        if (!joinedRooms.add(room)) {
+            sendMessage(roomNotice(room, "You are already in room " + room + "."));
+            return;
+        }
+        OutboundMessage announcement = new OutboundMessage(roomNotice(room, username + " joined room " + room), true);
+        rooms.join(this, room, announcement, new OutboundMessage(roomNotice(room, "You joined room " + room + "."), false));
+        relay(Federation.NOTICE, announcement.message());
+    }
+
+    private void leaveRoom(String room) {
+        if (room == null || !joinedRooms.remove(room)) {
+            sendMessage(roomNotice(room, "You are not in room " + room + "."));
+            return;
+        }
+        OutboundMessage announcement = new OutboundMessage(roomNotice(room, username + " left room " + room), true);
+        rooms.leave(this, room, announcement);
+        relay(Federation.NOTICE, announcement.message());
+        sendMessage(roomNotice(room, "You left room " + room + "."));
+    }
+
+    private void sendRoomList(long requestId) {
+        rooms.list().thenAccept(counts -> {
+            StringJoiner list = new StringJoiner(",");
+            counts.forEach((room, members) -> list.add(room + ":" + members));
+            sendMessage(reply(requestId, new Message(Message.ROOM_LIST, "Server", list.length() == 0 ? "NO_ROOMS" : list.toString())));
+        });
+    }
+
+    private void sendMetrics(long requestId) {
+        if (username == null || !ServerConfig.ADMINS.contains(username)) {
+            sendMessage(reply(requestId, new Message(Message.METRICS, "Server", "Only admins can see the server metrics.")));
+            return;
+        }
+        String metrics = JsonCodec.gson().toJson(Server.metrics().snapshot());
+        sendMessage(reply(requestId, new Message(Message.METRICS, "Server", metrics)));
+    }
+
+    boolean readsHistory() {
+        return readsHistory;
+    }
+
+    // Older chat of a room the client is in, up to HISTORY_PAGE_MAX messages at a time
+    private void sendHistoryPage(String room, long before, long count, long requestId) {
+        ChatLog history = rooms.history();
+        String refusal = history == null ? "The server keeps no chat history."
+                : room == null || !joinedRooms.contains(room) ? "Join room " + room + " before reading its history."
+                : null;
+        if (refusal != null) {
+            Message reply = reply(requestId, new Message(Message.HISTORY, "Server", refusal));
+            reply.room = room;
+            sendMessage(reply);
+            return;
+        }
+        int limit = (int) Math.min(count > 0 ? count : ServerConfig.HISTORY_REPLAY, ServerConfig.HISTORY_PAGE_MAX);
+        rooms.historyPage(room, before, Math.max(1, limit)).thenAccept(page -> sendHistory(room, page, requestId));
+    }
+
+    // The messages go as one batch after the reply, already encoded as they were logged; offset
+    // is where the next page of older ones starts
+    void sendHistory(String room, ChatLog.Page page, long requestId) {
+        EncodeBuffer batch = new EncodeBuffer();
+        for (ChatLog.Entry entry : page.entries) {
+            BinaryCodec.appendToBatch(batch, entry.message);
+        }
+        Message reply = reply(requestId, new Message(Message.HISTORY, "Server", "", batch.length()));
+        reply.room = room;
+        reply.offset = page.before;
+        deliver(new OutboundMessage(reply, false, batch.toByteArray()));
+    }
+
+    private static Message roomNotice(String room, String text) {
+        Message message = new Message(Message.CHAT, "Server", text);
+        message.room = room;
+        return message;
+    }
+
+    // One index lookup instead of a scan over every connection
+    private void sendDirect(String recipient, String text) {
+        if (username == null) {
+            sendMessage(new Message(Message.CHAT, "Server", "Log in before sending private messages."));
+            return;
+        }
+        ClientSession target = allClients.find(recipient);
+        if (target == null) {
+            sendMessage(new Message(Message.CHAT, "Server", "User " + recipient + " is not online."));
+            return;
+        }
+        Message direct = new Message(Message.DIRECT, username, text);
+        direct.recipient = recipient;
+        target.deliver(new OutboundMessage(direct, true));
+    }
+
+    protected void broadcast(String msg) {
+        OutboundMessage message = new OutboundMessage(new Message(Message.CHAT, "Server", msg), true);
+        for (ClientSession client : allClients) {
+            if (client != this) {
+                client.deliver(message);
+            }
+        }
+        relay(Federation.ALL, message.message());
+    }
+
+    // To the clients of the other server nodes, if there are any
+    private static void relay(String kind, Message event) {
+        Federation federation = Server.federation();
+        if (federation != null) {
+            federation.relay(kind, event);
+        }
+    }
+
+    // The reply accepts whichever of the offered features the server supports
+    private void handleLogin(String username, String password, long features, long requestId) {
+        boolean authenticated = Server.authenticate(username, password);
+        Message reply = reply(requestId, new Message(Message.LOGIN_RESPONSE, "Server", authenticated ? "success" : "failure"));
+        if (authenticated && (features & Protocol.FEATURE_DEFLATE) != 0 && ServerConfig.COMPRESSION
+                && protocolVersion() != Protocol.VERSION_LEGACY) {
+            reply.flags |= Protocol.FEATURE_DEFLATE;
+        }
+        if (authenticated && (features & Protocol.FEATURE_STREAM_WINDOWS) != 0 && ServerConfig.STREAM_WINDOW_BYTES > 0) {
+            reply.flags |= Protocol.FEATURE_STREAM_WINDOWS;
+        }
+        if (authenticated && (features & Protocol.FEATURE_HISTORY) != 0 && rooms.history() != null) {
+            reply.flags |= Protocol.FEATURE_HISTORY;
+        }
+        streamWindows = (reply.flags & Protocol.FEATURE_STREAM_WINDOWS) != 0;
+        readsHistory = (reply.flags & Protocol.FEATURE_HISTORY) != 0;
+        sendMessage(reply);
+        // A client that offered compression reads compressed frames from the start, so the reply
+        // itself may already be compressed
+        compressOutbound = (reply.flags & Protocol.FEATURE_DEFLATE) != 0;
+
+        if (authenticated) {
+            allClients.bindUsername(this, username);
+            this.username = username;
+            Log.info("Client connected successfully: " + username + " (" + remoteAddress()
+                    + (compressOutbound ? ", compressed" : "") + ")");
+            // Everyone starts in the lobby, which is where chat without a room goes
+            if (joinedRooms.add(RoomManager.LOBBY)) {
+                rooms.join(this, RoomManager.LOBBY, null, null);
+            }
+            broadcast(username + " joined the chat!");
+        }
+    }
+}
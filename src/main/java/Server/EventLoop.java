@@ -0,0 +1,137 @@
+package Server;
+
+import java.io.IOException;
+import java.net.StandardSocketOptions;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+
+// One selector thread serving many connections; other threads hand it work through execute()
+final class EventLoop implements Runnable {
+    private static final ThreadLocal<EventLoop> current = new ThreadLocal<>();
+
+    private final Selector selector;
+    private final Thread thread;
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    // Tasks for later, soonest first; only touched on the loop thread
+    private final PriorityQueue<Timer> timers = new PriorityQueue<>(Comparator.comparingLong(timer -> timer.due));
+
+    private static final class Timer {
+        final long due;
+        final Runnable task;
+
+        Timer(long due, Runnable task) {
+            this.due = due;
+            this.task = task;
+        }
+    }
+
+    EventLoop(int index) throws IOException {
+        this.selector = Selector.open();
+        this.thread = new Thread(this, "event-loop-" + index);
+    }
+
+    void start() {
+        thread.start();
+    }
+
+    boolean inEventLoop() {
+        return Thread.currentThread() == thread;
+    }
+
+    // True on any event loop thread; such threads must never block
+    static boolean inAnyEventLoop() {
+        return current.get() != null;
+    }
+
+    void execute(Runnable task) {
+        tasks.add(task);
+        if (!inEventLoop()) {
+            selector.wakeup();
+        }
+    }
+
+    // On the loop thread only: runs the task on it once delayNanos have passed
+    void schedule(Runnable task, long delayNanos) {
+        timers.add(new Timer(System.nanoTime() + delayNanos, task));
+    }
+
+    void register(SocketChannel channel, ClientRegistry allClients, RoomManager rooms, FileCatalog files) {
+        execute(() -> {
+            try {
+                channel.configureBlocking(false);
+                channel.setOption(StandardSocketOptions.TCP_NODELAY, ServerConfig.TCP_NO_DELAY);
+                NioConnection connection = new NioConnection(channel, this, allClients, rooms, files);
+                SelectionKey key = channel.register(selector, SelectionKey.OP_READ, connection);
+                connection.attach(key);
+            } catch (IOException e) {
+                Log.error("Error registering client: " + e.getMessage());
+                try {
+                    channel.close();
+                } catch (IOException closeException) {
+                    Log.error("Error closing client socket: " + closeException.getMessage());
+                }
+            }
+        });
+    }
+
+    @Override
+    public void run() {
+        current.set(this);
+        while (true) {
+            try {
+                Timer next = timers.peek();
+                if (next == null) {
+                    selector.select();
+                } else {
+                    long wait = next.due - System.nanoTime();
+                    if (wait > 0) {
+                        // select() counts in milliseconds, so a timer never fires early
+                        selector.select(Math.max(1, TimeUnit.NANOSECONDS.toMillis(wait + 999_999)));
+                    } else {
+                        selector.selectNow();
+                    }
+                }
+
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    NioConnection connection = (NioConnection) key.attachment();
+                    if (key.isValid() && key.isReadable()) {
+                        connection.onReadable();
+                    }
+                    if (key.isValid() && key.isWritable()) {
+                        connection.onWritable();
+                    }
+                }
+                // Also picks up writes queued by the connections handled above
+                runTasks();
+                runTimers();
+            } catch (Exception e) {
+                Log.error("Error in " + thread.getName() + ": " + e.getMessage());
+            }
+        }
+    }
+
+    private void runTimers() {
+        long now = System.nanoTime();
+        Timer timer;
+        while ((timer = timers.peek()) != null && timer.due <= now) {
+            timers.poll().task.run();
+        }
+    }
+
+    private void runTasks() {
+        Runnable task;
+        while ((task = tasks.poll()) != null) {
+            task.run();
+        }
+    }
+}
@@ -0,0 +1,541 @@
+package Server;
+
+import Shared.BinaryCodec;
+import Shared.CatalogEntry;
+import Shared.EncodeBuffer;
+import Shared.Message;
+import Shared.Protocol;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+// Links server nodes, so clients on any of them share the rooms, broadcasts and files. Each node
+// numbers the events that start with it. A relayed event carries its origin and number, so a
+// node that hears of it twice (over two links, or forwarded) handles it once, and handles each
+// origin's events in order: one that arrives early waits for the gap before it to fill, or for
+// gapTimeoutMs, after which the missing ones count as lost (a link was down). Every event is
+// also forwarded to the node's other links, so the nodes need not all be linked to each other.
+// An origin is a node ID plus the time the node started, so a restarted node starts over. A node
+// takes up an origin at the first event it hears of it; an earlier one that arrives after that,
+// by a slower path, would be out of order and counts as lost.
+//
+// Nodes linking up prove that they share server.federation.secret (see PeerLink). Without a
+// secret, a node only accepts links from the addresses of its own peers, as anyone who can link
+// may relay chat under any name and remove files.
+//
+// Chat, room notices and broadcasts reach the local clients as if they were sent here. A
+// catalog change makes the node fetch the file from the peer it heard of it from, unless it has
+// that content already or a newer version: the newest modification wins. A removal deletes
+// only the version that was removed. Linking up, the nodes send each other their catalogs.
+final class Federation {
+    // What a relayed event is, in RELAY's content
+    static final String ROOM = "room";       // chat of a room: logged and fanned out to its members
+    static final String NOTICE = "notice";   // a room notice, like a join or leave
+    static final String ALL = "all";         // a notice to every client
+    static final String CATALOG = "catalog"; // FILE_ADDED, FILE_MODIFIED or FILE_REMOVED
+
+    private static final class Event {
+        final String origin;
+        final long seq;
+        final String kind;
+        final byte[] message;
+        final PeerLink from;
+
+        Event(String origin, long seq, String kind, byte[] message, PeerLink from) {
+            this.origin = origin;
+            this.seq = seq;
+            this.kind = kind;
+            this.message = message;
+            this.from = from;
+        }
+    }
+
+    // Events of one origin that arrived ahead of a gap, by seq
+    private static final class Origin {
+        // The seq of the first event heard of
+        final long first;
+        long delivered;
+        final TreeMap<Long, Event> waiting = new TreeMap<>();
+        long waitingSince;
+
+        Origin(long first) {
+            this.first = first;
+            this.delivered = first - 1;
+        }
+    }
+
+    // A file being fetched, and the link it comes over. Once the reply is in, its chunks are
+    // written to temp as they arrive; only the link's reader touches these.
+    private static final class Fetch {
+        final CatalogEntry entry;
+        final PeerLink link;
+        Path temp;
+        OutputStream out;
+        MessageDigest digest;
+        long size;
+        long received;
+        long modified;
+
+        Fetch(CatalogEntry entry, PeerLink link) {
+            this.entry = entry;
+            this.link = link;
+        }
+    }
+
+    private final String nodeId;
+    private final String self;
+    private final ClientRegistry clients;
+    private final RoomManager rooms;
+    private final FileCatalog files;
+    private final long gapTimeoutNanos;
+    private final List<PeerLink> links = new CopyOnWriteArrayList<>();
+    private List<String> peers = List.of();
+    private String secret = "";
+    // Guarded by this, like nextSeq, so every link gets the events in seq order
+    private final Map<String, Origin> origins = new HashMap<>();
+    private long nextSeq;
+    // By file name
+    private final ConcurrentHashMap<String, Fetch> fetching = new ConcurrentHashMap<>();
+    // Hands events to the local clients, rooms and catalog in the order they were queued under
+    // the lock, without holding it: under the block policy a slow client may hold this thread up,
+    // but neither the links nor the relay() of a client's own events
+    private final ExecutorService delivery = Executors.newSingleThreadExecutor(task -> daemon(task, "federation-delivery"));
+
+    Federation(String nodeId, ClientRegistry clients, RoomManager rooms, FileCatalog files, long gapTimeoutMillis) {
+        this.nodeId = nodeId;
+        this.self = nodeId + "@" + System.currentTimeMillis();
+        this.clients = clients;
+        this.rooms = rooms;
+        this.files = files;
+        this.gapTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(gapTimeoutMillis);
+    }
+
+    // Listens for other nodes on the port and keeps a link to each peer (host:port) open
+    void start(int port, List<String> peers, String secret) throws IOException {
+        this.peers = peers;
+        this.secret = secret;
+        if (secret.isEmpty()) {
+            Log.warn("Federation has no server.federation.secret; accepting links only from the peers' hosts");
+        }
+        ServerSocket listener = new ServerSocket();
+        listener.bind(new InetSocketAddress(port));
+        daemon(() -> accept(listener), "federation-acceptor").start();
+        for (String peer : peers) {
+            int colon = peer.lastIndexOf(':');
+            if (colon <= 0) {
+                Log.warn("Ignoring federation peer '" + peer + "'; expected host:port");
+                continue;
+            }
+            String host = peer.substring(0, colon);
+            int peerPort = Integer.parseInt(peer.substring(colon + 1));
+            daemon(() -> dial(host, peerPort), "federation-dial-" + peer).start();
+        }
+        ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(task -> daemon(task, "federation-gaps"));
+        long period = Math.max(1, gapTimeoutNanos / 4);
+        timer.scheduleWithFixedDelay(this::skipGaps, period, period, TimeUnit.NANOSECONDS);
+        files.addListener(this::catalogChanged);
+        Log.info("Federation: node " + nodeId + " on port " + port + ", peers " + peers);
+    }
+
+    int linkCount() {
+        return links.size();
+    }
+
+    // Sends an event that happened on this node to every other node
+    void relay(String kind, Message event) {
+        EncodeBuffer encoded = new EncodeBuffer();
+        BinaryCodec.INSTANCE.encode(event, encoded);
+        byte[] message = encoded.toByteArray();
+        synchronized (this) {
+            send(new Event(self, ++nextSeq, kind, message, null));
+        }
+    }
+
+    // To every link but the one it came from
+    private void send(Event event) {
+        for (PeerLink link : links) {
+            if (link != event.from) {
+                Message relay = new Message(Message.RELAY, event.origin, event.kind, event.message.length);
+                relay.offset = event.seq;
+                link.send(relay, event.message);
+                Metrics.relayed();
+            }
+        }
+    }
+
+    private void accept(ServerSocket listener) {
+        while (true) {
+            try {
+                Socket socket = listener.accept();
+                if (secret.isEmpty() && !isPeer(socket.getInetAddress())) {
+                    Log.warn("Refusing a federation link from " + socket.getRemoteSocketAddress() + ", which is not a peer");
+                    socket.close();
+                    continue;
+                }
+                daemon(() -> {
+                    try (socket) {
+                        serve(new PeerLink(socket), false);
+                    } catch (IOException e) {
+                        Log.debug("Federation link from " + socket.getRemoteSocketAddress() + " failed: " + e.getMessage());
+                    }
+                }, "federation-link").start();
+            } catch (IOException e) {
+                Log.error("Federation listener stopped: " + e.getMessage());
+                return;
+            }
+        }
+    }
+
+    // Resolved on every link, as a peer's address may change
+    private boolean isPeer(InetAddress address) {
+        for (String peer : peers) {
+            int colon = peer.lastIndexOf(':');
+            if (colon <= 0) {
+                continue;
+            }
+            try {
+                for (InetAddress peerAddress : InetAddress.getAllByName(peer.substring(0, colon))) {
+                    if (peerAddress.equals(address)) {
+                        return true;
+                    }
+                }
+            } catch (UnknownHostException e) {
+                Log.debug("Federation peer " + peer + " does not resolve: " + e.getMessage());
+            }
+        }
+        return false;
+    }
+
+    // Reconnects for as long as the server runs, waiting longer after each failure
+    private void dial(String host, int port) {
+        long backoff = 500;
+        while (true) {
+            try (Socket socket = new Socket(host, port)) {
+                backoff = 500;
+                serve(new PeerLink(socket), true);
+            } catch (IOException e) {
+                Log.debug("Federation link to " + host + ":" + port + " failed: " + e.getMessage());
+            }
+            try {
+                Thread.sleep(backoff);
+            } catch (InterruptedException e) {
+                return;
+            }
+            backoff = Math.min(backoff * 2, 10_000);
+        }
+    }
+
+    private void serve(PeerLink link, boolean dialed) throws IOException {
+        Message peer = link.introduce(dialed, nodeId, self, secret);
+        if (peer.sender.equals(nodeId)) {
+            throw new IOException("Linked to itself");
+        }
+        links.add(link);
+        Log.info("Federation link to " + link + " is up");
+        try {
+            sendCatalog(link);
+            byte[] chunk = new byte[Protocol.CHUNK_SIZE];
+            Message message;
+            while ((message = link.in.readMessage()) != null) {
+                switch (message.type) {
+                    case Message.RELAY -> {
+                        byte[] event = new byte[(int) message.fileLength];
+                        link.in.stream().readFully(event);
+                        received(new Event(message.sender, message.offset, message.content, event, link));
+                    }
+                    case Message.FETCH -> sendFile(link, message.content, message.digest);
+                    case Message.FILE_DOWNLOAD -> receiveFile(link, message);
+                    case Message.FILE_CHUNK -> receiveChunk(link, message, chunk);
+                    default -> throw new IOException("Unexpected message type " + message.type + " on a federation link");
+                }
+            }
+        } finally {
+            links.remove(link);
+            link.close();
+            for (Fetch fetch : fetching.values()) {
+                if (fetch.link == link) {
+                    abort(fetch);
+                }
+            }
+            Log.info("Federation link to " + link + " is down");
+        }
+    }
+
+    // Sent as events without a seq, which are neither deduplicated nor forwarded
+    private void sendCatalog(PeerLink link) {
+        for (FileCatalog.Entry entry : files.entries()) {
+            if (entry.hash != null) {
+                Message change = new Message(Message.FILE_ADDED, "Server", entry.toCatalogEntry().toJson());
+                EncodeBuffer encoded = new EncodeBuffer();
+                BinaryCodec.INSTANCE.encode(change, encoded);
+                link.send(new Message(Message.RELAY, self, CATALOG, encoded.length()), encoded.toByteArray());
+            }
+        }
+    }
+
+    private void received(Event event) {
+        if (event.seq == 0) {
+            delivery.execute(() -> deliver(event));
+            return;
+        }
+        synchronized (this) {
+            if (event.origin.equals(self)) {
+                return;
+            }
+            Origin origin = origins.get(event.origin);
+            if (origin == null) {
+                // Whatever this origin sent before is of no use now; a restarted node is a new origin
+                String node = event.origin.substring(0, event.origin.lastIndexOf('@') + 1);
+                origins.keySet().removeIf(key -> key.startsWith(node));
+                origin = new Origin(event.seq);
+                origins.put(event.origin, origin);
+            }
+            if (event.seq < origin.first) {
+                Metrics.relayLost(1);
+                return;
+            }
+            if (event.seq <= origin.delivered || origin.waiting.containsKey(event.seq)) {
+                Metrics.relayDuplicate();
+                return;
+            }
+            origin.waiting.put(event.seq, event);
+            drain(origin);
+        }
+    }
+
+    // Called with the lock held; forwarding only queues on the links
+    private void drain(Origin origin) {
+        while (!origin.waiting.isEmpty() && origin.waiting.firstKey() == origin.delivered + 1) {
+            Event event = origin.waiting.pollFirstEntry().getValue();
+            origin.delivered = event.seq;
+            delivery.execute(() -> deliver(event));
+            send(event);
+        }
+        origin.waitingSince = origin.waiting.isEmpty() ? 0
+                : origin.waitingSince != 0 ? origin.waitingSince : System.nanoTime();
+    }
+
+    private synchronized void skipGaps() {
+        long now = System.nanoTime();
+        for (Map.Entry<String, Origin> entry : origins.entrySet()) {
+            Origin origin = entry.getValue();
+            if (origin.waitingSince != 0 && now - origin.waitingSince > gapTimeoutNanos) {
+                long lost = origin.waiting.firstKey() - origin.delivered - 1;
+                Log.warn("Federation lost " + lost + " events of " + entry.getKey());
+                Metrics.relayLost(lost);
+                origin.delivered = origin.waiting.firstKey() - 1;
+                drain(origin);
+            }
+        }
+    }
+
+    // On the delivery thread
+    private void deliver(Event event) {
+        Metrics.relayReceived();
+        Message message;
+        try {
+            message = BinaryCodec.INSTANCE.decode(ByteBuffer.wrap(event.message), new Message());
+        } catch (IOException e) {
+            Log.warn("Undecodable federation event from " + event.origin + ": " + e.getMessage());
+            return;
+        }
+        switch (event.kind) {
+            case ROOM -> rooms.publish(message.room, null, new OutboundMessage(message, true));
+            case NOTICE -> rooms.announce(message.room, new OutboundMessage(message, true));
+            case ALL -> {
+                OutboundMessage notice = new OutboundMessage(message, true);
+                for (ClientSession client : clients) {
+                    client.deliver(notice);
+                }
+            }
+            case CATALOG -> catalogChanged(message.type, CatalogEntry.fromJson(message.content), event.from);
+            default -> Log.warn("Unknown federation event '" + event.kind + "' from " + event.origin);
+        }
+    }
+
+    // On the catalog's event thread. Entries without a hash are left out; the one with the hash
+    // follows once it is computed.
+    private void catalogChanged(int type, FileCatalog.Entry entry) {
+        if (entry.hash != null) {
+            relay(CATALOG, new Message(type, "Server", entry.toCatalogEntry().toJson()));
+        }
+    }
+
+    private void catalogChanged(int type, CatalogEntry remote, PeerLink from) {
+        if (remote.hash == null || !isPlainName(remote.name)) {
+            return;
+        }
+        FileCatalog.Entry local = files.find(remote.name);
+        if (type == Message.FILE_REMOVED) {
+            if (local != null && remote.hash.equals(local.hash) && isUpload(local.path)) {
+                try {
+                    Files.deleteIfExists(local.path);
+                } catch (IOException e) {
+                    Log.warn("Error deleting " + local.path + ": " + e.getMessage());
+                }
+                files.refresh(remote.name);
+            }
+            return;
+        }
+        if (local != null && (remote.hash.equals(local.hash) || !newer(remote, local))) {
+            return;
+        }
+        Fetch fetch = new Fetch(remote, from);
+        Fetch previous = fetching.putIfAbsent(remote.name, fetch);
+        if (previous != null) {
+            return;
+        }
+        Message request = new Message(Message.FETCH, nodeId, remote.name);
+        request.digest = remote.hash;
+        from.send(request, null);
+    }
+
+    // Ties go to the larger hash, so every node picks the same version
+    private static boolean newer(CatalogEntry remote, FileCatalog.Entry local) {
+        if (remote.modified != local.modified) {
+            return remote.modified > local.modified;
+        }
+        return local.hash != null && remote.hash.compareTo(local.hash) > 0;
+    }
+
+    // The content must still be the version asked for; otherwise the reply is empty
+    private void sendFile(PeerLink link, String name, String hash) {
+        FileCatalog.Entry entry = files.find(name);
+        Message reply = new Message(Message.FILE_DOWNLOAD, nodeId, name);
+        if (entry == null || hash == null || !hash.equals(entry.hash)) {
+            link.send(reply, null);
+            return;
+        }
+        reply.fileLength = entry.size;
+        reply.digest = entry.hash;
+        reply.offset = entry.modified;
+        link.sendFile(reply, entry.path);
+    }
+
+    // The reply to a FETCH. The file follows as FILE_CHUNKs among the link's other messages, so
+    // events keep flowing while it is copied; it is written next to the uploads in progress,
+    // checked against its hash, and moved into place with the origin's modification time, as an
+    // upload would be.
+    private void receiveFile(PeerLink link, Message reply) throws IOException {
+        Fetch fetch = fetching.get(reply.content);
+        if (fetch == null || fetch.link != link || fetch.temp != null) {
+            return;
+        }
+        if (reply.digest == null || !reply.digest.equals(fetch.entry.hash)) {
+            abort(fetch);
+            return;
+        }
+        Path tempDir = files.uploadDirectory().toPath().resolve(PartialUpload.TEMP_DIR);
+        Files.createDirectories(tempDir);
+        fetch.temp = Files.createTempFile(tempDir, "federation-", ".part");
+        fetch.out = Files.newOutputStream(fetch.temp);
+        fetch.digest = FileCatalog.newDigest();
+        fetch.size = reply.fileLength;
+        fetch.modified = reply.offset;
+        if (fetch.size == 0) {
+            finish(fetch);
+        }
+    }
+
+    // The chunk's bytes are read off the link whether or not its fetch is still wanted
+    private void receiveChunk(PeerLink link, Message chunk, byte[] buffer) throws IOException {
+        if (chunk.fileLength < 0 || chunk.fileLength > buffer.length) {
+            throw new IOException("Chunk of " + chunk.fileLength + " bytes on a federation link");
+        }
+        int count = (int) chunk.fileLength;
+        link.in.stream().readFully(buffer, 0, count);
+        Fetch fetch = fetching.get(chunk.content);
+        if (fetch == null || fetch.link != link || fetch.temp == null) {
+            return;
+        }
+        if (chunk.offset != fetch.received || fetch.received + count > fetch.size) {
+            Log.warn("File " + chunk.content + " from " + link + " arrived out of order");
+            abort(fetch);
+            return;
+        }
+        try {
+            fetch.out.write(buffer, 0, count);
+        } catch (IOException e) {
+            Log.warn("Error writing " + fetch.temp + ": " + e.getMessage());
+            abort(fetch);
+            return;
+        }
+        fetch.digest.update(buffer, 0, count);
+        fetch.received += count;
+        if (fetch.received == fetch.size) {
+            finish(fetch);
+        }
+    }
+
+    private void finish(Fetch fetch) {
+        String name = fetch.entry.name;
+        try {
+            fetch.out.close();
+            String hash = FileCatalog.toHex(fetch.digest.digest());
+            if (!hash.equals(fetch.entry.hash)) {
+                Log.warn("File " + name + " from " + fetch.link + " does not match its hash");
+                return;
+            }
+            Files.setLastModifiedTime(fetch.temp, FileTime.fromMillis(fetch.modified));
+            Path target = files.uploadDirectory().toPath().resolve(name);
+            Files.move(fetch.temp, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            files.added(name, target, hash);
+            Log.info("Federation copied " + name + " (" + fetch.size + " bytes) from " + fetch.link);
+        } catch (IOException e) {
+            Log.warn("Error storing " + name + " from " + fetch.link + ": " + e.getMessage());
+        } finally {
+            abort(fetch);
+        }
+    }
+
+    // Forgets the fetch and deletes whatever was received of it
+    private void abort(Fetch fetch) {
+        fetching.remove(fetch.entry.name, fetch);
+        if (fetch.temp == null) {
+            return;
+        }
+        try {
+            fetch.out.close();
+            Files.deleteIfExists(fetch.temp);
+        } catch (IOException e) {
+            Log.warn("Error deleting " + fetch.temp + ": " + e.getMessage());
+        }
+    }
+
+    // Names from other nodes must not reach outside the upload directory or into hidden files
+    private static boolean isPlainName(String name) {
+        return name != null && !name.isEmpty() && !name.startsWith(".") && new File(name).getName().equals(name);
+    }
+
+    private boolean isUpload(Path path) {
+        return path.getParent() != null && path.getParent().equals(files.uploadDirectory().toPath());
+    }
+
+    private static Thread daemon(Runnable task, String name) {
+        Thread thread = new Thread(task, name);
+        thread.setDaemon(true);
+        return thread;
+    }
+}
@@ -0,0 +1,446 @@
+package Server;
+
+import Shared.CatalogEntry;
+import Shared.DeltaSync;
+import Shared.Message;
+import Shared.Protocol;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.net.URL;
+import java.nio.channels.FileChannel;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Set;
+import java.util.StringJoiner;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+import java.util.stream.Stream;
+
+// The downloadable files, kept in memory: name, path, size, modification time and SHA-256.
+// Uploads update it directly and a WatchService picks up changes made behind the server's back,
+// so listing and looking up files never touches the disk. Hashes are computed on a background
+// thread, together with the hashes of every CHUNK_SIZE piece that the ChunkIndex is built from;
+// uploads bring their whole-file hash, computed while they streamed in.
+final class FileCatalog {
+    static final class Entry {
+        final String name;
+        final Path path;
+        final long size;
+        final long modified;
+        final String hash; // null until computed
+        final List<String> chunks; // SHA-256 of each CHUNK_SIZE piece; null until computed
+
+        Entry(String name, Path path, long size, long modified, String hash, List<String> chunks) {
+            this.name = name;
+            this.path = path;
+            this.size = size;
+            this.modified = modified;
+            this.hash = hash;
+            this.chunks = chunks;
+        }
+
+        boolean sameFile(Entry other) {
+            return other != null && path.equals(other.path) && size == other.size && modified == other.modified;
+        }
+
+        CatalogEntry toCatalogEntry() {
+            return new CatalogEntry(name, size, modified, hash);
+        }
+    }
+
+    // Serialized list for one catalog version
+    private static final class Listing {
+        final long version;
+        final String content;
+
+        Listing(long version, String content) {
+            this.version = version;
+            this.content = content;
+        }
+    }
+
+    // Searched in order; a name in an earlier directory hides the same name in a later one
+    private final List<Path> directories;
+    private final ConcurrentHashMap<String, Entry> entries = new ConcurrentHashMap<>();
+    private final ChunkIndex index = new ChunkIndex();
+    private final HotFileCache cache = new HotFileCache(ServerConfig.FILE_CACHE_BYTES,
+            ServerConfig.FILE_CACHE_MAX_FILE_BYTES, ServerConfig.FILE_CACHE_ADMIT_AFTER);
+    // Bumped, under the catalog's lock, once per change
+    private final AtomicLong version = new AtomicLong();
+    private volatile Listing listing;
+    private OutboundMessage snapshot; // guarded by this, for snapshotVersion
+    private long snapshotVersion = -1;
+
+    // Sessions that asked for a snapshot and now get every change
+    private final Set<ClientSession> subscribers = ConcurrentHashMap.newKeySet();
+    // Called with every change after the subscribers, on the events thread
+    private final List<BiConsumer<Integer, Entry>> listeners = new CopyOnWriteArrayList<>();
+    // Fans changes out one at a time, so subscribers see them in version order
+    private final ExecutorService events = Executors.newSingleThreadExecutor(task -> daemon(task, "file-catalog-events"));
+    private final ExecutorService hasher = Executors.newSingleThreadExecutor(task -> daemon(task, "file-hasher"));
+
+    FileCatalog(List<Path> directories) {
+        this.directories = directories;
+    }
+
+    // The upload directory, plus the copy of Server/Files on the classpath if there is one
+    static FileCatalog open(Path uploadDirectory) {
+        List<Path> directories = new ArrayList<>();
+        directories.add(uploadDirectory.toAbsolutePath().normalize());
+        try {
+            // Created up front so it can be watched before the first upload
+            Files.createDirectories(uploadDirectory);
+        } catch (IOException e) {
+            Log.warn("Error creating " + uploadDirectory + ": " + e.getMessage());
+        }
+        try {
+            URL resourceUrl = FileCatalog.class.getClassLoader().getResource("Server/Files");
+            if (resourceUrl != null && resourceUrl.getProtocol().equals("file")) {
+                Path resourceDir = Paths.get(resourceUrl.toURI()).toAbsolutePath().normalize();
+                if (!directories.contains(resourceDir)) {
+                    directories.add(resourceDir);
+                }
+            }
+        } catch (Exception e) {
+            Log.warn("Error accessing resource directory: " + e.getMessage());
+        }
+
+        FileCatalog catalog = new FileCatalog(directories);
+        catalog.rescan();
+        catalog.startWatching();
+        Log.info("File catalog: " + catalog.entries.size() + " files in " + directories);
+        return catalog;
+    }
+
+    // Where uploads are saved
+    File uploadDirectory() {
+        return directories.get(0).toFile();
+    }
+
+    Entry find(String name) {
+        return name == null ? null : entries.get(name);
+    }
+
+    // Mapped copies of the files downloaded most
+    HotFileCache cache() {
+        return cache;
+    }
+
+    // A file with exactly this content, if there is one
+    Entry findByHash(String hash) {
+        return index.file(hash);
+    }
+
+    ChunkIndex.Location findChunk(String hash) {
+        return index.chunk(hash);
+    }
+
+    // DeltaSync signature of a file's current content, computed on the hashing thread
+    CompletableFuture<byte[]> signature(Entry entry) {
+        return CompletableFuture.supplyAsync(() -> {
+            try (FileChannel channel = FileChannel.open(entry.path, StandardOpenOption.READ)) {
+                return DeltaSync.signature(channel, DeltaSync.blockSize(channel.size()));
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }, hasher);
+    }
+
+    // Comma-separated file names, or NO_FILES; rebuilt only after the catalog changed
+    String list() {
+        Listing current = listing;
+        long now = version.get();
+        if (current != null && current.version == now) {
+            return current.content;
+        }
+        StringJoiner names = new StringJoiner(",");
+        for (String name : new TreeSet<>(entries.keySet())) {
+            names.add(name);
+        }
+        String content = names.length() == 0 ? "NO_FILES" : names.toString();
+        // A change that raced with the build bumps the version, so this copy is never served
+        listing = new Listing(now, content);
+        return content;
+    }
+
+    // Sends the session the whole catalog, then every change after it. A client that sees a gap
+    // in the versions (a change dropped by its slow-consumer policy) simply subscribes again.
+    void subscribe(ClientSession session) {
+        events.execute(() -> {
+            // Changes up to the snapshot's version may still follow; the client skips those
+            subscribers.add(session);
+            session.deliver(snapshot());
+        });
+    }
+
+    // Queued behind any subscribe() of the session still waiting to run, so it cannot be undone
+    void unsubscribe(ClientSession session) {
+        events.execute(() -> subscribers.remove(session));
+    }
+
+    // Gets the message type (FILE_ADDED, FILE_MODIFIED or FILE_REMOVED) and the entry
+    void addListener(BiConsumer<Integer, Entry> listener) {
+        listeners.add(listener);
+    }
+
+    List<Entry> entries() {
+        return List.copyOf(entries.values());
+    }
+
+    // Encoded once per version, however many clients ask for it
+    private synchronized OutboundMessage snapshot() {
+        long now = version.get();
+        if (snapshotVersion != now) {
+            CatalogEntry[] all = entries.values().stream()
+                    .sorted(Comparator.comparing((Entry entry) -> entry.name))
+                    .map(Entry::toCatalogEntry)
+                    .toArray(CatalogEntry[]::new);
+            Message message = new Message(Message.CATALOG_SNAPSHOT, "Server", CatalogEntry.toJson(all));
+            message.catalogVersion = now;
+            snapshot = new OutboundMessage(message, false);
+            snapshotVersion = now;
+        }
+        return snapshot;
+    }
+
+    // Called once an upload has been moved into place; its hash was computed on the way in, its
+    // chunk hashes are left to the background thread
+    void added(String name, Path path, String hash) {
+        try {
+            BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+            put(new Entry(name, path.toAbsolutePath().normalize(), attributes.size(),
+                    attributes.lastModifiedTime().toMillis(), hash, null));
+        } catch (IOException e) {
+            refresh(name);
+        }
+    }
+
+    // Re-reads one name from disk, e.g. after a watch event or a failed open
+    void refresh(String name) {
+        for (Path directory : directories) {
+            Path path = directory.resolve(name);
+            try {
+                BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+                if (attributes.isRegularFile()) {
+                    put(new Entry(name, path, attributes.size(), attributes.lastModifiedTime().toMillis(), null, null));
+                    return;
+                }
+            } catch (IOException e) {
+                // Not in this directory
+            }
+        }
+        remove(name);
+    }
+
+    private synchronized void put(Entry entry) {
+        Entry previous = entries.get(entry.name);
+        if (entry.sameFile(previous) && (entry.hash == null || entry.hash.equals(previous.hash))) {
+            return; // e.g. the watch event for an upload that was already added
+        }
+        entries.put(entry.name, entry);
+        if (previous != null) {
+            unindex(previous);
+            if (!entry.sameFile(previous)) {
+                cache.invalidate(previous.path);
+            }
+        }
+        index.add(entry);
+        changed(previous == null ? Message.FILE_ADDED : Message.FILE_MODIFIED, entry);
+        if (entry.chunks == null) {
+            hasher.execute(() -> hash(entry));
+        }
+    }
+
+    private synchronized void remove(String name) {
+        Entry removed = entries.remove(name);
+        if (removed != null) {
+            unindex(removed);
+            cache.invalidate(removed.path);
+            changed(Message.FILE_REMOVED, removed);
+        }
+    }
+
+    // Called with the lock held. Another file with the same content takes over its mappings.
+    private void unindex(Entry entry) {
+        index.remove(entry);
+        if (entry.hash != null) {
+            for (Entry other : entries.values()) {
+                if (other != entry && entry.hash.equals(other.hash)) {
+                    index.add(other);
+                }
+            }
+        }
+    }
+
+    // Called with the lock held, so versions and the order of the fan-out tasks agree
+    private void changed(int type, Entry entry) {
+        Message message = new Message(type, "Server", entry.toCatalogEntry().toJson());
+        message.catalogVersion = version.incrementAndGet();
+        // Droppable: a client that misses one notices the gap and asks for a new snapshot
+        OutboundMessage change = new OutboundMessage(message, true);
+        events.execute(() -> {
+            for (ClientSession subscriber : subscribers) {
+                subscriber.deliver(change);
+            }
+            for (BiConsumer<Integer, Entry> listener : listeners) {
+                listener.accept(type, entry);
+            }
+        });
+    }
+
+    private void hash(Entry entry) {
+        if (entries.get(entry.name) != entry) {
+            return; // replaced or removed while queued
+        }
+        try (InputStream in = Files.newInputStream(entry.path)) {
+            MessageDigest digest = newDigest();
+            MessageDigest chunkDigest = newDigest();
+            List<String> chunks = new ArrayList<>();
+            byte[] buffer = new byte[64 * 1024];
+            int inChunk = 0;
+            int bytesRead;
+            while ((bytesRead = in.read(buffer)) != -1) {
+                digest.update(buffer, 0, bytesRead);
+                for (int done = 0; done < bytesRead; ) {
+                    int count = Math.min(bytesRead - done, Protocol.CHUNK_SIZE - inChunk);
+                    chunkDigest.update(buffer, done, count);
+                    done += count;
+                    inChunk += count;
+                    if (inChunk == Protocol.CHUNK_SIZE) {
+                        chunks.add(toHex(chunkDigest.digest()));
+                        inChunk = 0;
+                    }
+                }
+            }
+            if (inChunk > 0) {
+                chunks.add(toHex(chunkDigest.digest()));
+            }
+            String hash = toHex(digest.digest());
+            Entry hashed = new Entry(entry.name, entry.path, entry.size, entry.modified, hash, chunks);
+            synchronized (this) {
+                // Unless a watch event or upload replaced the entry meanwhile
+                if (entries.get(entry.name) == entry) {
+                    entries.put(entry.name, hashed);
+                    unindex(entry);
+                    index.add(hashed);
+                    // Chunk hashes alone are not part of the catalog clients see
+                    if (!hash.equals(entry.hash)) {
+                        changed(Message.FILE_MODIFIED, hashed);
+                    }
+                }
+            }
+        } catch (IOException e) {
+            Log.warn("Error hashing file " + entry.name + ": " + e.getMessage());
+        }
+    }
+
+    private void rescan() {
+        Set<String> present = new HashSet<>();
+        for (Path directory : directories) {
+            try (Stream<Path> files = Files.list(directory)) {
+                files.forEach(path -> {
+                    String name = path.getFileName().toString();
+                    if (isListed(name) && Files.isRegularFile(path)) {
+                        present.add(name);
+                    }
+                });
+            } catch (IOException e) {
+                // Missing directory: nothing to list from it
+            }
+        }
+        for (String name : present) {
+            refresh(name);
+        }
+        for (String name : entries.keySet()) {
+            if (!present.contains(name)) {
+                refresh(name);
+            }
+        }
+    }
+
+    private void startWatching() {
+        WatchService watcher;
+        try {
+            watcher = FileSystems.getDefault().newWatchService();
+            for (Path directory : directories) {
+                if (Files.isDirectory(directory)) {
+                    directory.register(watcher, StandardWatchEventKinds.ENTRY_CREATE,
+                            StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY);
+                }
+            }
+        } catch (IOException e) {
+            Log.warn("File catalog cannot watch for changes: " + e.getMessage());
+            return;
+        }
+        daemon(() -> watch(watcher), "file-catalog").start();
+    }
+
+    private void watch(WatchService watcher) {
+        try {
+            while (true) {
+                WatchKey key = watcher.take();
+                for (WatchEvent<?> event : key.pollEvents()) {
+                    if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                        rescan();
+                    } else {
+                        String name = event.context().toString();
+                        if (isListed(name)) {
+                            refresh(name);
+                        }
+                    }
+                }
+                key.reset();
+            }
+        } catch (InterruptedException | ClosedWatchServiceException e) {
+            // Shutting down
+        }
+    }
+
+    // Hidden names include the temp directory of uploads in progress
+    private static boolean isListed(String name) {
+        return !name.startsWith(".");
+    }
+
+    static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    static String toHex(byte[] bytes) {
+        return HexFormat.of().formatHex(bytes);
+    }
+
+    private static Thread daemon(Runnable task, String name) {
+        Thread thread = new Thread(task, name);
+        thread.setDaemon(true);
+        return thread;
+    }
+}
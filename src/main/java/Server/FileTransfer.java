@@ -0,0 +1,58 @@
+package Server;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+// Moves the body of an OutboundFile to the client, advancing file.position as it goes
+final class FileTransfer {
+    // Fallback copy size; big enough that each chunk is one socket write
+    static final int COPY_BUFFER_SIZE = 256 * 1024;
+
+    private FileTransfer() {}
+
+    // transferTo lets the kernel send straight from the page cache (sendfile on Linux), so the
+    // bytes never enter the Java heap; a cached file is written from its mapping, which is the
+    // page cache too. Returns false if a non-blocking socket is full.
+    static boolean transferTo(OutboundFile file, WritableByteChannel target) throws IOException {
+        while (file.cached != null && file.position < file.size) {
+            int written = target.write(file.cached.slice(file.position, (int) (file.size - file.position)));
+            if (written == 0) {
+                return false;
+            }
+            file.position += written;
+        }
+        while (file.position < file.size) {
+            long written = file.channel.transferTo(file.position, file.size - file.position, target);
+            if (written == 0) {
+                if (file.position >= file.channel.size()) {
+                    throw new IOException("File " + file.name + " shrank while sending");
+                }
+                return false;
+            }
+            file.position += written;
+        }
+        return true;
+    }
+
+    // For sockets that only offer a stream: large chunks read from the file straight into the
+    // array that is handed to the socket
+    static void copy(OutboundFile file, OutputStream out, ByteBuffer buffer) throws IOException {
+        while (file.position < file.size) {
+            buffer.clear().limit((int) Math.min(buffer.capacity(), file.size - file.position));
+            if (file.cached != null) {
+                file.cached.slice(file.position, buffer.limit()).get(buffer.array(), buffer.arrayOffset(), buffer.limit());
+                out.write(buffer.array(), buffer.arrayOffset(), buffer.limit());
+                file.position += buffer.limit();
+                continue;
+            }
+            int bytesRead = file.channel.read(buffer, file.position);
+            if (bytesRead == -1) {
+                throw new IOException("File " + file.name + " shrank while sending");
+            }
+            out.write(buffer.array(), buffer.arrayOffset(), bytesRead);
+            file.position += bytesRead;
+        }
+    }
+}
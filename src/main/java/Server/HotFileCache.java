@@ -0,0 +1,158 @@
+package Server;
+
+import Shared.Protocol;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.CRC32C;
+
+// Popular files, memory-mapped once and shared by every download of them: no open and no read
+// per request, and the CRC32C of each chunk is computed only once. A file is cached from its
+// admitAfter-th request on; the least recently used files are evicted to stay within the byte
+// budget. The catalog invalidates a file when an upload replaces it or it disappears.
+//
+// Uploads replace files with a rename, so a mapping always shows the version it was made of,
+// even while a download of it is still running after the invalidation.
+final class HotFileCache {
+    static final class CachedFile {
+        final FileCatalog.Entry entry;
+        private final MappedByteBuffer map;
+        // Per CHUNK_SIZE piece; -1 until a download needed it
+        private final AtomicLongArray checksums;
+
+        private CachedFile(FileCatalog.Entry entry, MappedByteBuffer map) {
+            this.entry = entry;
+            this.map = map;
+            this.checksums = new AtomicLongArray((int) ((entry.size + Protocol.CHUNK_SIZE - 1) / Protocol.CHUNK_SIZE));
+            for (int i = 0; i < checksums.length(); i++) {
+                checksums.set(i, -1);
+            }
+        }
+
+        // A view of the bytes of its own, so writers on different threads do not share a position
+        ByteBuffer slice(long offset, int length) {
+            return map.slice((int) offset, length);
+        }
+
+        // CRC32C of a piece of the file; whole chunks are computed once
+        long checksum(long offset, int length, CRC32C crc) {
+            int index = (int) (offset / Protocol.CHUNK_SIZE);
+            boolean wholeChunk = offset % Protocol.CHUNK_SIZE == 0
+                    && length == Math.min(Protocol.CHUNK_SIZE, entry.size - offset);
+            if (wholeChunk && checksums.get(index) != -1) {
+                return checksums.get(index);
+            }
+            crc.reset();
+            crc.update(slice(offset, length));
+            long value = crc.getValue();
+            if (wholeChunk) {
+                checksums.set(index, value);
+            }
+            return value;
+        }
+    }
+
+    private final long budget;
+    private final long maxFileSize;
+    private final int admitAfter;
+    // In access order, so the eldest is the least recently used; guarded by this
+    private final LinkedHashMap<Path, CachedFile> files = new LinkedHashMap<>(16, 0.75f, true);
+    // Requests for files that are not cached yet; guarded by this
+    private final Map<Path, Integer> requests = new HashMap<>();
+    private long used;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    private final LongAdder invalidations = new LongAdder();
+
+    HotFileCache(long budget, long maxFileSize, int admitAfter) {
+        this.budget = budget;
+        this.maxFileSize = Math.min(Math.min(maxFileSize, budget), Integer.MAX_VALUE);
+        this.admitAfter = admitAfter;
+    }
+
+    // The cached copy of the entry's file, mapping it if it just became popular; null if the file
+    // is read from disk this time
+    CachedFile get(FileCatalog.Entry entry) {
+        synchronized (this) {
+            CachedFile cached = files.get(entry.path);
+            if (cached != null && cached.entry.sameFile(entry)) {
+                hits.increment();
+                return cached;
+            }
+            misses.increment();
+            if (cached != null) {
+                remove(entry.path);
+                invalidations.increment();
+            }
+            if (entry.size == 0 || entry.size > maxFileSize || requests.merge(entry.path, 1, Integer::sum) < admitAfter) {
+                // Only counts for files that were asked for recently
+                if (requests.size() > 4096) {
+                    requests.clear();
+                }
+                return null;
+            }
+            requests.remove(entry.path);
+        }
+        CachedFile cached;
+        try (FileChannel channel = FileChannel.open(entry.path, StandardOpenOption.READ)) {
+            if (channel.size() != entry.size) {
+                return null; // changed since the catalog saw it
+            }
+            cached = new CachedFile(entry, channel.map(FileChannel.MapMode.READ_ONLY, 0, entry.size));
+        } catch (IOException e) {
+            return null;
+        }
+        synchronized (this) {
+            CachedFile raced = files.get(entry.path);
+            if (raced != null && raced.entry.sameFile(entry)) {
+                return raced;
+            }
+            if (raced != null) {
+                remove(entry.path);
+            }
+            Iterator<CachedFile> eldest = files.values().iterator();
+            while (used + entry.size > budget && eldest.hasNext()) {
+                used -= eldest.next().entry.size;
+                eldest.remove();
+                evictions.increment();
+            }
+            files.put(entry.path, cached);
+            used += entry.size;
+        }
+        return cached;
+    }
+
+    // The file at this path changed or is gone; downloads already running keep their mapping
+    synchronized void invalidate(Path path) {
+        requests.remove(path);
+        if (remove(path)) {
+            invalidations.increment();
+        }
+    }
+
+    private boolean remove(Path path) {
+        CachedFile removed = files.remove(path);
+        if (removed != null) {
+            used -= removed.entry.size;
+        }
+        return removed != null;
+    }
+
+    synchronized String stats() {
+        return "File cache: " + files.size() + " files, " + used / (1024 * 1024) + " of "
+                + budget / (1024 * 1024) + " MB, " + hits.sum() + " hits, " + misses.sum() + " misses, "
+                + evictions.sum() + " evictions, " + invalidations.sum() + " invalidations";
+    }
+}
@@ -0,0 +1,53 @@
+package Server;
+
+import java.util.Locale;
+
+// Leveled console logging, set with -Dserver.logLevel. Every file sent or received is logged at
+// info, so warn keeps only problems and off silences the server entirely.
+final class Log {
+    enum Level {
+        DEBUG, INFO, WARN, ERROR, OFF;
+
+        static Level parse(String name) {
+            return valueOf(name.trim().toUpperCase(Locale.ROOT));
+        }
+    }
+
+    private Log() {}
+
+    static boolean enabled(Level level) {
+        return level != Level.OFF && level.compareTo(ServerConfig.LOG_LEVEL) >= 0;
+    }
+
+    static void debug(String message) {
+        if (enabled(Level.DEBUG)) {
+            System.out.println(message);
+        }
+    }
+
+    static void info(String message) {
+        if (enabled(Level.INFO)) {
+            System.out.println(message);
+        }
+    }
+
+    static void warn(String message) {
+        if (enabled(Level.WARN)) {
+            System.out.println(message);
+        }
+    }
+
+    static void error(String message) {
+        if (enabled(Level.ERROR)) {
+            System.err.println(message);
+        }
+    }
+
+    // For failures nobody expects, where the stack trace is what tells where it came from
+    static void error(String message, Throwable cause) {
+        if (enabled(Level.ERROR)) {
+            System.err.println(message);
+            cause.printStackTrace();
+        }
+    }
+}
@@ -0,0 +1,355 @@
+package Server;
+
+import Shared.LatencyHistogram;
+import Shared.Message;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+// Server-wide counters, cheap enough to update for every message: a LongAdder spreads concurrent
+// increments over cells instead of having every connection fight over one word, and nothing is
+// summed until the metrics are read. They are read over JMX, with the admin-only METRICS
+// message, or by the stats logger.
+final class Metrics implements MetricsMXBean {
+    // Message types are small ints; anything else is counted in the last slot
+    private static final int TYPES = 32;
+    private static final String[] TYPE_NAMES = typeNames();
+
+    private static final LongAdder[] messagesIn = adders(TYPES);
+    private static final LongAdder[] messagesOut = adders(TYPES);
+    private static final LongAdder bytesIn = new LongAdder();
+    private static final LongAdder bytesOut = new LongAdder();
+    private static final LongAdder socketWrites = new LongAdder();
+    private static final LongAdder uploadBytes = new LongAdder();
+    private static final LongAdder downloadBytes = new LongAdder();
+    private static final LatencyHistogram fanOutLatency = new LatencyHistogram();
+    private static final LongAdder relayed = new LongAdder();
+    private static final LongAdder relayReceived = new LongAdder();
+    private static final LongAdder relayDuplicates = new LongAdder();
+    private static final LongAdder relayLost = new LongAdder();
+    private static final long startedAt = System.nanoTime();
+
+    private final FileCatalog files;
+    // For the rates; guarded by this
+    private long sampledAt = startedAt;
+    private long sampledUpload;
+    private long sampledDownload;
+    private double uploadRate;
+    private double downloadRate;
+
+    Metrics(FileCatalog files) {
+        this.files = files;
+    }
+
+    static void received(int type) {
+        messagesIn[slot(type)].increment();
+    }
+
+    static void bytesIn(long bytes) {
+        bytesIn.add(bytes);
+    }
+
+    // A frame handed to the socket
+    static void sent(int type, long bytes) {
+        messagesOut[slot(type)].increment();
+        bytesOut.add(bytes);
+    }
+
+    // One write of gathered frames to a client's socket
+    static void wrote() {
+        socketWrites.increment();
+    }
+
+    static void sent(OutboundMessage message, long bytes) {
+        sent(message.message().type, bytes);
+        if (message.publishedAt != 0) {
+            fanOutLatency.record(System.nanoTime() - message.publishedAt);
+        }
+    }
+
+    static void uploaded(long bytes) {
+        uploadBytes.add(bytes);
+    }
+
+    // Raw file bytes that follow a frame
+    static void downloaded(long bytes) {
+        downloadBytes.add(bytes);
+        bytesOut.add(bytes);
+    }
+
+    // An event sent on one federation link
+    static void relayed() {
+        relayed.increment();
+    }
+
+    // An event from another node, handled here
+    static void relayReceived() {
+        relayReceived.increment();
+    }
+
+    static void relayDuplicate() {
+        relayDuplicates.increment();
+    }
+
+    static void relayLost(long events) {
+        relayLost.add(events);
+    }
+
+    void register() {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, new ObjectName("Server:type=Metrics"));
+        } catch (JMException e) {
+            Log.warn("Cannot register the metrics MBean: " + e.getMessage());
+        }
+    }
+
+    // Everything at once, for the METRICS reply
+    Map<String, Object> snapshot() {
+        Map<String, Object> snapshot = new LinkedHashMap<>();
+        snapshot.put("uptimeSeconds", getUptimeSeconds());
+        snapshot.put("activeConnections", getActiveConnections());
+        snapshot.put("loggedInUsers", getLoggedInUsers());
+        snapshot.put("messagesIn", getMessagesIn());
+        snapshot.put("messagesOut", getMessagesOut());
+        snapshot.put("bytesIn", getBytesIn());
+        snapshot.put("bytesOut", getBytesOut());
+        snapshot.put("socketWrites", getSocketWrites());
+        snapshot.put("uploadBytes", getUploadBytes());
+        snapshot.put("downloadBytes", getDownloadBytes());
+        snapshot.put("uploadBytesPerSecond", Math.round(getUploadBytesPerSecond()));
+        snapshot.put("downloadBytesPerSecond", Math.round(getDownloadBytesPerSecond()));
+        snapshot.put("fanOutDeliveries", getFanOutDeliveries());
+        snapshot.put("fanOutLatencyP50Micros", getFanOutLatencyP50Micros());
+        snapshot.put("fanOutLatencyP99Micros", getFanOutLatencyP99Micros());
+        snapshot.put("fanOutLatencyMaxMicros", getFanOutLatencyMaxMicros());
+        snapshot.put("queuedMessages", getQueuedMessages());
+        snapshot.put("maxQueueDepth", getMaxQueueDepth());
+        snapshot.put("droppedMessages", getDroppedMessages());
+        snapshot.put("slowConsumerDisconnects", getSlowConsumerDisconnects());
+        snapshot.put("fileCache", getFileCache());
+        snapshot.put("federationLinks", getFederationLinks());
+        snapshot.put("federationEventsOut", getFederationEventsOut());
+        snapshot.put("federationEventsIn", getFederationEventsIn());
+        snapshot.put("federationDuplicates", getFederationDuplicates());
+        snapshot.put("federationLost", getFederationLost());
+        return snapshot;
+    }
+
+    // One line for the stats logger
+    String summary() {
+        return "Traffic: " + total(messagesIn) + " messages in, " + total(messagesOut) + " out in "
+                + getSocketWrites() + " writes, "
+                + getBytesIn() / (1024 * 1024) + " MB in, " + getBytesOut() / (1024 * 1024) + " MB out, "
+                + String.format("upload %.1f MB/s, download %.1f MB/s, ", getUploadBytesPerSecond() / (1024 * 1024),
+                getDownloadBytesPerSecond() / (1024 * 1024))
+                + "fan-out p50 < " + getFanOutLatencyP50Micros() + " us, p99 < " + getFanOutLatencyP99Micros() + " us";
+    }
+
+    @Override
+    public long getUptimeSeconds() {
+        return (System.nanoTime() - startedAt) / 1_000_000_000L;
+    }
+
+    @Override
+    public int getActiveConnections() {
+        return Server.clients.size();
+    }
+
+    @Override
+    public int getLoggedInUsers() {
+        return Server.clients.loggedIn();
+    }
+
+    @Override
+    public Map<String, Long> getMessagesIn() {
+        return byType(messagesIn);
+    }
+
+    @Override
+    public Map<String, Long> getMessagesOut() {
+        return byType(messagesOut);
+    }
+
+    @Override
+    public long getBytesIn() {
+        return bytesIn.sum();
+    }
+
+    @Override
+    public long getBytesOut() {
+        return bytesOut.sum();
+    }
+
+    @Override
+    public long getSocketWrites() {
+        return socketWrites.sum();
+    }
+
+    @Override
+    public long getUploadBytes() {
+        return uploadBytes.sum();
+    }
+
+    @Override
+    public long getDownloadBytes() {
+        return downloadBytes.sum();
+    }
+
+    @Override
+    public synchronized double getUploadBytesPerSecond() {
+        sampleRates();
+        return uploadRate;
+    }
+
+    @Override
+    public synchronized double getDownloadBytesPerSecond() {
+        sampleRates();
+        return downloadRate;
+    }
+
+    // Readings less than a second apart get the same rates
+    private void sampleRates() {
+        long now = System.nanoTime();
+        long elapsed = now - sampledAt;
+        if (elapsed < 1_000_000_000L) {
+            return;
+        }
+        long upload = uploadBytes.sum();
+        long download = downloadBytes.sum();
+        uploadRate = (upload - sampledUpload) * 1e9 / elapsed;
+        downloadRate = (download - sampledDownload) * 1e9 / elapsed;
+        sampledAt = now;
+        sampledUpload = upload;
+        sampledDownload = download;
+    }
+
+    @Override
+    public long getFanOutDeliveries() {
+        return fanOutLatency.count();
+    }
+
+    @Override
+    public long getFanOutLatencyP50Micros() {
+        return fanOutLatency.percentile(0.5);
+    }
+
+    @Override
+    public long getFanOutLatencyP99Micros() {
+        return fanOutLatency.percentile(0.99);
+    }
+
+    @Override
+    public long getFanOutLatencyMaxMicros() {
+        return fanOutLatency.percentile(1);
+    }
+
+    @Override
+    public long getQueuedMessages() {
+        return OutboundQueue.totalDepth();
+    }
+
+    @Override
+    public int getMaxQueueDepth() {
+        int maxDepth = 0;
+        for (ClientSession client : Server.clients) {
+            maxDepth = Math.max(maxDepth, client.outboundDepth());
+        }
+        return maxDepth;
+    }
+
+    @Override
+    public long getDroppedMessages() {
+        return OutboundQueue.dropped();
+    }
+
+    @Override
+    public long getSlowConsumerDisconnects() {
+        return OutboundQueue.overflows();
+    }
+
+    @Override
+    public String getFileCache() {
+        return files.cache().stats();
+    }
+
+    @Override
+    public int getFederationLinks() {
+        Federation federation = Server.federation();
+        return federation == null ? 0 : federation.linkCount();
+    }
+
+    @Override
+    public long getFederationEventsOut() {
+        return relayed.sum();
+    }
+
+    @Override
+    public long getFederationEventsIn() {
+        return relayReceived.sum();
+    }
+
+    @Override
+    public long getFederationDuplicates() {
+        return relayDuplicates.sum();
+    }
+
+    @Override
+    public long getFederationLost() {
+        return relayLost.sum();
+    }
+
+    private static int slot(int type) {
+        return type >= 0 && type < TYPES ? type : TYPES - 1;
+    }
+
+    private static Map<String, Long> byType(LongAdder[] counts) {
+        Map<String, Long> byType = new LinkedHashMap<>();
+        for (int i = 0; i < TYPES; i++) {
+            long count = counts[i].sum();
+            if (count > 0) {
+                byType.put(TYPE_NAMES[i], count);
+            }
+        }
+        return byType;
+    }
+
+    private static long total(LongAdder[] counts) {
+        long total = 0;
+        for (LongAdder count : counts) {
+            total += count.sum();
+        }
+        return total;
+    }
+
+    // The names of Message's type constants, by value
+    private static String[] typeNames() {
+        String[] names = new String[TYPES];
+        for (int i = 0; i < TYPES; i++) {
+            names[i] = i == TYPES - 1 ? "OTHER" : "TYPE_" + i;
+        }
+        for (Field field : Message.class.getFields()) {
+            if (field.getType() == int.class && Modifier.isStatic(field.getModifiers())) {
+                try {
+                    names[slot(field.getInt(null))] = field.getName();
+                } catch (IllegalAccessException e) {
+                    // Public constants are always accessible
+                }
+            }
+        }
+        return names;
+    }
+
+    private static LongAdder[] adders(int count) {
+        LongAdder[] adders = new LongAdder[count];
+        for (int i = 0; i < count; i++) {
+            adders[i] = new LongAdder();
+        }
+        return adders;
+    }
+}
@@ -0,0 +1,65 @@
+package Server;
+
+import java.util.Map;
+
+// The server's Metrics as seen in JMX, under Server:type=Metrics
+public interface MetricsMXBean {
+    long getUptimeSeconds();
+
+    int getActiveConnections();
+
+    int getLoggedInUsers();
+
+    // By Message type name
+    Map<String, Long> getMessagesIn();
+
+    Map<String, Long> getMessagesOut();
+
+    long getBytesIn();
+
+    long getBytesOut();
+
+    // Writes of frames to client sockets; with messagesOut, how well they are batched
+    long getSocketWrites();
+
+    // File bytes received from uploads and sent by downloads, and their rates since the
+    // previous reading of either
+    long getUploadBytes();
+
+    long getDownloadBytes();
+
+    double getUploadBytesPerSecond();
+
+    double getDownloadBytesPerSecond();
+
+    // From a chat message's fan-out until each recipient's writer hands it to the socket
+    long getFanOutDeliveries();
+
+    long getFanOutLatencyP50Micros();
+
+    long getFanOutLatencyP99Micros();
+
+    long getFanOutLatencyMaxMicros();
+
+    long getQueuedMessages();
+
+    int getMaxQueueDepth();
+
+    long getDroppedMessages();
+
+    long getSlowConsumerDisconnects();
+
+    String getFileCache();
+
+    // Links to other server nodes, events sent on them (forwarded ones included), events from
+    // other nodes handled here, and those that arrived twice or never
+    int getFederationLinks();
+
+    long getFederationEventsOut();
+
+    long getFederationEventsIn();
+
+    long getFederationDuplicates();
+
+    long getFederationLost();
+}
@@ -0,0 +1,432 @@
+package Server;
+
+import Shared.Compression;
+import Shared.Message;
+import Shared.MessageCodec;
+import Shared.Protocol;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+// Non-blocking connection driven by its EventLoop. Reads and writes only happen on the loop
+// thread; other threads fill the outbound queue and let the loop flush it. Queued frames are
+// gathered into one write of up to WRITE_BATCH_BYTES.
+final class NioConnection extends ClientSession {
+    private static final long LINGER_NANOS = TimeUnit.MICROSECONDS.toNanos(ServerConfig.WRITE_LINGER_MICROS);
+
+    private final SocketChannel channel;
+    private final EventLoop loop;
+    private SelectionKey key;
+
+    // Protocol version, 0 until the first bytes reveal a legacy client or a framed handshake
+    private volatile int version;
+    private MessageCodec codec;
+    private final Message received = new Message();
+
+    private final ByteBuffer readBuffer = ByteBuffer.allocate(64 * 1024);
+    private final ByteBuffer inPlace = ByteBuffer.wrap(readBuffer.array());
+    // Messages that span several reads are assembled here
+    private byte[] frameBuffer = new byte[1024];
+    private ByteBuffer frameView = ByteBuffer.wrap(frameBuffer);
+    private int frameLength = -1;
+    private int frameFilled;
+    private boolean frameCompressed;
+    // Created by the first compressed frame
+    private Compression inflater;
+
+    // What the loop is currently writing: frames, from the first with bytes left, and for a
+    // download the file or the range chunk after them. While gathering, frames are still
+    // being added and nothing is written.
+    private ByteBuffer[] frames = new ByteBuffer[16];
+    private int firstFrame;
+    private int frameCount;
+    private long gatheredBytes;
+    private boolean gathering = true;
+    private OutboundFile writingFile;
+    private OutboundRange writingRange;
+    private final AtomicBoolean flushScheduled = new AtomicBoolean();
+    // When gathered frames go out even if no more come; 0 while there are none. A timer on the
+    // loop is set for it at most once at a time.
+    private long lingerUntil;
+    private boolean lingerTimer;
+
+    NioConnection(SocketChannel channel, EventLoop loop, ClientRegistry allClients, RoomManager rooms,
+                  FileCatalog files) {
+        super(allClients, rooms, files);
+        this.channel = channel;
+        this.loop = loop;
+    }
+
+    void attach(SelectionKey key) {
+        this.key = key;
+    }
+
+    void onReadable() {
+        try {
+            int bytesRead = channel.read(readBuffer);
+            if (bytesRead == -1) {
+                disconnect();
+                return;
+            }
+            Metrics.bytesIn(bytesRead);
+            readBuffer.flip();
+            processInput();
+            readBuffer.compact();
+        } catch (Exception e) {
+            Log.warn("Error in NioConnection: " + e.getMessage());
+            disconnect();
+        }
+    }
+
+    private void processInput() throws IOException {
+        byte[] data = readBuffer.array();
+        while (readBuffer.hasRemaining() && key.isValid()) {
+            long remaining = uploadRemaining();
+            if (remaining > 0) {
+                int position = readBuffer.position();
+                int length = (int) Math.min(remaining, readBuffer.remaining());
+                readBuffer.position(position + length);
+                acceptUploadData(data, position, length);
+                continue;
+            }
+
+            if (version == 0) {
+                if (!readHandshake()) return;
+                continue;
+            }
+
+            ByteBuffer payload = version == Protocol.VERSION_LEGACY ? readLine() : readFrame();
+            if (payload == null) {
+                return; // Wait for the rest of the message
+            }
+            Message message = codec.decode(payload, received);
+            if (!handleMessage(message)) {
+                return;
+            }
+        }
+    }
+
+    private boolean readHandshake() throws IOException {
+        if (Protocol.isLegacyStart(readBuffer.get(readBuffer.position()))) {
+            setVersion(Protocol.VERSION_LEGACY);
+            return true;
+        }
+        if (readBuffer.remaining() < Protocol.HANDSHAKE_LENGTH) {
+            return false;
+        }
+        byte[] hello = new byte[Protocol.HANDSHAKE_LENGTH];
+        readBuffer.get(hello);
+        int negotiated = Protocol.negotiate(hello);
+        // Nothing else can be queued before the handshake reply, so it goes out first
+        add(ByteBuffer.wrap(Protocol.handshake(negotiated)));
+        setVersion(negotiated);
+        onOutboundReady();
+        return true;
+    }
+
+    private void setVersion(int version) {
+        this.codec = Protocol.codecFor(version);
+        this.version = version;
+        // Only now does the wire format for broadcasts to this client exist
+        allClients.add(this);
+    }
+
+    // Returns a view of the next line without its newline, or null if it is not complete yet
+    private ByteBuffer readLine() throws IOException {
+        byte[] data = readBuffer.array();
+        int position = readBuffer.position();
+        int limit = readBuffer.limit();
+        for (int i = position; i < limit; i++) {
+            if (data[i] == '\n') {
+                readBuffer.position(i + 1);
+                if (frameFilled == 0) {
+                    return view(inPlace, position, i);
+                }
+                appendToFrame(data, position, i - position);
+                int length = frameFilled;
+                frameFilled = 0;
+                return view(frameView, 0, length);
+            }
+        }
+        appendToFrame(data, position, limit - position);
+        readBuffer.position(limit);
+        return null;
+    }
+
+    // Returns a view of the next frame payload, or null if it is not complete yet
+    private ByteBuffer readFrame() throws IOException {
+        if (frameLength < 0) {
+            if (readBuffer.remaining() < 4) {
+                return null;
+            }
+            int length = readBuffer.getInt();
+            frameCompressed = (length & Protocol.COMPRESSED) != 0;
+            length &= ~Protocol.COMPRESSED;
+            Protocol.checkFrameLength(length);
+            int position = readBuffer.position();
+            if (readBuffer.remaining() >= length) {
+                // Whole frame already buffered, decode it in place
+                readBuffer.position(position + length);
+                return payload(view(inPlace, position, position + length));
+            }
+            frameLength = length;
+            frameFilled = 0;
+        }
+        int length = Math.min(readBuffer.remaining(), frameLength - frameFilled);
+        appendToFrame(readBuffer.array(), readBuffer.position(), length);
+        readBuffer.position(readBuffer.position() + length);
+        if (frameFilled < frameLength) {
+            return null;
+        }
+        length = frameLength;
+        frameLength = -1;
+        frameFilled = 0;
+        return payload(view(frameView, 0, length));
+    }
+
+    private ByteBuffer payload(ByteBuffer frame) throws IOException {
+        if (!frameCompressed) {
+            return frame;
+        }
+        if (inflater == null) {
+            inflater = new Compression();
+        }
+        ByteBuffer inflated = inflater.inflateFrame(frame.array(), frame.position(), frame.remaining());
+        frame.position(frame.limit());
+        return inflated;
+    }
+
+    private void appendToFrame(byte[] data, int offset, int length) throws IOException {
+        int needed = frameFilled + length;
+        if (needed > frameBuffer.length) {
+            Protocol.checkFrameLength(needed);
+            frameBuffer = Arrays.copyOf(frameBuffer, Math.max(needed, frameBuffer.length * 2));
+            frameView = ByteBuffer.wrap(frameBuffer);
+        }
+        System.arraycopy(data, offset, frameBuffer, frameFilled, length);
+        frameFilled = needed;
+    }
+
+    private static ByteBuffer view(ByteBuffer buffer, int from, int to) {
+        buffer.clear().position(from);
+        buffer.limit(to);
+        return buffer;
+    }
+
+    void onWritable() {
+        flush();
+    }
+
+    @Override
+    protected void onOutboundReady() {
+        if (flushScheduled.compareAndSet(false, true)) {
+            loop.execute(this::flush);
+        }
+    }
+
+    @Override
+    protected void requestDisconnect() {
+        loop.execute(this::disconnect);
+    }
+
+    private void flush() {
+        flushScheduled.set(false);
+        if (!key.isValid()) {
+            return;
+        }
+        try {
+            while (true) {
+                if (!gathering) {
+                    if (!writeFrames()) {
+                        waitUntilWritable();
+                        return;
+                    }
+                    if (writingFile != null) {
+                        if (!FileTransfer.transferTo(writingFile, channel)) {
+                            waitUntilWritable();
+                            return;
+                        }
+                        Metrics.downloaded(writingFile.size);
+                        Log.info("Sent file " + writingFile.name + " (" + writingFile.size + " bytes)");
+                        writingFile.release();
+                        writingFile = null;
+                    }
+                    if (writingRange != null) {
+                        if (writingRange.hasData()) {
+                            channel.write(writingRange.data());
+                            if (writingRange.hasData()) {
+                                waitUntilWritable();
+                                return;
+                            }
+                        }
+                        if (writingRange.done()) {
+                            finishRange(writingRange);
+                        }
+                        writingRange = null;
+                    }
+                    gathering = true;
+                }
+
+                boolean drained = gather();
+                if (frameCount == 0) {
+                    break;
+                }
+                // A full batch, or a file or chunk behind the frames, goes out now; otherwise the
+                // frames may wait a little for company
+                if (drained && LINGER_NANOS > 0) {
+                    long wait = lingerUntil - System.nanoTime();
+                    if (wait > 0) {
+                        if (!lingerTimer) {
+                            lingerTimer = true;
+                            loop.schedule(this::lingerOver, wait);
+                        }
+                        break;
+                    }
+                }
+                gathering = false;
+                lingerUntil = 0;
+            }
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+        } catch (IOException e) {
+            Log.warn("Error writing to client: " + e.getMessage());
+            disconnect();
+        }
+    }
+
+    private void lingerOver() {
+        lingerTimer = false;
+        flush();
+    }
+
+    // Adds queued frames to the batch until it is full or a file's or chunk's bytes have to
+    // follow; returns whether that stopped it or the queue ran dry
+    private boolean gather() throws IOException {
+        while (gatheredBytes < ServerConfig.WRITE_BATCH_BYTES) {
+            Outbound item = outbound.poll();
+            if (item == null) {
+                return true;
+            }
+            if (item instanceof OutboundFile) {
+                writingFile = (OutboundFile) item;
+                add(frame(writingFile.metadata));
+                return false;
+            } else if (item instanceof OutboundRange) {
+                if (writeRange((OutboundRange) item)) {
+                    return false;
+                }
+            } else {
+                add(frame((OutboundMessage) item));
+            }
+        }
+        return false;
+    }
+
+    private void add(ByteBuffer frame) {
+        if (frameCount == 0) {
+            lingerUntil = System.nanoTime() + LINGER_NANOS;
+        }
+        if (frameCount == frames.length) {
+            frames = Arrays.copyOf(frames, frameCount * 2);
+        }
+        frames[frameCount++] = frame;
+        gatheredBytes += frame.remaining();
+    }
+
+    // All of the batch in as few gathering writes as the socket takes; false once it is full
+    private boolean writeFrames() throws IOException {
+        while (firstFrame < frameCount) {
+            if (channel.write(frames, firstFrame, frameCount - firstFrame) == 0) {
+                return false;
+            }
+            while (firstFrame < frameCount && !frames[firstFrame].hasRemaining()) {
+                frames[firstFrame++] = null;
+            }
+        }
+        if (frameCount > 0) {
+            Metrics.wrote();
+        }
+        firstFrame = 0;
+        frameCount = 0;
+        gatheredBytes = 0;
+        return true;
+    }
+
+    // A range comes up once for its reply, which opens its stream, and then once per chunk;
+    // the frame joins the batch, then the chunk's bytes follow it. Returns whether they do.
+    private boolean writeRange(OutboundRange range) throws IOException {
+        if (!range.started) {
+            range.started = true;
+            add(frame(range.header));
+            if (range.done()) {
+                finishRange(range);
+            } else {
+                openStream(range);
+            }
+            return false;
+        }
+        ByteBuffer frame = range.nextChunk(version, outboundCompression());
+        outbound.sent(range, range.data().remaining());
+        Metrics.sent(Message.FILE_CHUNK, frame.remaining());
+        Metrics.downloaded(range.data().remaining());
+        add(frame);
+        writingRange = range;
+        return true;
+    }
+
+    private ByteBuffer frame(OutboundMessage message) throws IOException {
+        byte[] frame = message.frame(version, outboundCompression());
+        Metrics.sent(message, frame.length);
+        return ByteBuffer.wrap(frame);
+    }
+
+    private static void finishRange(OutboundRange range) {
+        Log.info("Sent " + (range.end - range.start) + " bytes of file " + range.name
+                + " from offset " + range.start);
+        range.release();
+    }
+
+    // Socket buffer is full, wait until the selector reports it writable again
+    private void waitUntilWritable() {
+        key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+    }
+
+    @Override
+    protected void closeConnection() throws IOException {
+        if (key != null) {
+            key.cancel();
+        }
+        channel.close();
+        if (writingFile != null) {
+            writingFile.release();
+            writingFile = null;
+        }
+        if (writingRange != null) {
+            writingRange.release();
+            writingRange = null;
+        }
+        releaseOutboundCompression();
+        if (inflater != null) {
+            inflater.end();
+            inflater = null;
+        }
+    }
+
+    @Override
+    protected int protocolVersion() {
+        return version;
+    }
+
+    @Override
+    protected String remoteAddress() {
+        try {
+            return String.valueOf(channel.getRemoteAddress());
+        } catch (IOException e) {
+            return "unknown";
+        }
+    }
+}
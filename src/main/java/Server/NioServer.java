@@ -0,0 +1,41 @@
+package Server;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+
+// Non-blocking mode: the calling thread accepts, a fixed set of event loops does all socket I/O
+final class NioServer {
+    private final EventLoop[] loops;
+    private final ClientRegistry allClients;
+    private final RoomManager rooms;
+    private final FileCatalog files;
+
+    NioServer(int loopCount, ClientRegistry allClients, RoomManager rooms, FileCatalog files) throws IOException {
+        this.loops = new EventLoop[loopCount];
+        this.allClients = allClients;
+        this.rooms = rooms;
+        this.files = files;
+        for (int i = 0; i < loopCount; i++) {
+            loops[i] = new EventLoop(i);
+        }
+    }
+
+    void serve(int port) throws IOException {
+        for (EventLoop loop : loops) {
+            loop.start();
+        }
+        try (ServerSocketChannel serverChannel = ServerSocketChannel.open()) {
+            serverChannel.bind(new InetSocketAddress(port));
+            Log.info("Server running on port " + port + " (nio, " + loops.length + " event loops)");
+
+            int next = 0;
+            while (true) {
+                SocketChannel channel = serverChannel.accept();
+                loops[next].register(channel, allClients, rooms, files);
+                next = (next + 1) % loops.length;
+            }
+        }
+    }
+}
@@ -0,0 +1,10 @@
+package Server;
+
+// Something waiting in a client's OutboundQueue
+abstract class Outbound {
+    // Chat fan-out may be dropped for a slow consumer; replies and file transfers never are
+    abstract boolean droppable();
+
+    // Frees resources of an item that will never be written
+    void release() {}
+}
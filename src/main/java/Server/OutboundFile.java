@@ -0,0 +1,41 @@
+package Server;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+
+// A download: the FILE_DOWNLOAD metadata and the raw file bytes, queued as one item so nothing
+// can be written between them. The bytes come from the file, or from its HotFileCache mapping.
+final class OutboundFile extends Outbound {
+    final OutboundMessage metadata;
+    final String name;
+    final FileChannel channel; // null when sent from the cache
+    final HotFileCache.CachedFile cached;
+    final long size;
+    // Progress of the writer currently sending this file
+    long position;
+
+    OutboundFile(OutboundMessage metadata, String name, FileChannel channel, HotFileCache.CachedFile cached, long size) {
+        this.metadata = metadata;
+        this.name = name;
+        this.channel = channel;
+        this.cached = cached;
+        this.size = size;
+    }
+
+    @Override
+    boolean droppable() {
+        return false;
+    }
+
+    @Override
+    void release() {
+        if (channel == null) {
+            return;
+        }
+        try {
+            channel.close();
+        } catch (IOException e) {
+            Log.warn("Error closing file " + name + ": " + e.getMessage());
+        }
+    }
+}
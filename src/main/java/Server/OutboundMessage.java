@@ -0,0 +1,60 @@
+package Server;
+
+import Shared.Compression;
+import Shared.EncodeBuffer;
+import Shared.Message;
+import Shared.Protocol;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+// A message queued for one or many clients. It is encoded at most once per wire version, with
+// and without compression, and every recipient of a broadcast shares the same bytes.
+final class OutboundMessage extends Outbound {
+    private final Message message;
+    private final boolean droppable;
+    // When chat fan-out was handed to its recipients' queues, for Metrics; 0 for other messages
+    final long publishedAt;
+    // Raw bytes that follow the message on the wire, like a file's; null for none
+    private final byte[] payload;
+    // Indexed by version * 2, plus one for the compressed frame
+    private final AtomicReferenceArray<byte[]> frames = new AtomicReferenceArray<>((Protocol.CURRENT_VERSION + 1) * 2);
+
+    OutboundMessage(Message message, boolean droppable) {
+        this(message, droppable, null);
+    }
+
+    OutboundMessage(Message message, boolean droppable, byte[] payload) {
+        this.message = message;
+        this.droppable = droppable;
+        this.payload = payload;
+        this.publishedAt = droppable ? System.nanoTime() : 0;
+    }
+
+    Message message() {
+        return message;
+    }
+
+    @Override
+    boolean droppable() {
+        return droppable;
+    }
+
+    // Complete frame for the given wire version, compressed with the writer's own compression
+    // unless that is null; racing writers may both encode, which is harmless. The payload is
+    // never compressed.
+    byte[] frame(int version, Compression compression) throws IOException {
+        int index = version * 2 + (compression != null ? 1 : 0);
+        byte[] frame = frames.get(index);
+        if (frame == null) {
+            EncodeBuffer buffer = new EncodeBuffer();
+            Protocol.encodeFrame(message, version, buffer, compression);
+            if (payload != null) {
+                buffer.write(payload, 0, payload.length);
+            }
+            frame = buffer.toByteArray();
+            frames.set(index, frame);
+        }
+        return frame;
+    }
+}
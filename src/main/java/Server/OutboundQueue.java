@@ -0,0 +1,312 @@
+package Server;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+// Bounded per-connection queue between the threads producing messages and the connection's
+// writer. When it is full the slow-consumer policy decides what happens to droppable items.
+// Replies, files and downloads are queued past capacity, as the client asked for them, but a
+// client that lets hardCapacity items and open streams pile up is disconnected whatever the
+// policy, so pipelined requests that are never read cannot hold on to unbounded memory.
+//
+// Ranged downloads become streams once their DOWNLOAD_RANGE reply is written: the writer then
+// gets one chunk of a stream at a time, only when no message is waiting, and takes the streams
+// in turn. A stream is skipped while its flow-control window is used up, so chat never waits
+// for more than one chunk and no download holds up the others.
+final class OutboundQueue {
+    enum Policy {
+        DROP_OLDEST, // evict the oldest queued chat message to make room
+        DISCONNECT,  // give up on the client
+        BLOCK;       // make the sender wait up to the configured timeout, then disconnect
+
+        static Policy parse(String name) {
+            return valueOf(name.trim().toUpperCase(Locale.ROOT).replace('-', '_'));
+        }
+    }
+
+    enum Result {
+        ACCEPTED,  // queued (possibly after evicting an older message)
+        DISCARDED, // not queued, the client does not need to be told
+        OVERFLOW   // the client cannot keep up and should be disconnected
+    }
+
+    private static final LongAdder totalDepth = new LongAdder();
+    private static final LongAdder dropped = new LongAdder();
+    private static final LongAdder overflows = new LongAdder();
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private final Condition notFull = lock.newCondition();
+    private final ArrayDeque<Outbound> items = new ArrayDeque<>();
+    // Open streams, the one to get the next chunk first
+    private final ArrayDeque<OutboundRange> streams = new ArrayDeque<>();
+    private final int capacity;
+    private final int hardCapacity;
+    private final Policy policy;
+    private final long blockTimeoutNanos;
+    private int highWater;
+    private boolean closed;
+
+    OutboundQueue() {
+        this(ServerConfig.OUTBOUND_CAPACITY, ServerConfig.OUTBOUND_HARD_CAPACITY, ServerConfig.OUTBOUND_POLICY,
+                ServerConfig.OUTBOUND_BLOCK_TIMEOUT_MS);
+    }
+
+    OutboundQueue(int capacity, int hardCapacity, Policy policy, long blockTimeoutMillis) {
+        this.capacity = capacity;
+        this.hardCapacity = Math.max(capacity, hardCapacity);
+        this.policy = policy;
+        this.blockTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(blockTimeoutMillis);
+    }
+
+    // mayBlock is false on threads that must never wait, such as NIO event loops
+    Result offer(Outbound item, boolean mayBlock) {
+        lock.lock();
+        try {
+            if (closed) {
+                item.release();
+                return Result.DISCARDED;
+            }
+            if (items.size() >= capacity && item.droppable()) {
+                Result full = makeRoom(item, mayBlock);
+                if (full != Result.ACCEPTED) {
+                    if (full == Result.OVERFLOW) {
+                        item.release();
+                    }
+                    return full;
+                }
+            } else if (items.size() + streams.size() >= hardCapacity && !item.droppable()) {
+                item.release();
+                overflows.increment();
+                return Result.OVERFLOW;
+            }
+            items.addLast(item);
+            totalDepth.increment();
+            highWater = Math.max(highWater, items.size());
+            notEmpty.signal();
+            return Result.ACCEPTED;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Called with the lock held and the queue full
+    private Result makeRoom(Outbound item, boolean mayBlock) {
+        switch (policy) {
+            case DROP_OLDEST:
+                for (Iterator<Outbound> it = items.iterator(); it.hasNext(); ) {
+                    if (it.next().droppable()) {
+                        it.remove();
+                        totalDepth.decrement();
+                        dropped.increment();
+                        return Result.ACCEPTED;
+                    }
+                }
+                // Only replies and files are queued; lose the new message instead
+                dropped.increment();
+                return Result.DISCARDED;
+            case BLOCK:
+                if (mayBlock) {
+                    long remaining = blockTimeoutNanos;
+                    try {
+                        while (items.size() >= capacity && !closed && remaining > 0) {
+                            remaining = notFull.awaitNanos(remaining);
+                        }
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                    if (closed) {
+                        item.release();
+                        return Result.DISCARDED;
+                    }
+                    if (items.size() < capacity) {
+                        return Result.ACCEPTED;
+                    }
+                }
+                overflows.increment();
+                return Result.OVERFLOW;
+            default:
+                overflows.increment();
+                return Result.OVERFLOW;
+        }
+    }
+
+    // Next item, or a stream that may send its next chunk; null if there is neither
+    Outbound poll() {
+        lock.lock();
+        try {
+            Outbound item = removeFirst();
+            return item != null ? item : nextStream();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Waits for the next item or sendable stream; returns null once the queue is closed
+    Outbound take() throws InterruptedException {
+        lock.lock();
+        try {
+            while (!closed) {
+                Outbound item = removeFirst();
+                if (item == null) {
+                    item = nextStream();
+                }
+                if (item != null) {
+                    return item;
+                }
+                notEmpty.await();
+            }
+            return null;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Like take(), but gives up after timeoutNanos and returns null then too
+    Outbound take(long timeoutNanos) throws InterruptedException {
+        lock.lock();
+        try {
+            long remaining = timeoutNanos;
+            while (!closed) {
+                Outbound item = removeFirst();
+                if (item == null) {
+                    item = nextStream();
+                }
+                if (item != null || remaining <= 0) {
+                    return item;
+                }
+                remaining = notEmpty.awaitNanos(remaining);
+            }
+            return null;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Called with the lock held. The stream stays open; it just moves to the back.
+    private OutboundRange nextStream() {
+        for (int i = streams.size(); i > 0; i--) {
+            OutboundRange stream = streams.pollFirst();
+            streams.addLast(stream);
+            if (stream.window > 0) {
+                return stream;
+            }
+        }
+        return null;
+    }
+
+    // For the writer, once the range's reply is written; window is how many bytes of chunks
+    // it may send before the client grants more
+    void open(OutboundRange range, long window) {
+        lock.lock();
+        try {
+            if (closed) {
+                range.release();
+                return;
+            }
+            range.window = window;
+            streams.addLast(range);
+            notEmpty.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // For the writer, for each chunk it is about to write; a finished stream is closed
+    void sent(OutboundRange range, int bytes) {
+        lock.lock();
+        try {
+            range.window -= bytes;
+            if (range.done()) {
+                streams.remove(range);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // A WINDOW_UPDATE from the client; returns whether a stream of that ID is open
+    boolean grant(long streamId, long bytes) {
+        if (bytes <= 0) {
+            return false;
+        }
+        lock.lock();
+        try {
+            for (OutboundRange stream : streams) {
+                if (stream.streamId() == streamId) {
+                    stream.window = stream.window > Long.MAX_VALUE - bytes ? Long.MAX_VALUE : stream.window + bytes;
+                    notEmpty.signal();
+                    return true;
+                }
+            }
+            return false;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private Outbound removeFirst() {
+        Outbound item = items.pollFirst();
+        if (item != null) {
+            totalDepth.decrement();
+            notFull.signal();
+        }
+        return item;
+    }
+
+    // Drops everything still queued and wakes up any waiting writer or sender
+    void close() {
+        lock.lock();
+        try {
+            closed = true;
+            Outbound item;
+            while ((item = removeFirst()) != null) {
+                item.release();
+            }
+            for (OutboundRange stream : streams) {
+                stream.release();
+            }
+            streams.clear();
+            notEmpty.signalAll();
+            notFull.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    int depth() {
+        lock.lock();
+        try {
+            return items.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    int highWater() {
+        lock.lock();
+        try {
+            return highWater;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Items queued across all connections
+    static long totalDepth() {
+        return totalDepth.sum();
+    }
+
+    static long dropped() {
+        return dropped.sum();
+    }
+
+    static long overflows() {
+        return overflows.sum();
+    }
+}
@@ -0,0 +1,145 @@
+package Server;
+
+import Shared.Compression;
+import Shared.EncodeBuffer;
+import Shared.Message;
+import Shared.Protocol;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.zip.CRC32C;
+
+// A ranged download: the DOWNLOAD_RANGE reply, then the range as FILE_CHUNK messages, each
+// followed by its raw bytes. Every chunk carries the CRC32C of its bytes, so the client keeps
+// each one it verified and can ask for the rest after a reconnect.
+//
+// A file in the HotFileCache is sent from its mapping, with the chunk checksums it keeps.
+//
+// For a client that accepted compression, chunks that shrink are sent deflated. Whether a file
+// is worth trying is decided once, from its type and a sample of its first chunk.
+//
+// After the reply the range is a stream in the OutboundQueue, and its chunks are interleaved
+// with other messages and streams. The client tells the streams apart by the requestId their
+// chunks carry, which is the one of the DOWNLOAD_RANGE request.
+final class OutboundRange extends Outbound {
+    final OutboundMessage header;
+    final String name;
+    final FileChannel channel; // null when sent from the cache
+    final HotFileCache.CachedFile cached;
+    final long start;
+    final long end;
+    private long position;
+    // Writer only: whether the reply was written
+    boolean started;
+    // Bytes of chunks the client still accepts; guarded by the OutboundQueue's lock
+    long window;
+    private ByteBuffer data; // allocated once the writer gets to this item
+    private ByteBuffer packed; // the compressed chunk, if it is worth it
+    private ByteBuffer sending; // data or packed
+    private Boolean compressible; // null until the first chunk was sampled
+    private final EncodeBuffer chunkFrame = new EncodeBuffer(64);
+    private final CRC32C crc = new CRC32C();
+
+    OutboundRange(OutboundMessage header, String name, FileChannel channel, HotFileCache.CachedFile cached,
+                  long start, long end) {
+        this.header = header;
+        this.name = name;
+        this.channel = channel;
+        this.cached = cached;
+        this.start = start;
+        this.end = end;
+        this.position = start;
+    }
+
+    // Reads the next chunk into data() and returns its FILE_CHUNK frame, or null after the last one.
+    // The bytes have to pass through memory anyway for the checksum, so this reads into a direct
+    // buffer that the socket can take without another copy. compression is null unless the
+    // client accepted it.
+    ByteBuffer nextChunk(int version, Compression compression) throws IOException {
+        if (position >= end) {
+            return null;
+        }
+        int length = (int) Math.min(Protocol.CHUNK_SIZE, end - position);
+        long checksum;
+        if (cached != null) {
+            data = cached.slice(position, length);
+            checksum = cached.checksum(position, length, crc);
+        } else {
+            if (data == null) {
+                data = ByteBuffer.allocateDirect((int) Math.min(Protocol.CHUNK_SIZE, end - start));
+            }
+            data.clear().limit(length);
+            while (data.hasRemaining()) {
+                if (channel.read(data, position + data.position()) == -1) {
+                    throw new IOException("File " + name + " shrank while sending");
+                }
+            }
+            data.flip();
+            crc.reset();
+            crc.update(data);
+            data.rewind();
+            checksum = crc.getValue();
+        }
+
+        Message chunk = new Message(Message.FILE_CHUNK, "Server", name, length);
+        chunk.offset = position;
+        chunk.checksum = checksum;
+        chunk.requestId = streamId();
+        sending = data;
+        if (compression != null) {
+            if (compressible == null) {
+                compressible = compression.worthCompressing(name, data);
+            }
+            if (compressible) {
+                if (packed == null) {
+                    packed = ByteBuffer.allocateDirect(data.capacity());
+                }
+                if (compression.compressChunk(data, packed)) {
+                    chunk.fileLength = packed.remaining();
+                    chunk.flags = Protocol.FEATURE_DEFLATE;
+                    sending = packed;
+                }
+            }
+        }
+        chunkFrame.reset();
+        Protocol.encodeFrame(chunk, version, chunkFrame);
+        position += length;
+        return ByteBuffer.wrap(chunkFrame.array(), 0, chunkFrame.length());
+    }
+
+    long streamId() {
+        return header.message().requestId;
+    }
+
+    // Whether the last chunk was read; the writer may still be writing it
+    boolean done() {
+        return position >= end;
+    }
+
+    // Bytes of the chunk returned by the last nextChunk() call still to be written
+    ByteBuffer data() {
+        return sending;
+    }
+
+    boolean hasData() {
+        return sending != null && sending.hasRemaining();
+    }
+
+    @Override
+    boolean droppable() {
+        return false;
+    }
+
+    @Override
+    void release() {
+        if (channel == null) {
+            return;
+        }
+        try {
+            channel.close();
+        } catch (IOException e) {
+            Log.warn("Error closing file " + name + ": " + e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,479 @@
+package Server;
+
+import Shared.Compression;
+import Shared.DeltaSync;
+import Shared.Protocol;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32C;
+
+// An upload being streamed to disk. The bytes go to a temp file in a subdirectory of the target
+// directory, which the file list skips, and are renamed into place only once all of them arrived.
+//
+// A FILE_UPLOAD is sent in one piece and deleted if the connection drops. An UPLOAD_RESUME upload
+// arrives as checksummed FILE_CHUNKs into a temp file named after the file's SHA-256, which
+// outlives the connection: the next UPLOAD_RESUME for the same digest continues after the last
+// whole chunk.
+//
+// A client that sends the SHA-256 of every chunk along with UPLOAD_RESUME only has to send the
+// chunks the server cannot find itself, in the ChunkIndex or earlier in the same upload; the
+// server copies the others into place as the upload reaches them. A file whose content the
+// server already has is not sent at all, and is stored as a hard link to the existing copy.
+//
+// A compressed FILE_CHUNK is collected whole, then inflated and stored like any other chunk.
+//
+// A chunk that fails its checksum, or does not inflate, is taken back out of the file and the
+// digest, and the client is asked to send the upload again from there. Chunks it sent before it
+// got that request are read and dropped.
+//
+// A DELTA_UPLOAD brings a DeltaSync delta against the file's current version instead of the file;
+// it is spooled like any upload and the new version is rebuilt from it at commit.
+final class PartialUpload {
+    static final String TEMP_DIR = ".uploads";
+    private static final String RESUME_SUFFIX = ".resume";
+
+    // Digests of resumable uploads some connection is currently writing
+    private static final Set<String> active = ConcurrentHashMap.newKeySet();
+
+    final String name;
+    final long length;
+    private Path temp;
+    private final Path target;
+    private final FileChannel channel;
+    private MessageDigest digest = FileCatalog.newDigest();
+    private final String expectedHash; // null unless resumable
+    private long received;
+    // Bytes up to here are expected next: the whole file for FILE_UPLOAD, the announced chunk
+    // for a resumable upload
+    private long expectedEnd;
+    private long chunkStart;
+    private long chunkChecksum;
+    // The digest as it was before the current chunk, to go back to if the chunk is bad
+    private MessageDigest chunkStartDigest;
+    // Set from a bad chunk until the client sends the one at its offset again; discard is what is
+    // left of a chunk being dropped meanwhile
+    private boolean resending;
+    private long discard;
+    private final CRC32C crc = new CRC32C();
+    // Set while a compressed chunk is being received: its bytes so far, and how many there are
+    private Compression chunkCompression;
+    private byte[] packed;
+    private int packedLength;
+    private int packedFilled;
+    private byte[] unpacked;
+    private String hash;
+    // Per chunk, where the server reads it from instead of the client; null entries are sent
+    private ChunkIndex.Location[] sources;
+    private FileChannel source;
+    private Path sourcePath;
+    private ByteBuffer copyBuffer;
+    // Set for a delta upload: the version the delta applies to, and the new version's SHA-256
+    private Path deltaBase;
+    private String deltaHash;
+
+    private PartialUpload(String name, long length, Path temp, Path target, FileChannel channel, String expectedHash) {
+        this.name = name;
+        this.length = length;
+        this.temp = temp;
+        this.target = target;
+        this.channel = channel;
+        this.expectedHash = expectedHash;
+        this.expectedEnd = expectedHash == null ? length : 0;
+    }
+
+    static PartialUpload open(File directory, String name, long length) throws IOException {
+        Path dir = directory.toPath();
+        Path tempDir = dir.resolve(TEMP_DIR);
+        Files.createDirectories(tempDir);
+        Path temp = Files.createTempFile(tempDir, name + ".", ".part");
+        return new PartialUpload(name, length, temp, dir.resolve(name),
+                FileChannel.open(temp, StandardOpenOption.WRITE), null);
+    }
+
+    static PartialUpload delta(File directory, String name, long length, Path base, String expectedHash) throws IOException {
+        PartialUpload upload = open(directory, name, length);
+        upload.deltaBase = base;
+        upload.deltaHash = expectedHash;
+        return upload;
+    }
+
+    // Continues the upload of the file with the given SHA-256 after its last whole chunk, or
+    // starts it. The bytes already on disk are read once to bring the digest up to date.
+    static PartialUpload resume(File directory, String name, long length, String expectedHash) throws IOException {
+        if (expectedHash == null || !expectedHash.matches("[0-9a-f]{64}")) {
+            throw new IOException("Invalid digest " + expectedHash);
+        }
+        if (!active.add(expectedHash)) {
+            throw new IOException("Upload of " + name + " is already in progress");
+        }
+        FileChannel channel = null;
+        try {
+            Path dir = directory.toPath();
+            Path tempDir = dir.resolve(TEMP_DIR);
+            Files.createDirectories(tempDir);
+            Path temp = tempDir.resolve(expectedHash + RESUME_SUFFIX);
+            channel = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                    StandardOpenOption.WRITE);
+            PartialUpload upload = new PartialUpload(name, length, temp, dir.resolve(name), channel, expectedHash);
+
+            // A chunk cut off by the disconnect is sent again
+            long kept = Math.min(channel.size(), length);
+            if (kept < length) {
+                kept -= kept % Protocol.CHUNK_SIZE;
+            }
+            channel.truncate(kept);
+            ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+            while (upload.received < kept) {
+                buffer.clear().limit((int) Math.min(buffer.capacity(), kept - upload.received));
+                int bytesRead = channel.read(buffer, upload.received);
+                upload.digest.update(buffer.array(), 0, bytesRead);
+                upload.received += bytesRead;
+            }
+            channel.position(kept);
+            upload.expectedEnd = kept;
+            return upload;
+        } catch (IOException e) {
+            if (channel != null) {
+                channel.close();
+            }
+            active.remove(expectedHash);
+            throw e;
+        }
+    }
+
+    // Gives the new name the existing file's content without storing it again: a hard link where
+    // the file system allows one, a copy otherwise. Uploads replace files rather than writing into
+    // them, so the names sharing the content never see each other's changes.
+    static Path link(File directory, String name, Path existing) throws IOException {
+        Path dir = directory.toPath();
+        Path tempDir = dir.resolve(TEMP_DIR);
+        Files.createDirectories(tempDir);
+        Path temp = Files.createTempFile(tempDir, name + ".", ".link");
+        Path target = dir.resolve(name);
+        try {
+            Files.delete(temp);
+            try {
+                Files.createLink(temp, existing);
+            } catch (IOException | UnsupportedOperationException e) {
+                Files.copy(existing, temp, StandardCopyOption.REPLACE_EXISTING);
+            }
+            Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } finally {
+            // Still there if target already was a link to the same file
+            Files.deleteIfExists(temp);
+        }
+        return target;
+    }
+
+    // Uploads cut short by a crash are left behind. Only resumable ones can be continued, and
+    // only for a while.
+    static void removeStale(File directory) {
+        File[] stale = new File(directory, TEMP_DIR).listFiles();
+        if (stale == null) return;
+        long cutoff = System.currentTimeMillis() - TimeUnit.HOURS.toMillis(ServerConfig.UPLOAD_RETENTION_HOURS);
+        for (File file : stale) {
+            if (file.getName().endsWith(RESUME_SUFFIX) && file.lastModified() >= cutoff) {
+                continue;
+            }
+            if (file.delete()) {
+                Log.info("Removed incomplete upload " + file.getName());
+            }
+        }
+    }
+
+    boolean resumable() {
+        return expectedHash != null;
+    }
+
+    boolean isDelta() {
+        return deltaBase != null;
+    }
+
+    // Bytes already stored
+    long received() {
+        return received;
+    }
+
+    boolean complete() {
+        return received == length;
+    }
+
+    // Raw bytes the connection should read next
+    long remaining() {
+        if (discard > 0) {
+            return discard;
+        }
+        return chunkCompression != null ? packedLength - packedFilled : expectedEnd - received;
+    }
+
+    // Works out which of the remaining chunks the server can supply and returns the hashes of
+    // those the client has to send, each once, in file order
+    List<String> plan(String[] chunkHashes, FileCatalog files) throws IOException {
+        int count = (int) ((length + Protocol.CHUNK_SIZE - 1) / Protocol.CHUNK_SIZE);
+        if (!resumable() || chunkHashes.length != count) {
+            throw new IOException("Upload of " + name + " needs " + count + " chunk hashes, got " + chunkHashes.length);
+        }
+        sources = new ChunkIndex.Location[count];
+        Map<String, ChunkIndex.Location> inThisFile = new HashMap<>();
+        Set<String> needed = new LinkedHashSet<>();
+        for (int i = 0; i < count; i++) {
+            long offset = (long) i * Protocol.CHUNK_SIZE;
+            ChunkIndex.Location here = new ChunkIndex.Location(temp, offset, (int) Math.min(Protocol.CHUNK_SIZE, length - offset));
+            if (offset >= received) {
+                ChunkIndex.Location known = inThisFile.get(chunkHashes[i]);
+                if (known == null) {
+                    known = files.findChunk(chunkHashes[i]);
+                }
+                if (known != null && known.length == here.length) {
+                    sources[i] = known;
+                    continue;
+                }
+                needed.add(chunkHashes[i]);
+            }
+            inThisFile.putIfAbsent(chunkHashes[i], here);
+        }
+        return new ArrayList<>(needed);
+    }
+
+    // Copies the chunks the server has itself, from where the upload is up to the next one the
+    // client sends. A source that changed since it was indexed shows up in the digest at commit.
+    void fillLocal() throws IOException {
+        while (sources != null && received < length) {
+            ChunkIndex.Location location = sources[(int) (received / Protocol.CHUNK_SIZE)];
+            if (location == null) {
+                return;
+            }
+            if (copyBuffer == null) {
+                copyBuffer = ByteBuffer.allocate(Protocol.CHUNK_SIZE);
+            }
+            FileChannel from = location.path.equals(temp) ? channel : openSource(location.path);
+            copyBuffer.clear().limit(location.length);
+            while (copyBuffer.hasRemaining()) {
+                if (from.read(copyBuffer, location.offset + copyBuffer.position()) == -1) {
+                    throw new IOException("Chunk source " + location.path + " shrank");
+                }
+            }
+            copyBuffer.flip();
+            while (copyBuffer.hasRemaining()) {
+                channel.write(copyBuffer);
+            }
+            digest.update(copyBuffer.array(), 0, location.length);
+            received += location.length;
+            expectedEnd = received;
+        }
+        closeSource();
+    }
+
+    // Consecutive chunks often come from the same file
+    private FileChannel openSource(Path path) throws IOException {
+        if (!path.equals(sourcePath)) {
+            closeSource();
+            source = FileChannel.open(path, StandardOpenOption.READ);
+            sourcePath = path;
+        }
+        return source;
+    }
+
+    private void closeSource() throws IOException {
+        if (source != null) {
+            source.close();
+            source = null;
+            sourcePath = null;
+        }
+    }
+
+    // Announces the next chunk of a resumable upload. Chunks come in order and, except for the
+    // last one, are exactly CHUNK_SIZE bytes, so the file always holds whole chunks. count is
+    // what follows on the wire: fewer bytes for a chunk compressed with the given compression.
+    void beginChunk(long offset, long count, long checksum, Compression compression) throws IOException {
+        if (!resumable() || remaining() > 0) {
+            throw new IOException("Unexpected chunk of " + name);
+        }
+        if (resending && offset != received) {
+            if (count <= 0 || count > Protocol.CHUNK_SIZE) {
+                throw new IOException("Invalid chunk length " + count);
+            }
+            discard = count;
+            return;
+        }
+        resending = false;
+        long chunkLength = Math.min(Protocol.CHUNK_SIZE, length - received);
+        if (offset != received || chunkLength == 0
+                || (compression == null ? count != chunkLength : count <= 0 || count > chunkLength)) {
+            throw new IOException("Chunk of " + name + " at offset " + offset + " (" + count
+                    + " bytes) does not continue at " + received);
+        }
+        chunkStart = received;
+        chunkChecksum = checksum;
+        chunkStartDigest = cloneDigest();
+        expectedEnd = received + chunkLength;
+        crc.reset();
+        if (compression != null) {
+            if (packed == null) {
+                packed = new byte[Protocol.CHUNK_SIZE];
+                unpacked = new byte[Protocol.CHUNK_SIZE];
+            }
+            chunkCompression = compression;
+            packedLength = (int) count;
+            packedFilled = 0;
+        }
+    }
+
+    // The caller never passes more than remaining(). Returns false once a chunk turned out bad
+    // and was dropped; the client has to send the upload again from received().
+    boolean write(byte[] data, int offset, int count) throws IOException {
+        if (discard > 0) {
+            discard -= count;
+            return true;
+        }
+        if (chunkCompression == null) {
+            return store(data, offset, count);
+        }
+        System.arraycopy(data, offset, packed, packedFilled, count);
+        packedFilled += count;
+        if (packedFilled == packedLength) {
+            Compression compression = chunkCompression;
+            chunkCompression = null;
+            int chunkLength = (int) (expectedEnd - received);
+            if (compression.inflateChunk(packed, 0, packedLength, unpacked, chunkLength) != chunkLength) {
+                Log.warn("Compressed chunk of " + name + " at offset " + chunkStart + " is corrupt");
+                return rejectChunk();
+            }
+            return store(unpacked, 0, chunkLength);
+        }
+        return true;
+    }
+
+    private boolean store(byte[] data, int offset, int count) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(data, offset, count);
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        digest.update(data, offset, count);
+        received += count;
+        if (resumable()) {
+            crc.update(data, offset, count);
+            if (received == expectedEnd && crc.getValue() != chunkChecksum) {
+                Log.warn("Checksum mismatch in chunk of " + name + " at offset " + chunkStart);
+                return rejectChunk();
+            }
+        }
+        return true;
+    }
+
+    private boolean rejectChunk() throws IOException {
+        channel.truncate(chunkStart);
+        digest = chunkStartDigest;
+        received = chunkStart;
+        expectedEnd = chunkStart;
+        resending = true;
+        return false;
+    }
+
+    private MessageDigest cloneDigest() throws IOException {
+        try {
+            return (MessageDigest) digest.clone();
+        } catch (CloneNotSupportedException e) {
+            throw new IOException("Cannot checkpoint the digest of " + name, e);
+        }
+    }
+
+    // SHA-256 of everything written, as hex; only valid after the last write
+    String hash() {
+        if (hash == null) {
+            hash = FileCatalog.toHex(digest.digest());
+        }
+        return hash;
+    }
+
+    // Moves the finished file into place in one step, replacing any file of the same name. If the
+    // server already has a file with the same content, the new name links to that one instead.
+    Path commit(FileCatalog files) throws IOException {
+        try {
+            channel.close();
+            closeSource();
+            if (isDelta()) {
+                rebuild();
+            }
+            if (resumable() && !hash().equals(expectedHash)) {
+                Files.deleteIfExists(temp);
+                throw new IOException("Upload of " + name + " does not match its digest");
+            }
+            FileCatalog.Entry duplicate = files.findByHash(hash());
+            if (duplicate != null && duplicate.size == Files.size(temp) && Files.exists(duplicate.path)) {
+                link(target.getParent().toFile(), name, duplicate.path);
+                Files.delete(temp);
+                return target;
+            }
+            Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            Files.deleteIfExists(temp);
+            throw e;
+        } finally {
+            if (resumable()) {
+                active.remove(expectedHash);
+            }
+        }
+        return target;
+    }
+
+    // Applies the received delta to the base version; the result replaces the delta as the file
+    // to commit, and must match the announced hash
+    private void rebuild() throws IOException {
+        Path delta = temp;
+        Path rebuilt = Files.createTempFile(delta.getParent(), name + ".", ".part");
+        MessageDigest rebuiltDigest = FileCatalog.newDigest();
+        try (FileChannel base = FileChannel.open(deltaBase, StandardOpenOption.READ);
+             InputStream in = new BufferedInputStream(Files.newInputStream(delta));
+             OutputStream out = new DigestOutputStream(new BufferedOutputStream(Files.newOutputStream(rebuilt)), rebuiltDigest)) {
+            DeltaSync.apply(base, DeltaSync.blockSize(base.size()), in, out);
+        } catch (IOException e) {
+            Files.deleteIfExists(rebuilt);
+            throw e;
+        } finally {
+            Files.deleteIfExists(delta);
+        }
+        temp = rebuilt;
+        hash = FileCatalog.toHex(rebuiltDigest.digest());
+        if (!hash.equals(deltaHash)) {
+            throw new IOException("Delta upload of " + name + " does not match its digest; the file changed meanwhile?");
+        }
+    }
+
+    // The connection dropped: a resumable upload keeps its bytes for the next one, any other
+    // upload is deleted
+    void interrupt() {
+        try {
+            channel.close();
+            closeSource();
+            if (resumable()) {
+                active.remove(expectedHash);
+            } else {
+                Files.deleteIfExists(temp);
+            }
+        } catch (IOException e) {
+            Log.warn("Error closing incomplete upload " + temp + ": " + e.getMessage());
+        }
+    }
+}
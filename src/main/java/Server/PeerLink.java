@@ -0,0 +1,199 @@
+package Server;
+
+import Shared.FrameReader;
+import Shared.FrameWriter;
+import Shared.Message;
+import Shared.Protocol;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.IOException;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// One TCP connection to another server node, dialed or accepted. After the usual handshake both
+// ends introduce themselves with PEER, proving they share the federation secret if there is one,
+// then send RELAY and FETCH messages either way. Writes go
+// through a thread of their own, so a slow peer holds up neither the clients nor the other
+// links; one that falls MAX_QUEUED writes behind is cut off and has to reconnect.
+final class PeerLink {
+    private static final int MAX_QUEUED = 10_000;
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    private final Socket socket;
+    final FrameReader in;
+    private final FrameWriter out;
+    private final ExecutorService writer;
+    private final AtomicInteger queued = new AtomicInteger();
+    // The writer's, for file chunks
+    private final byte[] chunkBuffer = new byte[Protocol.CHUNK_SIZE];
+    // The peer's node ID, from its PEER message
+    private volatile String peerId;
+
+    PeerLink(Socket socket) throws IOException {
+        this.socket = socket;
+        socket.setTcpNoDelay(true);
+        in = new FrameReader(socket.getInputStream());
+        out = new FrameWriter(socket.getOutputStream());
+        writer = Executors.newSingleThreadExecutor(task -> {
+            Thread thread = new Thread(task, "federation-writer-" + socket.getRemoteSocketAddress());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    // Handshake plus PEER both ways, each with a random nonce in digest; returns the peer's PEER
+    // message. With a secret, both ends then send a second PEER whose digest is an HMAC of the
+    // secret over the two nonces and the end's role, so the secret never crosses the wire and
+    // a proof can be neither replayed nor reflected back to the node that made it.
+    Message introduce(boolean dialed, String nodeId, String instance, String secret) throws IOException {
+        if (dialed) {
+            Protocol.connect(in, out);
+        } else if (Protocol.accept(in, out) == Protocol.VERSION_LEGACY) {
+            throw new IOException("Not a server node");
+        }
+        byte[] random = new byte[16];
+        RANDOM.nextBytes(random);
+        String nonce = FileCatalog.toHex(random);
+        Message hello = new Message(Message.PEER, nodeId, instance);
+        hello.digest = nonce;
+        out.writeMessage(hello);
+        out.flush();
+        Message peer = readPeer();
+        if (!secret.isEmpty()) {
+            if (peer.digest == null) {
+                throw new IOException("Node " + peer.sender + " sent no nonce");
+            }
+            Message proof = new Message(Message.PEER, nodeId, instance);
+            proof.digest = prove(secret, dialed, peer.digest, nonce);
+            out.writeMessage(proof);
+            out.flush();
+            Message answer = readPeer();
+            String expected = prove(secret, !dialed, nonce, peer.digest);
+            if (answer.digest == null || !MessageDigest.isEqual(expected.getBytes(StandardCharsets.US_ASCII),
+                    answer.digest.getBytes(StandardCharsets.US_ASCII))) {
+                throw new IOException("Node " + peer.sender + " does not know the federation secret");
+            }
+        }
+        peerId = peer.sender;
+        return peer;
+    }
+
+    private Message readPeer() throws IOException {
+        Message peer = in.readMessage();
+        if (peer == null || peer.type != Message.PEER) {
+            throw new IOException("Not a server node");
+        }
+        return peer;
+    }
+
+    private static String prove(String secret, boolean dialed, String theirNonce, String ourNonce) {
+        try {
+            Mac mac = Mac.getInstance("HmacSHA256");
+            mac.init(new SecretKeySpec(secret.getBytes(StandardCharsets.UTF_8), "HmacSHA256"));
+            String signed = (dialed ? "dialed:" : "accepted:") + theirNonce + ":" + ourNonce;
+            return FileCatalog.toHex(mac.doFinal(signed.getBytes(StandardCharsets.US_ASCII)));
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("HmacSHA256 is not available", e);
+        }
+    }
+
+    String peerId() {
+        return peerId;
+    }
+
+    // Queues the message, with the raw bytes that follow it if payload is not null
+    void send(Message message, byte[] payload) {
+        write(() -> {
+            out.writeMessage(message);
+            if (payload != null) {
+                out.stream().write(payload);
+            }
+            out.flush();
+        });
+    }
+
+    // Queues the message, then the first fileLength bytes of the file as FILE_CHUNKs. Each chunk
+    // is read and queued once the one before it is written, so events queued meanwhile go out in
+    // between and a large file holds up nothing behind it for longer than a chunk. A file that
+    // shrank meanwhile leaves the transfer unfinished, so the link is closed.
+    void sendFile(Message message, Path path) {
+        send(message, null);
+        sendChunk(message.sender, message.content, path, 0, message.fileLength);
+    }
+
+    private void sendChunk(String sender, String name, Path path, long offset, long length) {
+        if (offset >= length) {
+            return;
+        }
+        write(() -> {
+            int count = (int) Math.min(Protocol.CHUNK_SIZE, length - offset);
+            ByteBuffer chunk = ByteBuffer.wrap(chunkBuffer, 0, count);
+            try (FileChannel file = FileChannel.open(path)) {
+                while (chunk.hasRemaining()) {
+                    if (file.read(chunk, offset + chunk.position()) < 0) {
+                        throw new IOException(path + " shrank while being sent");
+                    }
+                }
+            }
+            Message message = new Message(Message.FILE_CHUNK, sender, name, count);
+            message.offset = offset;
+            out.writeMessage(message);
+            out.stream().write(chunkBuffer, 0, count);
+            out.flush();
+            sendChunk(sender, name, path, offset + count, length);
+        });
+    }
+
+    private interface Write {
+        void run() throws IOException;
+    }
+
+    private void write(Write write) {
+        if (queued.incrementAndGet() > MAX_QUEUED) {
+            Log.warn("Federation link to " + peerId + " is too far behind; closing it");
+            close();
+            return;
+        }
+        try {
+            writer.execute(() -> {
+                queued.decrementAndGet();
+                try {
+                    write.run();
+                } catch (IOException e) {
+                    close();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // Closed
+        }
+    }
+
+    boolean isOpen() {
+        return !socket.isClosed();
+    }
+
+    void close() {
+        writer.shutdownNow();
+        try {
+            socket.close();
+        } catch (IOException e) {
+            // Closing anyway
+        }
+    }
+
+    @Override
+    public String toString() {
+        return peerId + " (" + socket.getRemoteSocketAddress() + ")";
+    }
+}
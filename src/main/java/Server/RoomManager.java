@@ -0,0 +1,161 @@
+package Server;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+// Named rooms and their subscribers, spread over a fixed set of shard threads by room name.
+// A shard's rooms are only ever touched by its own thread, so there is no lock to fight over,
+// busy rooms on different shards run in parallel, and every member of a room sees its messages
+// in the same order. A chat message costs one task plus one enqueue per member of its room.
+// Under the block policy a shard may wait on a full queue, holding up the other rooms of that
+// shard for at most the block timeout. With a ChatLog, the shards also log each room's chat in
+// that order, and replay it to a member in the same task that adds it, so the replay ends
+// exactly where the live messages begin.
+final class RoomManager {
+    static final String LOBBY = "lobby";
+    static final int MAX_NAME_LENGTH = 64;
+
+    private final Shard[] shards;
+    // Set before any client connects; null without history
+    private ChatLog history;
+
+    RoomManager(int shardCount) {
+        shards = new Shard[shardCount];
+        for (int i = 0; i < shardCount; i++) {
+            shards[i] = new Shard(i);
+        }
+    }
+
+    void keepHistory(ChatLog history) {
+        this.history = history;
+    }
+
+    ChatLog history() {
+        return history;
+    }
+
+    // Commas separate entries in the room list
+    static boolean isValidName(String room) {
+        return room != null && !room.isBlank() && room.length() <= MAX_NAME_LENGTH && room.indexOf(',') < 0;
+    }
+
+    private Shard shardFor(String room) {
+        return shards[Math.floorMod(room.hashCode(), shards.length)];
+    }
+
+    // Adds the session to the room, then sends announcement (if any) to the members already there
+    // and reply to the session, so the reply comes before any later message from the room
+    void join(ClientSession session, String room, OutboundMessage announcement, OutboundMessage reply) {
+        Shard shard = shardFor(room);
+        shard.executor.execute(() -> {
+            Set<ClientSession> members = shard.rooms.computeIfAbsent(room, name -> new LinkedHashSet<>());
+            if (members.add(session) && announcement != null) {
+                deliver(members, session, announcement);
+            }
+            if (reply != null) {
+                session.deliver(reply);
+            }
+            if (history != null && ServerConfig.HISTORY_REPLAY > 0 && session.readsHistory()) {
+                ChatLog.Page page = history.recent(room, ServerConfig.HISTORY_REPLAY);
+                if (!page.entries.isEmpty()) {
+                    session.sendHistory(room, page, 0);
+                }
+            }
+        });
+    }
+
+    void leave(ClientSession session, String room, OutboundMessage announcement) {
+        Shard shard = shardFor(room);
+        shard.executor.execute(() -> {
+            Set<ClientSession> members = shard.rooms.get(room);
+            if (members == null || !members.remove(session)) {
+                return;
+            }
+            if (members.isEmpty()) {
+                shard.rooms.remove(room);
+            } else if (announcement != null) {
+                deliver(members, session, announcement);
+            }
+        });
+    }
+
+    // Fans the message out to every member of the room except the sender
+    void publish(String room, ClientSession sender, OutboundMessage message) {
+        Shard shard = shardFor(room);
+        shard.executor.execute(() -> {
+            if (history != null) {
+                history.append(message.message());
+            }
+            Set<ClientSession> members = shard.rooms.get(room);
+            if (members != null) {
+                deliver(members, sender, message);
+            }
+        });
+    }
+
+    // A notice for every member, like publish but not logged
+    void announce(String room, OutboundMessage message) {
+        Shard shard = shardFor(room);
+        shard.executor.execute(() -> {
+            Set<ClientSession> members = shard.rooms.get(room);
+            if (members != null) {
+                deliver(members, null, message);
+            }
+        });
+    }
+
+    private static void deliver(Set<ClientSession> members, ClientSession except, OutboundMessage message) {
+        for (ClientSession member : members) {
+            if (member != except) {
+                member.deliver(message);
+            }
+        }
+    }
+
+    // A page of the room's history, read on its shard rather than the caller's thread (an event
+    // loop, say)
+    CompletableFuture<ChatLog.Page> historyPage(String room, long before, int count) {
+        return CompletableFuture.supplyAsync(() -> history.page(room, before, count), shardFor(room).executor);
+    }
+
+    // Room names with their member counts, collected from every shard without blocking the caller
+    CompletableFuture<Map<String, Integer>> list() {
+        List<CompletableFuture<Map<String, Integer>>> parts = new ArrayList<>();
+        for (Shard shard : shards) {
+            parts.add(CompletableFuture.supplyAsync(() -> {
+                Map<String, Integer> counts = new HashMap<>();
+                shard.rooms.forEach((name, members) -> counts.put(name, members.size()));
+                return counts;
+            }, shard.executor));
+        }
+        return CompletableFuture.allOf(parts.toArray(new CompletableFuture<?>[0])).thenApply(done -> {
+            Map<String, Integer> all = new TreeMap<>();
+            for (CompletableFuture<Map<String, Integer>> part : parts) {
+                all.putAll(part.join());
+            }
+            return all;
+        });
+    }
+
+    private static final class Shard {
+        final ExecutorService executor;
+        // Confined to the executor's thread
+        final Map<String, Set<ClientSession>> rooms = new HashMap<>();
+
+        Shard(int index) {
+            executor = Executors.newSingleThreadExecutor(task -> {
+                Thread thread = new Thread(task, "room-shard-" + index);
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+    }
+}
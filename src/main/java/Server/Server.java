@@ -2,9 +2,16 @@ package Server;
 
 import Shared.User;
 
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
-import java.util.ArrayList;
+import java.nio.channels.ServerSocketChannel;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 public class Server {
     private static final User[] users = {
@@ -15,46 +22,141 @@ public class Server {
             new User("user5", "1234"),
     };
 
-    public static ArrayList<ClientHandler> clients = new ArrayList<>();
+    // Fan-out iterates it without holding a lock during socket writes
+    public static final ClientRegistry clients = new ClientRegistry();
+    static final RoomManager rooms = new RoomManager(ServerConfig.ROOM_SHARDS);
+    // Set once the file catalog is open, before any client connects
+    private static Metrics metrics;
+    // Null unless the server is one node of several
+    private static Federation federation;
 
+    // Usage: Server [blocking|virtual|nio]; defaults to -Dserver.mode, then blocking
     public static void main(String[] args) {
+        String mode = args.length > 0 ? args[0] : ServerConfig.MODE;
+        File filesDir = new File(ServerConfig.FILES_DIRECTORY);
+        PartialUpload.removeStale(filesDir);
+        FileCatalog files = FileCatalog.open(filesDir.toPath());
+        if (ServerConfig.HISTORY) {
+            try {
+                rooms.keepHistory(ChatLog.open(new File(ServerConfig.HISTORY_DIRECTORY).toPath(),
+                        ServerConfig.HISTORY_SEGMENT_BYTES, ServerConfig.HISTORY_MAX_SEGMENTS,
+                        ServerConfig.HISTORY_RECENT, ServerConfig.HISTORY_COMMIT_MILLIS));
+            } catch (IOException e) {
+                Log.warn("Error opening the chat log, running without history: " + e.getMessage());
+            }
+        }
+        if (ServerConfig.FEDERATION_PORT > 0) {
+            federation = new Federation(ServerConfig.NODE_ID, clients, rooms, files, ServerConfig.FEDERATION_GAP_TIMEOUT_MS);
+            try {
+                federation.start(ServerConfig.FEDERATION_PORT, ServerConfig.FEDERATION_PEERS, ServerConfig.FEDERATION_SECRET);
+            } catch (IOException e) {
+                Log.error("Error starting federation on port " + ServerConfig.FEDERATION_PORT + ": " + e.getMessage());
+                return;
+            }
+        }
+        metrics = new Metrics(files);
+        if (ServerConfig.JMX) {
+            metrics.register();
+        }
+        if (ServerConfig.STATS_INTERVAL_SECONDS > 0) {
+            startStatsLogger(ServerConfig.STATS_INTERVAL_SECONDS, files);
+        }
+        if (mode.equals("nio")) {
+            try {
+                new NioServer(ServerConfig.EVENT_LOOPS, clients, rooms, files).serve(ServerConfig.PORT);
+            } catch (Exception e) {
+                Log.error("Error running server: " + e.getMessage(), e);
+            }
+            return;
+        }
+
+        // Both remaining modes run one blocking ClientHandler per connection; "virtual" makes
+        // those threads cheap enough for tens of thousands of mostly idle clients
+        Executor executor;
+        if (mode.equals("virtual")) {
+            executor = Executors.newVirtualThreadPerTaskExecutor();
+        } else {
+            if (!mode.equals("blocking")) {
+                Log.warn("Unknown server mode '" + mode + "', falling back to blocking");
+                mode = "blocking";
+            }
+            executor = task -> new Thread(task).start();
+        }
+
         ServerSocket serverSocket = null;
         try {
-            serverSocket = new ServerSocket(12345);
-            System.out.println("Server running on port 12345");
+            // Opened through a channel so accepted sockets have one too, which lets downloads use
+            // transferTo instead of copying through the socket stream
+            serverSocket = ServerSocketChannel.open().bind(new InetSocketAddress(ServerConfig.PORT)).socket();
+            Log.info("Server running on port " + ServerConfig.PORT + " (" + mode + ")");
 
             while (true) {
                 // Accept a new client connection
                 Socket clientSocket = serverSocket.accept();
                 try {
-                    ClientHandler clientHandler = new ClientHandler(clientSocket, clients);
-                    clients.add(clientHandler);
-                    new Thread(clientHandler).start();
+                    ClientHandler clientHandler = new ClientHandler(clientSocket, clients, rooms, files, executor);
+                    executor.execute(clientHandler);
                 } catch (Exception e) {
                     // If an error occurs while handling the client, close the socket
                     try {
                         clientSocket.close();
                     } catch (Exception closeException) {
-                        System.err.println("Error closing client socket: " + closeException.getMessage());
+                        Log.error("Error closing client socket: " + closeException.getMessage());
                     }
-                    System.err.println("Error handling client: " + e.getMessage());
+                    Log.error("Error handling client: " + e.getMessage());
                     break;
                 }
             }
         } catch (Exception e) {
-            System.err.println("Error running server: " + e.getMessage());
-            e.printStackTrace();
+            Log.error("Error running server: " + e.getMessage(), e);
         } finally {
             if (serverSocket != null) {
                 try {
                     serverSocket.close();
                 } catch (Exception e) {
-                    System.err.println("Error closing server: " + e.getMessage());
+                    Log.error("Error closing server: " + e.getMessage());
                 }
             }
         }
     }
 
+    private static void startStatsLogger(int intervalSeconds, FileCatalog files) {
+        ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(task -> {
+            Thread thread = new Thread(task, "stats-logger");
+            thread.setDaemon(true);
+            return thread;
+        });
+        scheduler.scheduleAtFixedRate(() -> {
+            Log.info(queueStats());
+            Log.info(metrics.summary());
+            Log.info(files.cache().stats());
+        }, intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+    }
+
+    static Metrics metrics() {
+        return metrics;
+    }
+
+    static Federation federation() {
+        return federation;
+    }
+
+    // Outbound queue depths across all connected clients
+    public static String queueStats() {
+        int connections = 0;
+        int maxDepth = 0;
+        int maxHighWater = 0;
+        for (ClientSession client : clients) {
+            connections++;
+            maxDepth = Math.max(maxDepth, client.outboundDepth());
+            maxHighWater = Math.max(maxHighWater, client.outboundHighWater());
+        }
+        return "Outbound queues: " + connections + " connections (" + clients.loggedIn() + " logged in), "
+                + OutboundQueue.totalDepth() + " queued, "
+                + "max depth " + maxDepth + ", max high-water " + maxHighWater + ", "
+                + OutboundQueue.dropped() + " dropped, " + OutboundQueue.overflows() + " slow-consumer disconnects";
+    }
+
     public static boolean authenticate(String username, String password) {
         for (User user : users) {
             if (user.getUsername().equals(username) && user.getPassword().equals(password)) {
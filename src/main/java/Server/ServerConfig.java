@@ -0,0 +1,96 @@
+package Server;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+
+// Startup settings, read once from -D system properties (e.g. -Dserver.mode=nio)
+final class ServerConfig {
+    static final int PORT = Integer.getInteger("server.port", 12345);
+
+    // "blocking" (one platform thread per client), "virtual" (one virtual thread per client)
+    // or "nio" (selector event loops)
+    static final String MODE = System.getProperty("server.mode", "blocking");
+
+    static final int EVENT_LOOPS = Integer.getInteger("server.eventLoops",
+            Math.max(1, Runtime.getRuntime().availableProcessors()));
+
+    // Threads that rooms are spread over; each owns the membership and fan-out of its rooms
+    static final int ROOM_SHARDS = Integer.getInteger("server.roomShards",
+            Math.max(1, Runtime.getRuntime().availableProcessors()));
+
+    // Per-connection outbound queue: capacity in messages, and what to do with a client that
+    // lets it fill up: drop-oldest, disconnect or block (for at most blockTimeoutMs). Replies and
+    // downloads are not dropped; a client with hardCapacity of them queued is disconnected.
+    static final int OUTBOUND_CAPACITY = Integer.getInteger("server.outbound.capacity", 1024);
+    static final int OUTBOUND_HARD_CAPACITY = Integer.getInteger("server.outbound.hardCapacity", 2 * OUTBOUND_CAPACITY);
+    static final OutboundQueue.Policy OUTBOUND_POLICY =
+            OutboundQueue.Policy.parse(System.getProperty("server.outbound.policy", "drop-oldest"));
+    static final long OUTBOUND_BLOCK_TIMEOUT_MS = Long.getLong("server.outbound.blockTimeoutMs", 1000);
+
+    // A connection's writer gathers queued frames into one socket write. It writes once it has
+    // batchBytes, when a file or chunk has to follow, or when the queue runs dry; with lingerMicros
+    // above 0 it then waits up to that long after the first frame for more (nio rounds up to whole
+    // milliseconds). TCP_NODELAY sends each write at once instead of leaving Nagle's algorithm to
+    // hold small ones back for an ACK.
+    static final int WRITE_BATCH_BYTES = Math.max(1, Integer.getInteger("server.write.batchBytes", 64 * 1024));
+    static final long WRITE_LINGER_MICROS = Long.getLong("server.write.lingerMicros", 0);
+    static final boolean TCP_NO_DELAY = Boolean.parseBoolean(System.getProperty("server.tcpNoDelay", "true"));
+
+    // Interrupted resumable uploads older than this are deleted at startup
+    static final int UPLOAD_RETENTION_HOURS = Integer.getInteger("server.uploadRetentionHours", 24);
+
+    // Files downloaded at least admitAfter times are memory-mapped and shared by every download,
+    // up to this many bytes in all (0 turns the cache off) and maxFileBytes per file
+    static final long FILE_CACHE_BYTES = Long.getLong("server.fileCache.bytes", 256L * 1024 * 1024);
+    static final long FILE_CACHE_MAX_FILE_BYTES = Long.getLong("server.fileCache.maxFileBytes", 64L * 1024 * 1024);
+    static final int FILE_CACHE_ADMIT_AFTER = Integer.getInteger("server.fileCache.admitAfter", 2);
+
+    // Whether clients that offer DEFLATE at login get compressed frames and download chunks
+    static final boolean COMPRESSION = Boolean.parseBoolean(System.getProperty("server.compression", "true"));
+
+    // Bytes of chunks a ranged download may have in flight before the client grants more, for
+    // clients that offer stream windows at login; 0 turns flow control off
+    static final long STREAM_WINDOW_BYTES = Long.getLong("server.streamWindowBytes", 4L * 256 * 1024);
+
+    // How often to print statistics; 0 turns it off
+    static final int STATS_INTERVAL_SECONDS = Integer.getInteger("server.statsIntervalSeconds", 0);
+
+    // debug, info (every file sent or received), warn, error or off
+    static final Log.Level LOG_LEVEL = Log.Level.parse(System.getProperty("server.logLevel", "info"));
+
+    // Room chat is appended to mapped segment files of segmentBytes, of which the newest
+    // maxSegments are kept, and forced to disk every commitMillis. The newest `recent` messages
+    // are also kept in memory; a client joining a room gets its last `replay` (0 turns that off).
+    static final boolean HISTORY = Boolean.parseBoolean(System.getProperty("server.history", "true"));
+    static final int HISTORY_SEGMENT_BYTES = Integer.getInteger("server.history.segmentBytes", 16 * 1024 * 1024);
+    static final int HISTORY_MAX_SEGMENTS = Integer.getInteger("server.history.maxSegments", 16);
+    static final long HISTORY_COMMIT_MILLIS = Long.getLong("server.history.commitMillis", 20);
+    static final int HISTORY_RECENT = Integer.getInteger("server.history.recent", 4096);
+    static final int HISTORY_REPLAY = Integer.getInteger("server.history.replay", 50);
+    // Most messages one HISTORY request gets
+    static final int HISTORY_PAGE_MAX = Integer.getInteger("server.history.pageMax", 200);
+
+    // Where uploads and the chat log are kept; nodes sharing a machine need directories of their own
+    static final String FILES_DIRECTORY = System.getProperty("server.filesDir", "src/main/resources/Server/Files");
+    static final String HISTORY_DIRECTORY = System.getProperty("server.historyDir", "src/main/resources/Server/History");
+
+    // Federation: this node's ID, the port other nodes link to (0 turns federation off), and
+    // the nodes to link to, as comma-separated host:port of their federation ports. A node that
+    // does not hear from an origin for gapTimeoutMs gives up on the events missing in between.
+    static final String NODE_ID = System.getProperty("server.nodeId", "node-" + PORT);
+    static final int FEDERATION_PORT = Integer.getInteger("server.federation.port", 0);
+    static final List<String> FEDERATION_PEERS = System.getProperty("server.federation.peers", "").isBlank() ? List.of()
+            : List.of(System.getProperty("server.federation.peers").trim().split("\\s*,\\s*"));
+    static final long FEDERATION_GAP_TIMEOUT_MS = Long.getLong("server.federation.gapTimeoutMs", 2000);
+    // Nodes that link up prove to each other that they were given the same secret; without one, a
+    // node only accepts links from the hosts of its own peers
+    static final String FEDERATION_SECRET = System.getProperty("server.federation.secret", "");
+
+    // Whether to register the Server:type=Metrics MBean, and the users allowed to ask for the
+    // metrics with a METRICS message (comma-separated)
+    static final boolean JMX = Boolean.parseBoolean(System.getProperty("server.jmx", "true"));
+    static final Set<String> ADMINS = Set.copyOf(Arrays.asList(System.getProperty("server.admins", "user1").split("\\s*,\\s*")));
+
+    private ServerConfig() {}
+}
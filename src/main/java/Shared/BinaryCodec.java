@@ -0,0 +1,217 @@
+package Shared;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+// Compact hand-written encoding:
+//
+//   int     type
+//   string  sender
+//   string  content
+//   varlong fileLength
+//   optional fields until the end of the frame
+//
+// A string is a varint of (UTF-8 byte length + 1) followed by the bytes; 0 means null.
+// Each optional field is a varint key of (field number << 1 | kind), where kind 0 is a varlong
+// and kind 1 a string, followed by the value. Fields still at their default are left out, and
+// unknown field numbers are skipped, so new fields do not need a new protocol version.
+// Decoding fills the target Message in place, so the strings are the only allocations.
+public final class BinaryCodec implements MessageCodec {
+    public static final BinaryCodec INSTANCE = new BinaryCodec();
+
+    private static final int KIND_VARLONG = 0;
+    private static final int KIND_STRING = 1;
+
+    // Optional field keys
+    private static final int RECIPIENT = 1 << 1 | KIND_STRING;
+    private static final int ROOM = 2 << 1 | KIND_STRING;
+    private static final int CATALOG_VERSION = 3 << 1 | KIND_VARLONG;
+    private static final int OFFSET = 4 << 1 | KIND_VARLONG;
+    private static final int CHECKSUM = 5 << 1 | KIND_VARLONG;
+    private static final int DIGEST = 6 << 1 | KIND_STRING;
+    private static final int CHUNK_HASHES = 7 << 1 | KIND_STRING;
+    private static final int FLAGS = 8 << 1 | KIND_VARLONG;
+    private static final int REQUEST_ID = 9 << 1 | KIND_VARLONG;
+
+    private BinaryCodec() {}
+
+    // A batch is any number of [int length][message] in a row, like the chat of a HISTORY reply
+    public static void appendToBatch(EncodeBuffer batch, byte[] encodedMessage) {
+        batch.writeInt(encodedMessage.length);
+        batch.write(encodedMessage, 0, encodedMessage.length);
+    }
+
+    public static List<Message> decodeBatch(byte[] batch) throws IOException {
+        List<Message> messages = new ArrayList<>();
+        ByteBuffer in = ByteBuffer.wrap(batch);
+        try {
+            while (in.hasRemaining()) {
+                int length = in.getInt();
+                if (length < 0 || length > in.remaining()) {
+                    throw new IOException("Invalid message length " + length + " in batch");
+                }
+                messages.add(INSTANCE.decode(in.slice(in.position(), length), new Message()));
+                in.position(in.position() + length);
+            }
+        } catch (BufferUnderflowException e) {
+            throw new IOException("Truncated batch");
+        }
+        return messages;
+    }
+
+    @Override
+    public void encode(Message message, EncodeBuffer out) {
+        out.writeInt(message.type);
+        writeString(out, message.sender);
+        writeString(out, message.content);
+        out.writeVarLong(message.fileLength);
+        if (message.recipient != null) {
+            out.writeVarInt(RECIPIENT);
+            writeString(out, message.recipient);
+        }
+        if (message.room != null) {
+            out.writeVarInt(ROOM);
+            writeString(out, message.room);
+        }
+        if (message.catalogVersion != 0) {
+            out.writeVarInt(CATALOG_VERSION);
+            out.writeVarLong(message.catalogVersion);
+        }
+        if (message.offset != 0) {
+            out.writeVarInt(OFFSET);
+            out.writeVarLong(message.offset);
+        }
+        if (message.checksum != 0) {
+            out.writeVarInt(CHECKSUM);
+            out.writeVarLong(message.checksum);
+        }
+        if (message.digest != null) {
+            out.writeVarInt(DIGEST);
+            writeString(out, message.digest);
+        }
+        if (message.chunkHashes != null) {
+            out.writeVarInt(CHUNK_HASHES);
+            writeString(out, message.chunkHashes);
+        }
+        if (message.flags != 0) {
+            out.writeVarInt(FLAGS);
+            out.writeVarLong(message.flags);
+        }
+        if (message.requestId != 0) {
+            out.writeVarInt(REQUEST_ID);
+            out.writeVarLong(message.requestId);
+        }
+    }
+
+    @Override
+    public Message decode(ByteBuffer in, Message target) throws IOException {
+        try {
+            target.type = in.getInt();
+            target.sender = readString(in);
+            target.content = readString(in);
+            target.fileLength = readVarLong(in);
+            target.recipient = null;
+            target.room = null;
+            target.catalogVersion = 0;
+            target.offset = 0;
+            target.checksum = 0;
+            target.digest = null;
+            target.chunkHashes = null;
+            target.flags = 0;
+            target.requestId = 0;
+            while (in.hasRemaining()) {
+                readField(in, target);
+            }
+        } catch (BufferUnderflowException e) {
+            throw new IOException("Truncated message");
+        }
+        return target;
+    }
+
+    private static void readField(ByteBuffer in, Message target) throws IOException {
+        int key = readVarInt(in);
+        switch (key) {
+            case RECIPIENT:
+                target.recipient = readString(in);
+                break;
+            case ROOM:
+                target.room = readString(in);
+                break;
+            case CATALOG_VERSION:
+                target.catalogVersion = readVarLong(in);
+                break;
+            case OFFSET:
+                target.offset = readVarLong(in);
+                break;
+            case CHECKSUM:
+                target.checksum = readVarLong(in);
+                break;
+            case DIGEST:
+                target.digest = readString(in);
+                break;
+            case CHUNK_HASHES:
+                target.chunkHashes = readString(in);
+                break;
+            case FLAGS:
+                target.flags = readVarLong(in);
+                break;
+            case REQUEST_ID:
+                target.requestId = readVarLong(in);
+                break;
+            default:
+                // Written by a newer peer; skip the value
+                if ((key & 1) == KIND_STRING) {
+                    readString(in);
+                } else {
+                    readVarLong(in);
+                }
+        }
+    }
+
+    static void writeString(EncodeBuffer out, String s) {
+        if (s == null) {
+            out.writeVarInt(0);
+            return;
+        }
+        out.writeVarInt(EncodeBuffer.utf8Length(s) + 1);
+        out.writeUtf8(s);
+    }
+
+    static String readString(ByteBuffer in) throws IOException {
+        int encoded = readVarInt(in);
+        if (encoded == 0) {
+            return null;
+        }
+        int length = encoded - 1;
+        if (length < 0 || length > in.remaining()) {
+            throw new IOException("String length " + length + " exceeds message");
+        }
+        String s = new String(in.array(), in.arrayOffset() + in.position(), length, StandardCharsets.UTF_8);
+        in.position(in.position() + length);
+        return s;
+    }
+
+    static long readVarLong(ByteBuffer in) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            byte b = in.get();
+            value |= (long) (b & 0x7F) << shift;
+            if (b >= 0) {
+                return value;
+            }
+        }
+        throw new IOException("Malformed varint");
+    }
+
+    static int readVarInt(ByteBuffer in) throws IOException {
+        long value = readVarLong(in);
+        if (value > 0xFFFFFFFFL) {
+            throw new IOException("Malformed varint");
+        }
+        return (int) value;
+    }
+}
@@ -0,0 +1,35 @@
+package Shared;
+
+// One file in the server's catalog. Snapshots carry a JSON array of these in Message.content,
+// changes a single one, so file names may contain any character.
+public class CatalogEntry {
+    public String name;
+    public long size;
+    public long modified; // milliseconds since the epoch
+    public String hash;   // SHA-256 as hex, null until the server has computed it
+
+    public CatalogEntry() {}
+
+    public CatalogEntry(String name, long size, long modified, String hash) {
+        this.name = name;
+        this.size = size;
+        this.modified = modified;
+        this.hash = hash;
+    }
+
+    public String toJson() {
+        return JsonCodec.gson().toJson(this);
+    }
+
+    public static String toJson(CatalogEntry[] entries) {
+        return JsonCodec.gson().toJson(entries);
+    }
+
+    public static CatalogEntry fromJson(String json) {
+        return JsonCodec.gson().fromJson(json, CatalogEntry.class);
+    }
+
+    public static CatalogEntry[] arrayFromJson(String json) {
+        return JsonCodec.gson().fromJson(json, CatalogEntry[].class);
+    }
+}
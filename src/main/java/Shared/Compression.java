@@ -0,0 +1,211 @@
+package Shared;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.Set;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+// DEFLATE for one direction of one connection. The client offers Protocol.FEATURE_DEFLATE in its
+// LOGIN and the server accepts it in LOGIN_RESPONSE; from then on each side may send a frame
+// compressed, marked by Protocol.COMPRESSED in its length, and a FILE_CHUNK's bytes compressed,
+// marked by FEATURE_DEFLATE in the chunk's flags. Receivers always understand both, so only
+// sending waits for the agreement.
+//
+// Every frame and chunk is compressed on its own, with the Deflater reset in between: a broadcast
+// compressed once can go to every recipient that accepted compression. A preset dictionary of the
+// protocol's common strings lets short chat frames shrink too. An instance belongs to one thread.
+public final class Compression {
+    // Smaller frames do not shrink enough to pay for the work
+    static final int MIN_FRAME_SIZE = 48;
+    // How much of a file's first chunk is deflated to decide whether the file is worth it
+    private static final int SAMPLE_SIZE = 16 * 1024;
+    // Compressed bytes have to be at most this fraction of the original, or the original is sent
+    private static final double MAX_RATIO = 0.9;
+    // Formats that are compressed already; deflating them only costs CPU
+    private static final Set<String> COMPRESSED_TYPES = Set.of(
+            "mp3", "m4a", "aac", "ogg", "opus", "flac", "wma",
+            "mp4", "m4v", "mkv", "webm", "mov", "avi",
+            "jpg", "jpeg", "png", "gif", "webp", "heic",
+            "zip", "gz", "tgz", "bz2", "xz", "zst", "7z", "rar", "jar",
+            "docx", "xlsx", "pptx", "odt", "epub");
+    // Later strings are cheaper to refer to, so the most common ones come last
+    private static final byte[] DICTIONARY = ("{\"name\":\"\",\"size\":0,\"modified\":0,\"hash\":null},"
+            + "\"catalogVersion\":0,\"offset\":0,\"checksum\":0,\"digest\":null,\"chunkHashes\":null,\"flags\":0}"
+            + "{\"type\":1,\"sender\":\"Server\",\"content\":\"\",\"fileLength\":0,\"recipient\":null,\"room\":\"lobby\","
+            + "Log in before  is not online. uploaded file  left room  joined room You joined room "
+            + " left the chat. joined the chat!Server").getBytes(StandardCharsets.UTF_8);
+
+    private Deflater deflater;
+    private Inflater inflater;
+    private byte[] deflated;
+    private byte[] inflated;
+    private final byte[] probe = new byte[1];
+
+    // Files of a type that is compressed already are sent as they are
+    public static boolean worthTrying(String fileName) {
+        int dot = fileName.lastIndexOf('.');
+        return dot < 0 || !COMPRESSED_TYPES.contains(fileName.substring(dot + 1).toLowerCase(Locale.ROOT));
+    }
+
+    // Whether a file's chunks are worth compressing, judged by its type and by how well the
+    // start of its first chunk shrinks. The position of firstChunk does not move.
+    public boolean worthCompressing(String fileName, ByteBuffer firstChunk) {
+        if (!worthTrying(fileName)) {
+            return false;
+        }
+        ByteBuffer sample = firstChunk.slice();
+        sample.limit(Math.min(sample.limit(), SAMPLE_SIZE));
+        int limit = (int) (sample.remaining() * MAX_RATIO);
+        if (deflated == null || deflated.length < limit) {
+            deflated = new byte[Math.max(limit, 1024)];
+        }
+        Deflater deflater = deflater(Deflater.BEST_SPEED);
+        deflater.setInput(sample);
+        deflater.finish();
+        return deflate(deflater, deflated, limit) >= 0;
+    }
+
+    // Replaces the frame that starts at header in out with its compressed form, if that is
+    // smaller; returns whether it did
+    public boolean compressFrame(EncodeBuffer out, int header) {
+        int start = header + 4;
+        int length = out.length() - start;
+        if (length < MIN_FRAME_SIZE) {
+            return false;
+        }
+        if (deflated == null || deflated.length < length) {
+            deflated = new byte[Math.max(length, 1024)];
+        }
+        Deflater deflater = deflater(Deflater.DEFAULT_COMPRESSION);
+        deflater.setInput(out.array(), start, length);
+        deflater.finish();
+        int compressed = deflate(deflater, deflated, length - 1);
+        if (compressed < 0) {
+            return false;
+        }
+        out.truncate(start);
+        out.write(deflated, 0, compressed);
+        out.putInt(header, compressed | Protocol.COMPRESSED);
+        return true;
+    }
+
+    // Returns a view of the decompressed frame; valid until the next call
+    public ByteBuffer inflateFrame(byte[] in, int offset, int length) throws IOException {
+        if (inflated == null) {
+            inflated = new byte[Math.max(1024, length * 4)];
+        }
+        Inflater inflater = inflater();
+        inflater.setInput(in, offset, length);
+        int filled = 0;
+        try {
+            while (!inflater.finished()) {
+                if (filled == inflated.length) {
+                    Protocol.checkFrameLength(filled + 1);
+                    inflated = Arrays.copyOf(inflated, Math.min(Protocol.MAX_FRAME_SIZE, inflated.length * 2));
+                }
+                int count = inflater.inflate(inflated, filled, inflated.length - filled);
+                if (count == 0 && inflater.needsInput()) {
+                    throw new IOException("Truncated compressed frame");
+                }
+                filled += count;
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("Corrupt compressed frame: " + e.getMessage());
+        }
+        return ByteBuffer.wrap(inflated, 0, filled);
+    }
+
+    // Compresses the bytes from data's position to its limit into packed, ready to be written.
+    // Returns false, with packed undefined, if they do not shrink enough; data does not move.
+    public boolean compressChunk(ByteBuffer data, ByteBuffer packed) {
+        Deflater deflater = deflater(Deflater.BEST_SPEED);
+        deflater.setInput(data.slice());
+        deflater.finish();
+        packed.clear().limit(Math.min(packed.capacity(), (int) (data.remaining() * MAX_RATIO)));
+        while (!deflater.finished()) {
+            if (!packed.hasRemaining()) {
+                return false;
+            }
+            deflater.deflate(packed);
+        }
+        packed.flip();
+        return true;
+    }
+
+    // Decompresses a chunk into out; returns its length, or -1 if the bytes are corrupt or would
+    // be longer than max
+    public int inflateChunk(byte[] in, int offset, int length, byte[] out, int max) {
+        Inflater inflater = inflater();
+        inflater.setInput(in, offset, length);
+        try {
+            int filled = 0;
+            while (!inflater.finished()) {
+                if (filled == max) {
+                    // With out full, only the end of the stream may be left
+                    if (inflater.inflate(probe) > 0 || !inflater.finished()) {
+                        return -1;
+                    }
+                    break;
+                }
+                int count = inflater.inflate(out, filled, max - filled);
+                if (count == 0 && inflater.needsInput()) {
+                    return -1;
+                }
+                filled += count;
+            }
+            return inflater.getRemaining() == 0 ? filled : -1;
+        } catch (DataFormatException e) {
+            return -1;
+        }
+    }
+
+    // Frees the native memory now instead of when the instance is collected
+    public void end() {
+        if (deflater != null) {
+            deflater.end();
+            deflater = null;
+        }
+        if (inflater != null) {
+            inflater.end();
+            inflater = null;
+        }
+    }
+
+    private Deflater deflater(int level) {
+        if (deflater == null) {
+            deflater = new Deflater(level, true);
+        } else {
+            deflater.reset();
+            deflater.setLevel(level);
+        }
+        deflater.setDictionary(DICTIONARY);
+        return deflater;
+    }
+
+    private Inflater inflater() {
+        if (inflater == null) {
+            inflater = new Inflater(true);
+        } else {
+            inflater.reset();
+        }
+        inflater.setDictionary(DICTIONARY);
+        return inflater;
+    }
+
+    // Returns the compressed length, or -1 if it would be more than limit
+    private static int deflate(Deflater deflater, byte[] out, int limit) {
+        int filled = 0;
+        while (!deflater.finished()) {
+            if (filled >= limit) {
+                return -1;
+            }
+            filled += deflater.deflate(out, filled, limit - filled);
+        }
+        return filled;
+    }
+}
@@ -0,0 +1,385 @@
+package Shared;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+// rsync-style delta transfer. The side that has the old version sends a signature: for every
+// block, a rolling checksum and a truncated SHA-256. The side with the new version slides a
+// window over it, looks each position's rolling checksum up in the signature and confirms hits
+// with the strong hash, and sends only references to matching blocks plus the bytes in between.
+//
+// Signature: int blockSize, long length, int count, then count * (int weak, STRONG_LENGTH bytes)
+// Delta:     long length, then ops: COPY int block int count | LITERAL int length bytes | END
+public final class DeltaSync {
+    public static final int MIN_BLOCK_SIZE = 2 * 1024;
+    public static final int MAX_BLOCK_SIZE = 128 * 1024;
+    private static final int STRONG_LENGTH = 16;
+    // Literal runs are flushed at this size, which bounds the window buffer
+    private static final int MAX_LITERAL = 64 * 1024;
+
+    private static final int END = 0;
+    private static final int COPY = 1;
+    private static final int LITERAL = 2;
+
+    private DeltaSync() {}
+
+    // About the square root of the length, like rsync: the signature and the bytes re-sent around
+    // each edit both grow with it
+    public static int blockSize(long length) {
+        long size = (long) Math.sqrt((double) length) & ~63L;
+        return (int) Math.max(MIN_BLOCK_SIZE, Math.min(MAX_BLOCK_SIZE, size));
+    }
+
+    public static final class Signature {
+        final int blockSize;
+        final long length;
+        final int[] weak;
+        final byte[] strong;
+        // Chained hash table over the weak checksums
+        private final int[] head;
+        private final int[] next;
+
+        private Signature(int blockSize, long length, int[] weak, byte[] strong) {
+            this.blockSize = blockSize;
+            this.length = length;
+            this.weak = weak;
+            this.strong = strong;
+            int buckets = Integer.highestOneBit(Math.max(1, weak.length) * 2 - 1) << 1;
+            head = new int[buckets];
+            Arrays.fill(head, -1);
+            next = new int[weak.length];
+            // Inserted backwards so chains list lower block numbers first
+            for (int i = weak.length - 1; i >= 0; i--) {
+                int bucket = mix(weak[i]) & (buckets - 1);
+                next[i] = head[bucket];
+                head[bucket] = i;
+            }
+        }
+
+        int blockCount() {
+            return weak.length;
+        }
+
+        int blockLength(int block) {
+            return (int) Math.min(blockSize, length - (long) block * blockSize);
+        }
+
+        private static int mix(int h) {
+            return h ^ (h >>> 16) * 0x45d9f3b;
+        }
+
+        // A block of this length whose checksums match, trying the preferred one first (the
+        // block after the last match, as unchanged stretches run in order); -1 if there is none
+        int find(int weakSum, byte[] data, int offset, int length, int preferred, MessageDigest digest) {
+            byte[] strongSum = null;
+            if (preferred >= 0 && preferred < weak.length && weak[preferred] == weakSum && blockLength(preferred) == length) {
+                strongSum = strong(digest, data, offset, length);
+                if (strongEquals(preferred, strongSum)) {
+                    return preferred;
+                }
+            }
+            for (int i = head[mix(weakSum) & (head.length - 1)]; i >= 0; i = next[i]) {
+                if (weak[i] != weakSum || blockLength(i) != length) {
+                    continue;
+                }
+                if (strongSum == null) {
+                    strongSum = strong(digest, data, offset, length);
+                }
+                if (strongEquals(i, strongSum)) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        private boolean strongEquals(int block, byte[] strongSum) {
+            return Arrays.equals(strong, block * STRONG_LENGTH, (block + 1) * STRONG_LENGTH, strongSum, 0, STRONG_LENGTH);
+        }
+    }
+
+    public static byte[] signature(FileChannel file, int blockSize) throws IOException {
+        long length = file.size();
+        int count = (int) ((length + blockSize - 1) / blockSize);
+        EncodeBuffer out = new EncodeBuffer(16 + count * (4 + STRONG_LENGTH));
+        out.writeInt(blockSize);
+        out.writeLong(length);
+        out.writeInt(count);
+        ByteBuffer block = ByteBuffer.allocate(blockSize);
+        MessageDigest digest = sha256();
+        for (int i = 0; i < count; i++) {
+            long position = (long) i * blockSize;
+            block.clear().limit((int) Math.min(blockSize, length - position));
+            while (block.hasRemaining()) {
+                if (file.read(block, position + block.position()) == -1) {
+                    throw new EOFException("File shrank while computing its signature");
+                }
+            }
+            out.writeInt(weak(block.array(), 0, block.limit()));
+            byte[] strongSum = strong(digest, block.array(), 0, block.limit());
+            out.write(strongSum, 0, STRONG_LENGTH);
+        }
+        return out.toByteArray();
+    }
+
+    public static Signature parseSignature(byte[] data) throws IOException {
+        ByteBuffer in = ByteBuffer.wrap(data);
+        try {
+            int blockSize = in.getInt();
+            long length = in.getLong();
+            int count = in.getInt();
+            if (blockSize < 1 || length < 0 || count != (length + blockSize - 1) / blockSize
+                    || in.remaining() != (long) count * (4 + STRONG_LENGTH)) {
+                throw new IOException("Invalid signature");
+            }
+            int[] weak = new int[count];
+            byte[] strong = new byte[count * STRONG_LENGTH];
+            for (int i = 0; i < count; i++) {
+                weak[i] = in.getInt();
+                in.get(strong, i * STRONG_LENGTH, STRONG_LENGTH);
+            }
+            return new Signature(blockSize, length, weak, strong);
+        } catch (BufferUnderflowException e) {
+            throw new IOException("Truncated signature");
+        }
+    }
+
+    // Writes the delta that turns the signed file into the length bytes of in; returns its size
+    public static long delta(Signature signature, InputStream in, long length, OutputStream target) throws IOException {
+        CountingOutput counter = new CountingOutput(target);
+        DataOutputStream out = new DataOutputStream(counter);
+        out.writeLong(length);
+        int blockSize = signature.blockSize;
+        MessageDigest digest = sha256();
+        byte[] buf = new byte[Math.max(4 * blockSize, 2 * MAX_LITERAL)];
+        int filled = 0;
+        int pos = 0;          // start of the window
+        int literalStart = 0; // bytes from here to pos are not covered by a match yet
+        int weakSum = 0;
+        boolean haveWeak = false;
+        boolean eof = false;
+        int nextBlock = 0;
+        int runStart = -1;
+        int runLength = 0;
+
+        while (true) {
+            // Keep a whole window in the buffer, plus the byte that rolls in after it
+            if (!eof && filled - pos <= blockSize) {
+                System.arraycopy(buf, literalStart, buf, 0, filled - literalStart);
+                filled -= literalStart;
+                pos -= literalStart;
+                literalStart = 0;
+                while (filled < buf.length) {
+                    int n = in.read(buf, filled, buf.length - filled);
+                    if (n == -1) {
+                        eof = true;
+                        break;
+                    }
+                    filled += n;
+                }
+            }
+            int window = Math.min(blockSize, filled - pos);
+            if (window < blockSize) {
+                // Only the end of the input is left, and only the signed file's last block can
+                // still match it, at exactly one position
+                int count = signature.blockCount();
+                int lastLength = count == 0 ? 0 : signature.blockLength(count - 1);
+                if (window < lastLength || lastLength == 0) {
+                    break;
+                }
+                if (window > lastLength) {
+                    pos += window - lastLength;
+                    window = lastLength;
+                    haveWeak = false;
+                }
+            }
+            if (!haveWeak) {
+                weakSum = weak(buf, pos, window);
+                haveWeak = true;
+            }
+            int block = signature.find(weakSum, buf, pos, window, nextBlock, digest);
+            if (block >= 0) {
+                if (pos > literalStart) {
+                    runLength = flushRun(out, runStart, runLength);
+                    writeLiteral(out, buf, literalStart, pos - literalStart);
+                }
+                if (runLength > 0 && block == runStart + runLength) {
+                    runLength++;
+                } else {
+                    flushRun(out, runStart, runLength);
+                    runStart = block;
+                    runLength = 1;
+                }
+                nextBlock = block + 1;
+                pos += window;
+                literalStart = pos;
+                haveWeak = false;
+                continue;
+            }
+            if (pos - literalStart + 1 >= MAX_LITERAL) {
+                runLength = flushRun(out, runStart, runLength);
+                writeLiteral(out, buf, literalStart, pos + 1 - literalStart);
+                literalStart = pos + 1;
+            }
+            if (window < blockSize) {
+                break; // The last block did not match either
+            }
+            if (pos + window < filled) {
+                weakSum = roll(weakSum, buf[pos], buf[pos + window], window);
+            } else {
+                haveWeak = false;
+            }
+            pos++;
+        }
+        if (filled > literalStart) {
+            runLength = flushRun(out, runStart, runLength);
+            writeLiteral(out, buf, literalStart, filled - literalStart);
+        }
+        flushRun(out, runStart, runLength);
+        out.writeByte(END);
+        out.flush();
+        return counter.count;
+    }
+
+    // Rebuilds the new version from the old one and a delta; returns its length
+    public static long apply(FileChannel base, int blockSize, InputStream deltaIn, OutputStream out) throws IOException {
+        DataInputStream delta = new DataInputStream(deltaIn);
+        try {
+            return apply(base, blockSize, delta, out);
+        } catch (EOFException e) {
+            // Only the base's own end comes with a message
+            throw e.getMessage() != null ? e : new EOFException("Truncated delta");
+        }
+    }
+
+    private static long apply(FileChannel base, int blockSize, DataInputStream delta, OutputStream out) throws IOException {
+        long length = delta.readLong();
+        long baseLength = base.size();
+        long blockCount = (baseLength + blockSize - 1) / blockSize;
+        long written = 0;
+        byte[] buffer = new byte[Math.max(blockSize, MAX_LITERAL)];
+        ByteBuffer view = ByteBuffer.wrap(buffer);
+        while (true) {
+            int op = delta.readUnsignedByte();
+            if (op == END) {
+                break;
+            } else if (op == COPY) {
+                int first = delta.readInt();
+                int count = delta.readInt();
+                if (first < 0 || count < 1 || first + (long) count > blockCount) {
+                    throw new IOException("Delta refers to missing blocks " + first + "+" + count);
+                }
+                for (int block = first; block < first + count; block++) {
+                    long position = (long) block * blockSize;
+                    view.clear().limit((int) Math.min(blockSize, baseLength - position));
+                    while (view.hasRemaining()) {
+                        if (base.read(view, position + view.position()) == -1) {
+                            throw new EOFException("Base file shrank");
+                        }
+                    }
+                    out.write(buffer, 0, view.limit());
+                    written += view.limit();
+                }
+            } else if (op == LITERAL) {
+                int count = delta.readInt();
+                if (count < 1 || count > MAX_LITERAL) {
+                    throw new IOException("Invalid literal length " + count);
+                }
+                delta.readFully(buffer, 0, count);
+                out.write(buffer, 0, count);
+                written += count;
+            } else {
+                throw new IOException("Invalid delta op " + op);
+            }
+            if (written > length) {
+                throw new IOException("Delta produces more than " + length + " bytes");
+            }
+        }
+        if (written != length) {
+            throw new IOException("Delta produced " + written + " of " + length + " bytes");
+        }
+        return written;
+    }
+
+    private static int flushRun(DataOutputStream out, int runStart, int runLength) throws IOException {
+        if (runLength > 0) {
+            out.writeByte(COPY);
+            out.writeInt(runStart);
+            out.writeInt(runLength);
+        }
+        return 0;
+    }
+
+    private static void writeLiteral(DataOutputStream out, byte[] data, int offset, int length) throws IOException {
+        for (int done = 0; done < length; ) {
+            int count = Math.min(MAX_LITERAL, length - done);
+            out.writeByte(LITERAL);
+            out.writeInt(count);
+            out.write(data, offset + done, count);
+            done += count;
+        }
+    }
+
+    // rsync's rolling checksum: a is the byte sum, b the sum of the running a values
+    static int weak(byte[] data, int offset, int length) {
+        int a = 0;
+        int b = 0;
+        for (int i = 0; i < length; i++) {
+            a += data[offset + i] & 0xFF;
+            b += a;
+        }
+        return (a & 0xFFFF) | (b << 16);
+    }
+
+    // Slides the window one byte: out leaves at the front, in joins at the back
+    static int roll(int sum, byte out, byte in, int length) {
+        int a = sum & 0xFFFF;
+        int b = sum >>> 16;
+        a = (a - (out & 0xFF) + (in & 0xFF)) & 0xFFFF;
+        b = (b - length * (out & 0xFF) + a) & 0xFFFF;
+        return a | (b << 16);
+    }
+
+    private static byte[] strong(MessageDigest digest, byte[] data, int offset, int length) {
+        digest.update(data, offset, length);
+        return digest.digest();
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static final class CountingOutput extends FilterOutputStream {
+        long count;
+
+        CountingOutput(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            count += len;
+        }
+    }
+}
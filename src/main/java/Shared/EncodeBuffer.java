@@ -0,0 +1,157 @@
+package Shared;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+// Growable byte array that codecs encode into. Meant to be reset and reused, so steady-state
+// encoding does not allocate.
+public class EncodeBuffer {
+    private byte[] data;
+    private int length;
+
+    public EncodeBuffer() {
+        this(256);
+    }
+
+    public EncodeBuffer(int capacity) {
+        this.data = new byte[capacity];
+    }
+
+    public void reset() {
+        length = 0;
+    }
+
+    // Drops everything after the first length bytes
+    public void truncate(int length) {
+        this.length = length;
+    }
+
+    public byte[] array() {
+        return data;
+    }
+
+    public int length() {
+        return length;
+    }
+
+    public byte[] toByteArray() {
+        return Arrays.copyOf(data, length);
+    }
+
+    public void writeTo(OutputStream out) throws IOException {
+        out.write(data, 0, length);
+    }
+
+    private void ensureCapacity(int extra) {
+        if (length + extra > data.length) {
+            data = Arrays.copyOf(data, Math.max(length + extra, data.length * 2));
+        }
+    }
+
+    public void writeByte(int b) {
+        ensureCapacity(1);
+        data[length++] = (byte) b;
+    }
+
+    public void write(byte[] bytes, int offset, int count) {
+        ensureCapacity(count);
+        System.arraycopy(bytes, offset, data, length, count);
+        length += count;
+    }
+
+    public void writeInt(int v) {
+        ensureCapacity(4);
+        putInt(length, v);
+        length += 4;
+    }
+
+    // Overwrites four bytes already written, e.g. a length placeholder
+    public void putInt(int index, int v) {
+        data[index] = (byte) (v >>> 24);
+        data[index + 1] = (byte) (v >>> 16);
+        data[index + 2] = (byte) (v >>> 8);
+        data[index + 3] = (byte) v;
+    }
+
+    public void putLong(int index, long v) {
+        putInt(index, (int) (v >>> 32));
+        putInt(index + 4, (int) v);
+    }
+
+    public void writeLong(long v) {
+        writeInt((int) (v >>> 32));
+        writeInt((int) v);
+    }
+
+    // Unsigned LEB128: 7 bits per byte, high bit set on all but the last byte
+    public void writeVarLong(long v) {
+        ensureCapacity(10);
+        while ((v & ~0x7FL) != 0) {
+            data[length++] = (byte) ((v & 0x7F) | 0x80);
+            v >>>= 7;
+        }
+        data[length++] = (byte) v;
+    }
+
+    public void writeVarInt(int v) {
+        writeVarLong(v & 0xFFFFFFFFL);
+    }
+
+    // One byte per char, keeping only the low eight bits (what DataOutputStream.writeBytes does)
+    public void writeLatin1(String s) {
+        int count = s.length();
+        ensureCapacity(count);
+        for (int i = 0; i < count; i++) {
+            data[length++] = (byte) s.charAt(i);
+        }
+    }
+
+    // Encodes straight from the chars, without the temporary array String.getBytes would create
+    public void writeUtf8(String s) {
+        int count = s.length();
+        ensureCapacity(utf8Length(s));
+        for (int i = 0; i < count; i++) {
+            char c = s.charAt(i);
+            if (c < 0x80) {
+                data[length++] = (byte) c;
+            } else if (c < 0x800) {
+                data[length++] = (byte) (0xC0 | (c >> 6));
+                data[length++] = (byte) (0x80 | (c & 0x3F));
+            } else if (Character.isHighSurrogate(c) && i + 1 < count && Character.isLowSurrogate(s.charAt(i + 1))) {
+                int cp = Character.toCodePoint(c, s.charAt(++i));
+                data[length++] = (byte) (0xF0 | (cp >> 18));
+                data[length++] = (byte) (0x80 | ((cp >> 12) & 0x3F));
+                data[length++] = (byte) (0x80 | ((cp >> 6) & 0x3F));
+                data[length++] = (byte) (0x80 | (cp & 0x3F));
+            } else if (Character.isSurrogate(c)) {
+                data[length++] = '?'; // Unpaired surrogate, same replacement as String.getBytes
+            } else {
+                data[length++] = (byte) (0xE0 | (c >> 12));
+                data[length++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+                data[length++] = (byte) (0x80 | (c & 0x3F));
+            }
+        }
+    }
+
+    public static int utf8Length(String s) {
+        int count = s.length();
+        int bytes = 0;
+        for (int i = 0; i < count; i++) {
+            char c = s.charAt(i);
+            if (c < 0x80) {
+                bytes++;
+            } else if (c < 0x800) {
+                bytes += 2;
+            } else if (Character.isHighSurrogate(c) && i + 1 < count && Character.isLowSurrogate(s.charAt(i + 1))) {
+                bytes += 4;
+                i++;
+            } else if (Character.isSurrogate(c)) {
+                bytes++;
+            } else {
+                bytes += 3;
+            }
+        }
+        return bytes;
+    }
+}
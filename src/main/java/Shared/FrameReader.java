@@ -0,0 +1,103 @@
+package Shared;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+
+// Buffered reader for incoming messages in the negotiated wire format. Raw file bytes that
+// follow a message are read from stream(), which shares the same buffer.
+public class FrameReader {
+    private final DataInputStream in;
+    private int version = Protocol.VERSION_LEGACY;
+    private MessageCodec codec = Protocol.codecFor(version);
+    private byte[] buffer = new byte[1024];
+    private ByteBuffer view = ByteBuffer.wrap(buffer);
+    // Created by the first compressed frame
+    private Compression compression;
+
+    public FrameReader(InputStream in) {
+        this.in = new DataInputStream(new BufferedInputStream(in, 64 * 1024));
+    }
+
+    public DataInputStream stream() {
+        return in;
+    }
+
+    public void setVersion(int version) {
+        this.version = version;
+        this.codec = Protocol.codecFor(version);
+    }
+
+    public int getVersion() {
+        return version;
+    }
+
+    int peek() throws IOException {
+        in.mark(1);
+        int first = in.read();
+        in.reset();
+        return first;
+    }
+
+    // Returns the next message, or null at end of stream
+    public Message readMessage() throws IOException {
+        return readMessage(new Message());
+    }
+
+    // Decodes into target when the codec supports it, so a caller that handles one message at
+    // a time can reuse a single instance
+    public Message readMessage(Message target) throws IOException {
+        ByteBuffer payload = version == Protocol.VERSION_LEGACY ? readLine() : readFrame();
+        if (payload == null) {
+            return null;
+        }
+        return codec.decode(payload, target);
+    }
+
+    private ByteBuffer readFrame() throws IOException {
+        int length;
+        try {
+            length = in.readInt();
+        } catch (EOFException e) {
+            return null;
+        }
+        boolean compressed = (length & Protocol.COMPRESSED) != 0;
+        length &= ~Protocol.COMPRESSED;
+        Protocol.checkFrameLength(length);
+        ensureCapacity(length);
+        in.readFully(buffer, 0, length);
+        if (compressed) {
+            if (compression == null) {
+                compression = new Compression();
+            }
+            return compression.inflateFrame(buffer, 0, length);
+        }
+        view.clear().limit(length);
+        return view;
+    }
+
+    private ByteBuffer readLine() throws IOException {
+        int length = 0;
+        int b;
+        while ((b = in.read()) != -1 && b != '\n') {
+            if (length == buffer.length) {
+                Protocol.checkFrameLength(length + 1);
+                ensureCapacity(length + 1);
+            }
+            buffer[length++] = (byte) b;
+        }
+        if (b == -1) {
+            return null;
+        }
+        view.clear().limit(length);
+        return view;
+    }
+
+    private void ensureCapacity(int length) {
+        if (buffer.length < length) {
+            byte[] grown = new byte[Math.max(length, buffer.length * 2)];
+            System.arraycopy(buffer, 0, grown, 0, buffer.length);
+            buffer = grown;
+            view = ByteBuffer.wrap(buffer);
+        }
+    }
+}
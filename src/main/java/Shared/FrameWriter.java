@@ -0,0 +1,52 @@
+package Shared;
+
+import java.io.*;
+
+// Buffered writer for outgoing messages in the negotiated wire format. Nothing reaches the
+// socket until flush(), so a message and the file bytes after it can go out together.
+public class FrameWriter {
+    private final DataOutputStream out;
+    private final EncodeBuffer encodeBuffer = new EncodeBuffer();
+    private int version = Protocol.VERSION_LEGACY;
+    // Set once the peer agreed to compression
+    private Compression compression;
+
+    public FrameWriter(OutputStream out) {
+        this(out, 64 * 1024);
+    }
+
+    // Frames written before a flush go out together as long as they fit the buffer
+    public FrameWriter(OutputStream out, int bufferSize) {
+        this.out = new DataOutputStream(new BufferedOutputStream(out, bufferSize));
+    }
+
+    public DataOutputStream stream() {
+        return out;
+    }
+
+    public void setVersion(int version) {
+        this.version = version;
+    }
+
+    public int getVersion() {
+        return version;
+    }
+
+    public void setCompression(Compression compression) {
+        this.compression = compression;
+    }
+
+    public boolean compressing() {
+        return compression != null;
+    }
+
+    public void writeMessage(Message message) throws IOException {
+        encodeBuffer.reset();
+        Protocol.encodeFrame(message, version, encodeBuffer, compression);
+        encodeBuffer.writeTo(out);
+    }
+
+    public void flush() throws IOException {
+        out.flush();
+    }
+}
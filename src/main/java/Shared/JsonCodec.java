@@ -0,0 +1,54 @@
+package Shared;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+
+// The original JSON encoding, kept for clients that do not negotiate the binary codec
+public final class JsonCodec implements MessageCodec {
+    public static final JsonCodec UTF8 = new JsonCodec(StandardCharsets.UTF_8);
+    // One char per byte, which is what legacy clients write and expect
+    public static final JsonCodec LEGACY = new JsonCodec(StandardCharsets.ISO_8859_1);
+
+    // Gson instances are thread-safe and cache their reflective adapters, so share one
+    private static final Gson GSON = new Gson();
+
+    private final Charset charset;
+
+    private JsonCodec(Charset charset) {
+        this.charset = charset;
+    }
+
+    public static Gson gson() {
+        return GSON;
+    }
+
+    @Override
+    public void encode(Message message, EncodeBuffer out) {
+        String json = GSON.toJson(message);
+        if (charset == StandardCharsets.UTF_8) {
+            out.writeUtf8(json);
+        } else {
+            out.writeLatin1(json);
+        }
+    }
+
+    @Override
+    public Message decode(ByteBuffer in, Message target) throws IOException {
+        String json = new String(in.array(), in.arrayOffset() + in.position(), in.remaining(), charset);
+        in.position(in.limit());
+        try {
+            Message message = GSON.fromJson(json, Message.class);
+            if (message == null) {
+                throw new IOException("Empty message");
+            }
+            return message;
+        } catch (JsonParseException e) {
+            throw new IOException("Malformed message: " + e.getMessage(), e);
+        }
+    }
+}
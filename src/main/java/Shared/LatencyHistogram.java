@@ -0,0 +1,72 @@
+package Shared;
+
+import java.util.concurrent.atomic.LongAdder;
+
+// Latencies in microseconds, counted in buckets a sixteenth of a power of two wide, so a
+// percentile is within about 6% of the true value. Recording is one LongAdder increment, which
+// many threads can do at once without contending.
+public final class LatencyHistogram {
+    // Values under 2 * SUB_BUCKETS µs get a bucket each; above that, every power of two is
+    // split into SUB_BUCKETS
+    private static final int SUB_BITS = 4;
+    private static final int SUB_BUCKETS = 1 << SUB_BITS;
+    private static final int MAX_SHIFT = 40;
+    private static final int BUCKETS = (MAX_SHIFT + 2) * SUB_BUCKETS;
+
+    private final LongAdder[] counts = new LongAdder[BUCKETS];
+
+    public LatencyHistogram() {
+        for (int i = 0; i < BUCKETS; i++) {
+            counts[i] = new LongAdder();
+        }
+    }
+
+    public void record(long nanos) {
+        counts[bucket(Math.max(0, nanos / 1000))].increment();
+    }
+
+    private static int bucket(long micros) {
+        int shift = Math.max(0, 64 - Long.numberOfLeadingZeros(micros) - SUB_BITS - 1);
+        if (shift > MAX_SHIFT) {
+            return BUCKETS - 1;
+        }
+        return shift * SUB_BUCKETS + (int) (micros >>> shift);
+    }
+
+    // The values of a bucket are below this
+    private static long upperBound(int bucket) {
+        int shift = Math.max(0, bucket / SUB_BUCKETS - 1);
+        return (long) (bucket - shift * SUB_BUCKETS + 1) << shift;
+    }
+
+    public long count() {
+        long count = 0;
+        for (LongAdder bucket : counts) {
+            count += bucket.sum();
+        }
+        return count;
+    }
+
+    // Microseconds that the given fraction of recorded latencies stayed under; 0 if none were
+    // recorded. Concurrent records may or may not be seen.
+    public long percentile(double fraction) {
+        long[] snapshot = new long[BUCKETS];
+        long count = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            snapshot[i] = counts[i].sum();
+            count += snapshot[i];
+        }
+        if (count == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(fraction * count));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += snapshot[i];
+            if (seen >= rank) {
+                return upperBound(i);
+            }
+        }
+        return upperBound(BUCKETS - 1);
+    }
+}
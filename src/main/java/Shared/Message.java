@@ -5,15 +5,51 @@ public class Message {
     public static final int LOGIN = 0;     // Login request
     public static final int CHAT = 1;      // chat message
     public static final int FILE_LIST = 2; // Request a list of files
-    public static final int FILE_UPLOAD = 3; // File upload
+    public static final int FILE_UPLOAD = 3; // File upload; also the reply to any upload with a requestId, sent once the file
+                                             // is saved (content is its name) or failed (content says why)
     public static final int FILE_DOWNLOAD = 4; // Download the file
     public static final int LOGIN_RESPONSE = 5; // login response
     public static final int LOGOUT = 6;    // Logout request
+    public static final int DIRECT = 7;    // Private message to one user
+    public static final int JOIN_ROOM = 8;  // Subscribe to a chat room
+    public static final int LEAVE_ROOM = 9; // Unsubscribe from a chat room
+    public static final int ROOM_LIST = 10; // Request (or receive) the list of rooms
+    public static final int CATALOG_SNAPSHOT = 11; // Request (or receive) every file; subscribes to the changes below
+    public static final int FILE_ADDED = 12;       // A file appeared in the catalog
+    public static final int FILE_REMOVED = 13;     // A file disappeared from the catalog
+    public static final int FILE_MODIFIED = 14;    // A file's size, time or hash changed
+    public static final int DOWNLOAD_RANGE = 15;   // Request (or start receiving) part of a file as FILE_CHUNKs
+    public static final int UPLOAD_RESUME = 16;    // Start or resume an upload; the reply says where to continue, and so
+                                                   // does another one after a chunk that failed its checksum
+    public static final int FILE_CHUNK = 17;       // Raw bytes of one chunk follow (fileLength of them)
+    public static final int SIGNATURE = 18;        // Ask for / send a file's DeltaSync signature (raw bytes follow)
+    public static final int DELTA_UPLOAD = 19;     // A new version of a file as a DeltaSync delta (raw bytes follow)
+    public static final int WINDOW_UPDATE = 20;    // The range answering requestId may send fileLength more chunk bytes
+    public static final int METRICS = 21;          // An admin asks for (or receives) the server's metrics as JSON
+    public static final int HISTORY = 22;          // Ask for fileLength chat messages of a room before seq offset (0 for the newest);
+                                                   // the reply is a BinaryCodec batch of them (raw bytes follow) and the offset of older ones
+    // Between server nodes only (see Server.Federation)
+    public static final int PEER = 23;             // A node introduces itself on a federation link: its ID and instance
+    public static final int RELAY = 24;            // An event from node sender with seq offset; content says what it is, and
+                                                   // the event follows as a BinaryCodec message of fileLength bytes
+    public static final int FETCH = 25;            // Ask a node for a file (content) at a version (digest); the FILE_DOWNLOAD
+                                                   // reply is followed by its bytes as FILE_CHUNKs, or has no digest if the
+                                                   // node no longer has that version
 
     public int type;         // Message type
     public String sender;    // sender
     public String content;   // Content (e.g. chat text, file name, or JSON data)
     public long fileLength;  // File length (for upload and download)
+    public String recipient; // Username a DIRECT message is addressed to
+    public String room;      // Chat room (for CHAT, JOIN_ROOM and LEAVE_ROOM)
+    public long catalogVersion; // Catalog version a snapshot or change brings the client to
+    public long offset;      // Where a range or chunk starts in the file
+    public long checksum;    // CRC32C of a chunk's bytes
+    public String digest;    // SHA-256 (hex) of a whole file
+    public String chunkHashes; // Comma-separated SHA-256 (hex) of CHUNK_SIZE pieces of a file
+    public long flags;       // Protocol.FEATURE_* offered in LOGIN and accepted in LOGIN_RESPONSE; FEATURE_DEFLATE on a compressed FILE_CHUNK
+    public long requestId;   // Chosen by the client for a request; the server's replies to it carry the same one,
+                             // and so do the FILE_CHUNKs of a range, as its stream ID
 
     public Message() {}
 
@@ -0,0 +1,15 @@
+package Shared;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+// Turns a Message into payload bytes and back. Framing (length headers, newlines) is not part
+// of the codec. Implementations are stateless and safe to share between threads.
+public interface MessageCodec {
+    // Appends the encoded message to out
+    void encode(Message message, EncodeBuffer out);
+
+    // Decodes the remaining bytes of in. Codecs that can fill target in place do so and return
+    // it; others return a new Message.
+    Message decode(ByteBuffer in, Message target) throws IOException;
+}
@@ -0,0 +1,132 @@
+package Shared;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+// Wire protocol versions and the handshake that picks one.
+//
+// A framed client opens with MAGIC followed by the highest version it speaks; the server answers
+// with MAGIC and the version both sides will use. A legacy client skips the handshake and starts
+// straight with a JSON line, which the server recognises by its first byte.
+public final class Protocol {
+    public static final byte[] MAGIC = {'C', 'S', 'M', 'R'};
+
+    public static final int VERSION_LEGACY = 1; // newline-terminated JSON, one char per byte
+    public static final int VERSION_FRAMED = 2; // [int length][UTF-8 JSON]
+    public static final int VERSION_BINARY = 3; // [int length][BinaryCodec payload]
+    public static final int CURRENT_VERSION = VERSION_BINARY;
+
+    public static final int HANDSHAKE_LENGTH = MAGIC.length + 1;
+    public static final int MAX_FRAME_SIZE = 16 * 1024 * 1024;
+    // Ranged downloads and resumable uploads move files in chunks of this size, each with its own
+    // checksum; an interrupted transfer resumes at the last chunk boundary
+    public static final int CHUNK_SIZE = 256 * 1024;
+    // Set in a frame's length when the payload is DEFLATE-compressed (see Compression)
+    public static final int COMPRESSED = 0x80000000;
+
+    // Optional features, offered in LOGIN's flags and accepted in LOGIN_RESPONSE's
+    public static final long FEATURE_DEFLATE = 1;
+    // Each ranged download gets a flow-control window the client widens with WINDOW_UPDATE
+    public static final long FEATURE_STREAM_WINDOWS = 2;
+    // The client reads HISTORY batches: the server replays recent chat of a room on joining it
+    public static final long FEATURE_HISTORY = 4;
+
+    private Protocol() {}
+
+    // Legacy clients send a JSON object right away
+    public static boolean isLegacyStart(int firstByte) {
+        return firstByte != MAGIC[0];
+    }
+
+    // Validates a client hello and returns the version the server will answer with
+    public static int negotiate(byte[] hello) throws IOException {
+        if (!Arrays.equals(hello, 0, MAGIC.length, MAGIC, 0, MAGIC.length)) {
+            throw new IOException("Bad protocol handshake");
+        }
+        int offered = hello[MAGIC.length];
+        if (offered < VERSION_FRAMED) {
+            throw new IOException("Unsupported protocol version " + offered);
+        }
+        return Math.min(offered, CURRENT_VERSION);
+    }
+
+    public static byte[] handshake(int version) {
+        byte[] hello = Arrays.copyOf(MAGIC, HANDSHAKE_LENGTH);
+        hello[MAGIC.length] = (byte) version;
+        return hello;
+    }
+
+    // Server side of the handshake on a blocking stream; returns the negotiated version
+    public static int accept(FrameReader reader, FrameWriter writer) throws IOException {
+        int first = reader.peek();
+        if (first == -1 || isLegacyStart(first)) {
+            return VERSION_LEGACY;
+        }
+        byte[] hello = new byte[HANDSHAKE_LENGTH];
+        reader.stream().readFully(hello);
+        int version = negotiate(hello);
+        writer.stream().write(handshake(version));
+        writer.flush();
+        reader.setVersion(version);
+        writer.setVersion(version);
+        return version;
+    }
+
+    // Client side of the handshake; returns the version chosen by the server
+    public static int connect(FrameReader reader, FrameWriter writer) throws IOException {
+        writer.stream().write(handshake(CURRENT_VERSION));
+        writer.flush();
+        byte[] reply = new byte[HANDSHAKE_LENGTH];
+        reader.stream().readFully(reply);
+        if (!Arrays.equals(reply, 0, MAGIC.length, MAGIC, 0, MAGIC.length)) {
+            throw new IOException("Server does not speak the framed protocol");
+        }
+        int version = reply[MAGIC.length];
+        reader.setVersion(version);
+        writer.setVersion(version);
+        return version;
+    }
+
+    public static MessageCodec codecFor(int version) {
+        switch (version) {
+            case VERSION_LEGACY:
+                return JsonCodec.LEGACY;
+            case VERSION_FRAMED:
+                return JsonCodec.UTF8;
+            default:
+                return BinaryCodec.INSTANCE;
+        }
+    }
+
+    // Appends the complete wire representation of one message, header included
+    public static void encodeFrame(Message message, int version, EncodeBuffer out) throws IOException {
+        MessageCodec codec = codecFor(version);
+        if (version == VERSION_LEGACY) {
+            codec.encode(message, out);
+            out.writeByte('\n');
+            return;
+        }
+        int header = out.length();
+        out.writeInt(0);
+        codec.encode(message, out);
+        int length = out.length() - header - 4;
+        checkFrameLength(length);
+        out.putInt(header, length);
+    }
+
+    // Like encodeFrame, but the frame goes out compressed if that makes it smaller; compression
+    // is null while the peer has not agreed to it
+    public static void encodeFrame(Message message, int version, EncodeBuffer out, Compression compression) throws IOException {
+        int header = out.length();
+        encodeFrame(message, version, out);
+        if (compression != null && version != VERSION_LEGACY) {
+            compression.compressFrame(out, header);
+        }
+    }
+
+    public static void checkFrameLength(int length) throws IOException {
+        if (length < 0 || length > MAX_FRAME_SIZE) {
+            throw new IOException("Invalid frame length " + length);
+        }
+    }
+}
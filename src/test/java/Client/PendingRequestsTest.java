@@ -0,0 +1,78 @@
+package Client;
+
+import Shared.Message;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class PendingRequestsTest {
+    private final PendingRequests requests = new PendingRequests();
+
+    @Test
+    void repliesCompleteTheirRequestOnce() throws Exception {
+        Message first = new Message(Message.FILE_LIST, "user1", "");
+        Message second = new Message(Message.FILE_LIST, "user1", "");
+        CompletableFuture<String> firstReply = requests.register(first, 10);
+        CompletableFuture<String> secondReply = requests.register(second, 10);
+        assertNotEquals(first.requestId, second.requestId);
+
+        assertTrue(requests.complete(second.requestId, "two"));
+        assertFalse(requests.complete(second.requestId, "again"));
+        assertEquals("two", secondReply.get(1, TimeUnit.SECONDS));
+        assertFalse(firstReply.isDone());
+        assertFalse(requests.complete(12345, "unknown"));
+    }
+
+    @Test
+    void aRequestWithoutReplyTimesOut() {
+        Message request = new Message(Message.FILE_LIST, "user1", "");
+        CompletableFuture<String> reply = requests.register(request, 1);
+        ExecutionException error = assertThrows(ExecutionException.class, () -> reply.get(5, TimeUnit.SECONDS));
+        assertInstanceOf(TimeoutException.class, error.getCause());
+        // Too late; nothing waits for it any more
+        assertFalse(requests.complete(request.requestId, "late"));
+    }
+
+    @Test
+    void anUploadResultIsKeptApartFromTheReply() throws Exception {
+        Message request = new Message(Message.UPLOAD_RESUME, "user1", "file.bin");
+        CompletableFuture<Message> reply = requests.register(request, 10);
+        CompletableFuture<Message> result = requests.expectResult(request.requestId);
+
+        // The result may come before the reply is handled
+        Message saved = new Message(Message.FILE_UPLOAD, "Server", "file.bin");
+        assertTrue(requests.completeResult(request.requestId, saved));
+        assertFalse(reply.isDone());
+        Message resume = new Message(Message.UPLOAD_RESUME, "Server", "file.bin");
+        assertTrue(requests.complete(request.requestId, resume));
+        assertSame(resume, reply.get(1, TimeUnit.SECONDS));
+        assertSame(saved, result.get(1, TimeUnit.SECONDS));
+        assertFalse(requests.completeResult(request.requestId, saved));
+    }
+
+    @Test
+    void aCancelledResultIsForgotten() {
+        CompletableFuture<Message> result = requests.expectResult(7);
+        result.cancel(false);
+        assertFalse(requests.completeResult(7, new Message(Message.FILE_UPLOAD, "Server", "file.bin")));
+    }
+
+    @Test
+    void aClosedConnectionFailsEverythingWaiting() {
+        Message request = new Message(Message.FILE_LIST, "user1", "");
+        CompletableFuture<String> reply = requests.register(request, 10);
+        CompletableFuture<Message> result = requests.expectResult(request.requestId);
+        requests.failAll(new IOException("Connection closed"));
+
+        for (CompletableFuture<?> future : new CompletableFuture<?>[] {reply, result}) {
+            ExecutionException error = assertThrows(ExecutionException.class, () -> future.get(1, TimeUnit.SECONDS));
+            assertEquals("Connection closed", error.getCause().getMessage());
+        }
+    }
+}
@@ -0,0 +1,239 @@
+package Server;
+
+import Shared.BinaryCodec;
+import Shared.EncodeBuffer;
+import Shared.Message;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Stream;
+import java.util.zip.CRC32C;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ChatLogTest {
+    private static final int SEGMENT_BYTES = 512;
+
+    @TempDir
+    Path directory;
+
+    private final List<ChatLog> opened = new ArrayList<>();
+
+    @AfterEach
+    void closeLogs() {
+        opened.forEach(ChatLog::close);
+    }
+
+    private ChatLog open(int maxSegments, int recent) throws IOException {
+        ChatLog log = ChatLog.open(directory, SEGMENT_BYTES, maxSegments, recent, 10_000);
+        opened.add(log);
+        return log;
+    }
+
+    private ChatLog reopen(ChatLog log, int maxSegments, int recent) throws IOException {
+        log.close();
+        return open(maxSegments, recent);
+    }
+
+    private static Message chat(String room, String text) {
+        Message message = new Message(Message.CHAT, "user1", text);
+        message.room = room;
+        return message;
+    }
+
+    private static List<String> contents(ChatLog.Page page) throws IOException {
+        List<String> contents = new ArrayList<>();
+        for (ChatLog.Entry entry : page.entries) {
+            contents.add(BinaryCodec.INSTANCE.decode(ByteBuffer.wrap(entry.message), new Message()).content);
+        }
+        return contents;
+    }
+
+    // Pages back through the whole room, oldest first
+    private static List<String> all(ChatLog log, String room, int pageSize) throws IOException {
+        List<String> contents = new ArrayList<>();
+        long before = 0;
+        do {
+            ChatLog.Page page = log.page(room, before, pageSize);
+            contents.addAll(0, contents(page));
+            before = page.before;
+        } while (before != 0);
+        return contents;
+    }
+
+    private static List<String> texts(String prefix, int from, int to) {
+        List<String> texts = new ArrayList<>();
+        for (int i = from; i < to; i++) {
+            texts.add(prefix + i);
+        }
+        return texts;
+    }
+
+    private long segmentFiles() throws IOException {
+        try (Stream<Path> files = Files.list(directory)) {
+            return files.count();
+        }
+    }
+
+    // A segment file written the way ChatLog writes one, with a record per message from firstSeq on
+    private void writeSegment(long firstSeq, Message... messages) throws IOException {
+        EncodeBuffer out = new EncodeBuffer();
+        CRC32C crc = new CRC32C();
+        for (int i = 0; i < messages.length; i++) {
+            int start = out.length();
+            out.writeInt(0);
+            out.writeInt(0);
+            out.writeLong(firstSeq + i);
+            BinaryCodec.INSTANCE.encode(messages[i], out);
+            int length = out.length() - start - 8;
+            out.putInt(start, length);
+            crc.reset();
+            crc.update(out.array(), start + 8, length);
+            out.putInt(start + 4, (int) crc.getValue());
+        }
+        Files.write(directory.resolve(String.format("%020d.log", firstSeq)), out.toByteArray());
+    }
+
+    @Test
+    void pagesBackAcrossSegmentsAndAfterRecovery() throws IOException {
+        // A ring of 4 makes most of the pages come from the segments
+        ChatLog log = open(100, 4);
+        for (int i = 0; i < 40; i++) {
+            assertEquals(2 * i + 1, log.append(chat("a", "a" + i)));
+            assertEquals(2 * i + 2, log.append(chat("b", "b" + i)));
+        }
+        assertTrue(segmentFiles() > 3);
+
+        ChatLog.Page newest = log.page("a", 0, 5);
+        assertEquals(texts("a", 35, 40), contents(newest));
+        assertEquals(71, newest.before);
+        assertEquals(texts("a", 30, 35), contents(log.page("a", newest.before, 5)));
+        assertEquals(texts("a", 0, 40), all(log, "a", 7));
+        assertEquals(texts("b", 0, 40), all(log, "b", 7));
+        assertTrue(log.page("c", 0, 5).entries.isEmpty());
+
+        log = reopen(log, 100, 4);
+        assertEquals(texts("a", 0, 40), all(log, "a", 7));
+        assertEquals(texts("b", 0, 40), all(log, "b", 7));
+        assertEquals(81, log.append(chat("a", "a40")));
+    }
+
+    @Test
+    void dropsTheOldestSegments() throws IOException {
+        ChatLog log = open(2, 4);
+        for (int i = 0; i < 60; i++) {
+            log.append(chat(i < 10 ? "old" : "new", "m" + i));
+        }
+        assertEquals(2, segmentFiles());
+        assertTrue(log.page("old", 0, 10).entries.isEmpty());
+        List<String> kept = all(log, "new", 10);
+        assertFalse(kept.isEmpty());
+        assertEquals(texts("m", 60 - kept.size(), 60), kept);
+
+        log = reopen(log, 2, 4);
+        assertEquals(kept, all(log, "new", 10));
+    }
+
+    @Test
+    void recoveryStopsAtATornRecord() throws IOException {
+        writeSegment(1, chat("a", "one"), chat("a", "two"), chat("a", "three"));
+        Path file = directory.resolve(String.format("%020d.log", 1));
+        byte[] bytes = Files.readAllBytes(file);
+        // Corrupts the last byte of the last record, as a crash halfway through writing it would
+        bytes[bytes.length - 1] ^= 0x55;
+        Files.write(file, bytes);
+
+        ChatLog log = open(10, 16);
+        assertEquals(List.of("one", "two"), all(log, "a", 10));
+        // The torn record's seq is taken by the next message, in its place
+        assertEquals(3, log.append(chat("a", "three again")));
+        log = reopen(log, 10, 16);
+        assertEquals(List.of("one", "two", "three again"), all(log, "a", 10));
+    }
+
+    @Test
+    void pagesSkipAGapBetweenSegments() throws IOException {
+        writeSegment(1, chat("a", "1"), chat("a", "2"), chat("a", "3"));
+        writeSegment(10, chat("a", "10"), chat("a", "11"), chat("a", "12"));
+
+        ChatLog log = open(10, 1);
+        assertEquals(List.of("1", "2", "3", "10", "11", "12"), all(log, "a", 2));
+        // The gap stays; the next message goes on after the newest segment's last one
+        assertEquals(13, log.append(chat("a", "13")));
+        assertEquals(List.of("1", "2", "3", "10", "11", "12", "13"), all(log, "a", 2));
+    }
+
+    @Test
+    void anOverlappingSegmentStartsTheLogAfresh() throws IOException {
+        writeSegment(1, chat("a", "1"), chat("a", "2"), chat("a", "3"), chat("a", "4"), chat("a", "5"));
+        writeSegment(3, chat("a", "3b"), chat("a", "4b"));
+
+        ChatLog log = open(10, 1);
+        assertEquals(List.of("3b", "4b"), all(log, "a", 10));
+        assertEquals(5, log.append(chat("a", "5b")));
+        assertFalse(Files.exists(directory.resolve(String.format("%020d.log", 1))));
+    }
+
+    @Test
+    void emptySegmentsAreDeleted() throws IOException {
+        writeSegment(1, chat("a", "1"));
+        Files.write(directory.resolve(String.format("%020d.log", 2)), new byte[SEGMENT_BYTES]);
+
+        ChatLog log = open(10, 1);
+        assertEquals(List.of("1"), all(log, "a", 10));
+        assertEquals(1, segmentFiles());
+        assertEquals(2, log.append(chat("a", "2")));
+    }
+
+    @Test
+    void anOversizedMessageIsNotLoggedAndUsesNoSeq() throws IOException {
+        ChatLog log = open(10, 16);
+        assertEquals(0, log.append(chat("a", "x".repeat(SEGMENT_BYTES))));
+        assertEquals(0, segmentFiles());
+        assertEquals(1, log.append(chat("a", "small")));
+        assertEquals(List.of("small"), all(log, "a", 10));
+    }
+
+    @Test
+    void roomsAppendInParallel() throws Exception {
+        ChatLog log = ChatLog.open(directory, 4096, 1000, 8, 1);
+        opened.add(log);
+        int rooms = 4;
+        int messages = 500;
+        ExecutorService shards = Executors.newFixedThreadPool(rooms);
+        try {
+            List<Future<List<String>>> results = new ArrayList<>();
+            for (int r = 0; r < rooms; r++) {
+                String room = "room" + r;
+                // Each room appends and pages on one thread, like a room shard
+                results.add(shards.submit(() -> {
+                    for (int i = 0; i < messages; i++) {
+                        assertTrue(log.append(chat(room, room + ":" + i)) > 0);
+                    }
+                    return all(log, room, 64);
+                }));
+            }
+            for (int r = 0; r < rooms; r++) {
+                assertEquals(texts("room" + r + ":", 0, messages), results.get(r).get());
+            }
+        } finally {
+            shards.shutdown();
+        }
+
+        ChatLog recovered = reopen(log, 1000, 8);
+        for (int r = 0; r < rooms; r++) {
+            assertEquals(texts("room" + r + ":", 0, messages), all(recovered, "room" + r, 100));
+        }
+        assertEquals(rooms * messages + 1, recovered.append(chat("room0", "last")));
+    }
+}
@@ -0,0 +1,193 @@
+package Server;
+
+import Shared.Message;
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class OutboundQueueTest {
+    // An item that remembers whether it was released
+    private static final class Item extends Outbound {
+        final boolean droppable;
+        boolean released;
+
+        Item(boolean droppable) {
+            this.droppable = droppable;
+        }
+
+        @Override
+        boolean droppable() {
+            return droppable;
+        }
+
+        @Override
+        void release() {
+            released = true;
+        }
+    }
+
+    private static OutboundRange range(long streamId, long length) {
+        Message reply = new Message(Message.DOWNLOAD_RANGE, "Server", "file.bin", length);
+        reply.requestId = streamId;
+        return new OutboundRange(new OutboundMessage(reply, false), "file.bin", null, null, 0, length);
+    }
+
+    @Test
+    void dropOldestEvictsOnlyDroppableItems() {
+        OutboundQueue queue = new OutboundQueue(3, 10, OutboundQueue.Policy.DROP_OLDEST, 0);
+        Item reply = new Item(false);
+        Item chat1 = new Item(true);
+        Item chat2 = new Item(true);
+        assertEquals(OutboundQueue.Result.ACCEPTED, queue.offer(reply, false));
+        assertEquals(OutboundQueue.Result.ACCEPTED, queue.offer(chat1, false));
+        assertEquals(OutboundQueue.Result.ACCEPTED, queue.offer(chat2, false));
+
+        Item chat3 = new Item(true);
+        assertEquals(OutboundQueue.Result.ACCEPTED, queue.offer(chat3, false));
+        assertSame(reply, queue.poll());
+        assertSame(chat2, queue.poll());
+        assertSame(chat3, queue.poll());
+        assertNull(queue.poll());
+    }
+
+    @Test
+    void dropOldestDiscardsNewMessageWhenOnlyRepliesAreQueued() {
+        OutboundQueue queue = new OutboundQueue(2, 10, OutboundQueue.Policy.DROP_OLDEST, 0);
+        Item reply1 = new Item(false);
+        Item reply2 = new Item(false);
+        queue.offer(reply1, false);
+        queue.offer(reply2, false);
+
+        assertEquals(OutboundQueue.Result.DISCARDED, queue.offer(new Item(true), false));
+        // Replies still go past capacity
+        Item reply3 = new Item(false);
+        assertEquals(OutboundQueue.Result.ACCEPTED, queue.offer(reply3, false));
+        assertEquals(3, queue.depth());
+        assertFalse(reply1.released || reply2.released || reply3.released);
+    }
+
+    @Test
+    void disconnectOverflowsWhenFull() {
+        OutboundQueue queue = new OutboundQueue(1, 10, OutboundQueue.Policy.DISCONNECT, 0);
+        queue.offer(new Item(true), false);
+        Item chat = new Item(true);
+        assertEquals(OutboundQueue.Result.OVERFLOW, queue.offer(chat, false));
+        assertTrue(chat.released);
+        assertEquals(1, queue.depth());
+    }
+
+    @Test
+    void blockOverflowsAfterTimeout() {
+        OutboundQueue queue = new OutboundQueue(1, 10, OutboundQueue.Policy.BLOCK, 50);
+        queue.offer(new Item(true), true);
+        long start = System.nanoTime();
+        assertEquals(OutboundQueue.Result.OVERFLOW, queue.offer(new Item(true), true));
+        assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(50));
+    }
+
+    @Test
+    void blockAcceptsOnceTheWriterTakes() throws Exception {
+        OutboundQueue queue = new OutboundQueue(1, 10, OutboundQueue.Policy.BLOCK, 10_000);
+        Item first = new Item(true);
+        queue.offer(first, true);
+        Item second = new Item(true);
+        CompletableFuture<OutboundQueue.Result> offered = CompletableFuture.supplyAsync(() -> queue.offer(second, true));
+        Thread.sleep(50);
+        assertFalse(offered.isDone());
+        assertSame(first, queue.take());
+        assertEquals(OutboundQueue.Result.ACCEPTED, offered.get(5, TimeUnit.SECONDS));
+        assertSame(second, queue.poll());
+    }
+
+    @Test
+    void blockNeverWaitsWhenTheCallerMayNot() {
+        OutboundQueue queue = new OutboundQueue(1, 10, OutboundQueue.Policy.BLOCK, 10_000);
+        queue.offer(new Item(true), false);
+        assertEquals(OutboundQueue.Result.OVERFLOW, queue.offer(new Item(true), false));
+    }
+
+    @Test
+    void hardCapacityOverflowReleasesTheItem() {
+        OutboundQueue queue = new OutboundQueue(1, 3, OutboundQueue.Policy.DROP_OLDEST, 0);
+        queue.offer(new Item(false), false);
+        queue.offer(new Item(false), false);
+        queue.open(range(1, 100), 100);
+
+        Item reply = new Item(false);
+        assertEquals(OutboundQueue.Result.OVERFLOW, queue.offer(reply, false));
+        assertTrue(reply.released);
+        assertEquals(2, queue.depth());
+    }
+
+    @Test
+    void closeReleasesQueuedItemsAndDiscardsNewOnes() {
+        OutboundQueue queue = new OutboundQueue(4, 8, OutboundQueue.Policy.DROP_OLDEST, 0);
+        Item queued = new Item(false);
+        queue.offer(queued, false);
+        queue.close();
+        assertTrue(queued.released);
+
+        Item late = new Item(false);
+        assertEquals(OutboundQueue.Result.DISCARDED, queue.offer(late, false));
+        assertTrue(late.released);
+    }
+
+    @Test
+    void messagesGoBeforeStreams() {
+        OutboundQueue queue = new OutboundQueue(4, 8, OutboundQueue.Policy.DROP_OLDEST, 0);
+        OutboundRange stream = range(1, 100);
+        queue.open(stream, 100);
+        Item chat = new Item(true);
+        queue.offer(chat, false);
+        assertSame(chat, queue.poll());
+        assertSame(stream, queue.poll());
+    }
+
+    @Test
+    void streamsTakeTurnsAndWaitForTheirWindow() {
+        OutboundQueue queue = new OutboundQueue(4, 8, OutboundQueue.Policy.DROP_OLDEST, 0);
+        OutboundRange a = range(1, 1000);
+        OutboundRange b = range(2, 1000);
+        queue.open(a, 100);
+        queue.open(b, 100);
+        assertSame(a, queue.poll());
+        assertSame(b, queue.poll());
+
+        // a uses up its window and is skipped until the client grants more
+        queue.sent(a, 100);
+        assertEquals(0, a.window);
+        assertSame(b, queue.poll());
+        assertSame(b, queue.poll());
+        queue.sent(b, 100);
+        assertNull(queue.poll());
+
+        assertTrue(queue.grant(1, 50));
+        assertEquals(50, a.window);
+        assertSame(a, queue.poll());
+        assertFalse(queue.grant(3, 50));
+        assertFalse(queue.grant(2, 0));
+    }
+
+    @Test
+    void grantSaturatesInsteadOfOverflowing() {
+        OutboundQueue queue = new OutboundQueue(4, 8, OutboundQueue.Policy.DROP_OLDEST, 0);
+        OutboundRange stream = range(1, 1000);
+        queue.open(stream, Long.MAX_VALUE - 10);
+        assertTrue(queue.grant(1, 100));
+        assertEquals(Long.MAX_VALUE, stream.window);
+    }
+
+    @Test
+    void finishedStreamIsClosed() throws Exception {
+        OutboundQueue queue = new OutboundQueue(4, 8, OutboundQueue.Policy.DROP_OLDEST, 0);
+        OutboundRange empty = range(1, 0);
+        queue.open(empty, 100);
+        assertSame(empty, queue.poll());
+        queue.sent(empty, 0);
+        assertNull(queue.take(TimeUnit.MILLISECONDS.toNanos(10)));
+        assertFalse(queue.grant(1, 10));
+    }
+}
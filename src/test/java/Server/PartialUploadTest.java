@@ -0,0 +1,157 @@
+package Server;
+
+import Shared.Compression;
+import Shared.Protocol;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.zip.CRC32C;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class PartialUploadTest {
+    private static final int CHUNK = Protocol.CHUNK_SIZE;
+
+    @TempDir
+    Path directory;
+
+    private final byte[] data = new byte[4 * CHUNK + 1000];
+
+    PartialUploadTest() {
+        new Random(42).nextBytes(data);
+    }
+
+    private PartialUpload resume() throws IOException {
+        return PartialUpload.resume(directory.toFile(), "file.bin", data.length, sha256(data));
+    }
+
+    private static String sha256(byte[] bytes) {
+        return FileCatalog.toHex(FileCatalog.newDigest().digest(bytes));
+    }
+
+    private static long crc(byte[] bytes, int offset, int length) {
+        CRC32C crc = new CRC32C();
+        crc.update(bytes, offset, length);
+        return crc.getValue();
+    }
+
+    private int chunkLength(int index) {
+        return Math.min(CHUNK, data.length - index * CHUNK);
+    }
+
+    // Sends the chunk in pieces, as a connection reads it; returns what the last write returned
+    private boolean send(PartialUpload upload, int index, long checksum) throws IOException {
+        int offset = index * CHUNK;
+        int length = chunkLength(index);
+        upload.beginChunk(offset, length, checksum, null);
+        boolean stored = true;
+        for (int done = 0; done < length; done += 10_000) {
+            int count = (int) Math.min(10_000, upload.remaining());
+            assertTrue(stored);
+            stored = upload.write(data, offset + done, count);
+        }
+        assertEquals(0, upload.remaining());
+        return stored;
+    }
+
+    private boolean send(PartialUpload upload, int index) throws IOException {
+        return send(upload, index, crc(data, index * CHUNK, chunkLength(index)));
+    }
+
+    private void commitAndCheck(PartialUpload upload) throws IOException {
+        assertTrue(upload.complete());
+        Path saved = upload.commit(new FileCatalog(List.of(directory)));
+        assertArrayEquals(data, Files.readAllBytes(saved));
+    }
+
+    @Test
+    void aBadChunkIsTakenBackAndSentAgain() throws IOException {
+        PartialUpload upload = resume();
+        assertTrue(send(upload, 0));
+        assertTrue(send(upload, 1));
+        assertFalse(send(upload, 2, 12345));
+        assertEquals(2L * CHUNK, upload.received());
+
+        // Sent before the client got the request to send chunk 2 again
+        upload.beginChunk(3L * CHUNK, CHUNK, crc(data, 3 * CHUNK, CHUNK), null);
+        assertEquals(CHUNK, upload.remaining());
+        assertTrue(upload.write(data, 3 * CHUNK, CHUNK));
+        assertEquals(2L * CHUNK, upload.received());
+
+        for (int i = 2; i < 5; i++) {
+            assertTrue(send(upload, i));
+        }
+        commitAndCheck(upload);
+    }
+
+    @Test
+    void theResentChunkCanFailAgain() throws IOException {
+        PartialUpload upload = resume();
+        assertFalse(send(upload, 0, 1));
+        assertFalse(send(upload, 0, 2));
+        assertEquals(0, upload.received());
+        for (int i = 0; i < 5; i++) {
+            assertTrue(send(upload, i));
+        }
+        commitAndCheck(upload);
+    }
+
+    @Test
+    void aCorruptCompressedChunkIsSentAgain() throws IOException {
+        byte[] text = new byte[CHUNK];
+        Arrays.fill(text, (byte) 'a');
+        System.arraycopy(text, 0, data, 0, CHUNK);
+        Compression compression = new Compression();
+        try {
+            ByteBuffer packed = ByteBuffer.allocate(CHUNK);
+            assertTrue(compression.compressChunk(ByteBuffer.wrap(text), packed));
+            byte[] corrupt = Arrays.copyOf(packed.array(), packed.limit());
+            corrupt[corrupt.length / 2] ^= 0x55;
+
+            PartialUpload upload = resume();
+            upload.beginChunk(0, corrupt.length, crc(text, 0, CHUNK), compression);
+            assertFalse(upload.write(corrupt, 0, corrupt.length));
+            assertEquals(0, upload.received());
+
+            upload.beginChunk(0, packed.limit(), crc(text, 0, CHUNK), compression);
+            assertTrue(upload.write(packed.array(), 0, packed.limit()));
+            for (int i = 1; i < 5; i++) {
+                assertTrue(send(upload, i));
+            }
+            commitAndCheck(upload);
+        } finally {
+            compression.end();
+        }
+    }
+
+    @Test
+    void anInterruptedUploadResumesAfterItsLastWholeChunk() throws IOException {
+        PartialUpload upload = resume();
+        assertTrue(send(upload, 0));
+        assertTrue(send(upload, 1));
+        upload.beginChunk(2L * CHUNK, CHUNK, crc(data, 2 * CHUNK, CHUNK), null);
+        assertTrue(upload.write(data, 2 * CHUNK, 1000));
+        upload.interrupt();
+
+        upload = resume();
+        assertEquals(2L * CHUNK, upload.received());
+        for (int i = 2; i < 5; i++) {
+            assertTrue(send(upload, i));
+        }
+        commitAndCheck(upload);
+    }
+
+    @Test
+    void chunksOutOfOrderAreAnError() throws IOException {
+        PartialUpload upload = resume();
+        assertThrows(IOException.class, () -> upload.beginChunk(CHUNK, CHUNK, 0, null));
+        upload.interrupt();
+    }
+}
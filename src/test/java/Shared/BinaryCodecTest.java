@@ -0,0 +1,215 @@
+package Shared;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.Consumer;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class BinaryCodecTest {
+    private static byte[] encode(Message message) {
+        EncodeBuffer out = new EncodeBuffer();
+        BinaryCodec.INSTANCE.encode(message, out);
+        return out.toByteArray();
+    }
+
+    private static Message decode(byte[] bytes) throws IOException {
+        return BinaryCodec.INSTANCE.decode(ByteBuffer.wrap(bytes), new Message());
+    }
+
+    private static void assertSameFields(Message expected, Message actual) {
+        assertAll(
+                () -> assertEquals(expected.type, actual.type, "type"),
+                () -> assertEquals(expected.sender, actual.sender, "sender"),
+                () -> assertEquals(expected.content, actual.content, "content"),
+                () -> assertEquals(expected.fileLength, actual.fileLength, "fileLength"),
+                () -> assertEquals(expected.recipient, actual.recipient, "recipient"),
+                () -> assertEquals(expected.room, actual.room, "room"),
+                () -> assertEquals(expected.catalogVersion, actual.catalogVersion, "catalogVersion"),
+                () -> assertEquals(expected.offset, actual.offset, "offset"),
+                () -> assertEquals(expected.checksum, actual.checksum, "checksum"),
+                () -> assertEquals(expected.digest, actual.digest, "digest"),
+                () -> assertEquals(expected.chunkHashes, actual.chunkHashes, "chunkHashes"),
+                () -> assertEquals(expected.flags, actual.flags, "flags"),
+                () -> assertEquals(expected.requestId, actual.requestId, "requestId"));
+    }
+
+    private static Message roundTrip(Message message) throws IOException {
+        Message decoded = decode(encode(message));
+        assertSameFields(message, decoded);
+        return decoded;
+    }
+
+    // Every field at a value other than its default
+    private static Message everyField() {
+        Message message = new Message(Message.FILE_CHUNK, "user1", "song.mp3", 262_144);
+        message.recipient = "user2";
+        message.room = "music";
+        message.catalogVersion = 42;
+        message.offset = 3L * 262_144;
+        message.checksum = 0xFFFFFFFFL;
+        message.digest = "ab".repeat(32);
+        message.chunkHashes = "cd".repeat(32) + "," + "ef".repeat(32);
+        message.flags = Protocol.FEATURE_DEFLATE;
+        message.requestId = 7;
+        return message;
+    }
+
+    @Test
+    void defaultsTakeOnlyTheFixedFields() throws IOException {
+        Message message = new Message();
+        // int type, two null strings and a zero varlong
+        assertEquals(7, encode(message).length);
+        roundTrip(message);
+
+        Message empty = roundTrip(new Message(Message.CHAT, "", ""));
+        assertEquals("", empty.sender);
+        assertEquals("", empty.content);
+    }
+
+    @Test
+    void eachFieldRoundTripsOnItsOwn() throws IOException {
+        List<Consumer<Message>> setters = List.of(
+                m -> m.type = Message.FETCH,
+                m -> m.sender = "user1",
+                m -> m.content = "hello",
+                m -> m.fileLength = 1L << 40,
+                m -> m.recipient = "user2",
+                m -> m.room = "lobby",
+                m -> m.catalogVersion = 5,
+                m -> m.offset = 123_456_789_012L,
+                m -> m.checksum = 0x80000000L,
+                m -> m.digest = "00".repeat(32),
+                m -> m.chunkHashes = "",
+                m -> m.flags = Protocol.FEATURE_STREAM_WINDOWS | Protocol.FEATURE_HISTORY,
+                m -> m.requestId = Long.MAX_VALUE);
+        byte[] defaults = encode(new Message());
+        for (Consumer<Message> setter : setters) {
+            Message message = new Message();
+            setter.accept(message);
+            assertFalse(Arrays.equals(defaults, encode(message)));
+            roundTrip(message);
+        }
+    }
+
+    @Test
+    void everyFieldRoundTripsTogether() throws IOException {
+        roundTrip(everyField());
+    }
+
+    @Test
+    void extremeNumbersAndTextRoundTrip() throws IOException {
+        Message message = everyField();
+        message.type = -1;
+        message.fileLength = -1;
+        message.offset = Long.MIN_VALUE;
+        message.catalogVersion = Long.MAX_VALUE;
+        message.checksum = 1;
+        message.requestId = -2;
+        message.content = "héllo 世界 🎵 " + "x".repeat(100_000);
+        message.sender = "ü";
+        roundTrip(message);
+    }
+
+    @Test
+    void decodingIntoAUsedMessageResetsItsFields() throws IOException {
+        Message target = everyField();
+        Message message = new Message(Message.CHAT, "user1", "hi");
+        BinaryCodec.INSTANCE.decode(ByteBuffer.wrap(encode(message)), target);
+        assertSameFields(message, target);
+    }
+
+    @Test
+    void unknownFieldsAreSkipped() throws IOException {
+        Message message = everyField();
+        EncodeBuffer out = new EncodeBuffer();
+        out.writeInt(message.type);
+        BinaryCodec.writeString(out, message.sender);
+        BinaryCodec.writeString(out, message.content);
+        out.writeVarLong(message.fileLength);
+        // A varlong and a string field from a newer peer, before and between known ones
+        out.writeVarInt(20 << 1);
+        out.writeVarLong(Long.MAX_VALUE);
+        out.writeVarInt(2 << 1 | 1);
+        BinaryCodec.writeString(out, message.room);
+        out.writeVarInt(21 << 1 | 1);
+        BinaryCodec.writeString(out, "something new");
+        out.writeVarInt(22 << 1 | 1);
+        BinaryCodec.writeString(out, null);
+        byte[] known = encode(message);
+        byte[] fixed = encode(new Message(message.type, message.sender, message.content, message.fileLength));
+        out.write(known, fixed.length, known.length - fixed.length);
+        out.writeVarInt(1000 << 1);
+        out.writeVarLong(1);
+
+        assertSameFields(message, decode(out.toByteArray()));
+    }
+
+    @Test
+    void truncatedInputIsAnError() throws IOException {
+        byte[] bytes = encode(everyField());
+        int fixed = encode(new Message(Message.FILE_CHUNK, "user1", "song.mp3", 262_144)).length;
+        for (int length = 0; length < bytes.length; length++) {
+            byte[] cut = Arrays.copyOf(bytes, length);
+            if (length < fixed) {
+                assertThrows(IOException.class, () -> decode(cut), "cut at " + length);
+                continue;
+            }
+            // A cut between two optional fields is a message without the later ones; any other
+            // cut is an error
+            try {
+                Message decoded = decode(cut);
+                assertEquals(0, decoded.requestId, "cut at " + length);
+            } catch (IOException expected) {
+                // The cut was inside a field
+            }
+        }
+        // Cut inside the sender: its length prefix claims more than there is
+        for (int length = 6; length < 10; length++) {
+            byte[] cut = Arrays.copyOf(bytes, length);
+            assertThrows(IOException.class, () -> decode(cut), "cut at " + length);
+        }
+    }
+
+    @Test
+    void malformedInputIsAnError() {
+        EncodeBuffer tooLong = new EncodeBuffer();
+        tooLong.writeInt(Message.CHAT);
+        tooLong.writeVarInt(100);
+        tooLong.write(new byte[10], 0, 10);
+        IOException error = assertThrows(IOException.class, () -> decode(tooLong.toByteArray()));
+        assertEquals("String length 99 exceeds message", error.getMessage());
+
+        EncodeBuffer endless = new EncodeBuffer();
+        endless.writeInt(Message.CHAT);
+        byte[] continuation = new byte[11];
+        Arrays.fill(continuation, (byte) 0xFF);
+        endless.write(continuation, 0, continuation.length);
+        error = assertThrows(IOException.class, () -> decode(endless.toByteArray()));
+        assertEquals("Malformed varint", error.getMessage());
+    }
+
+    @Test
+    void batchesRoundTripAndRejectTruncation() throws IOException {
+        EncodeBuffer batch = new EncodeBuffer();
+        Message first = everyField();
+        Message second = new Message(Message.CHAT, "user2", "hi");
+        second.room = "lobby";
+        BinaryCodec.appendToBatch(batch, encode(first));
+        BinaryCodec.appendToBatch(batch, encode(second));
+        byte[] bytes = batch.toByteArray();
+
+        List<Message> messages = BinaryCodec.decodeBatch(bytes);
+        assertEquals(2, messages.size());
+        assertSameFields(first, messages.get(0));
+        assertSameFields(second, messages.get(1));
+        assertTrue(BinaryCodec.decodeBatch(new byte[0]).isEmpty());
+
+        assertThrows(IOException.class, () -> BinaryCodec.decodeBatch(Arrays.copyOf(bytes, bytes.length - 1)));
+        assertThrows(IOException.class, () -> BinaryCodec.decodeBatch(Arrays.copyOf(bytes, 2)));
+    }
+}
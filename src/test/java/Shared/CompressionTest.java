@@ -0,0 +1,144 @@
+package Shared;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class CompressionTest {
+    private final Compression sender = new Compression();
+    private final Compression receiver = new Compression();
+    private final Random random = new Random(42);
+
+    @AfterEach
+    void end() {
+        sender.end();
+        receiver.end();
+    }
+
+    private byte[] randomBytes(int length) {
+        byte[] bytes = new byte[length];
+        random.nextBytes(bytes);
+        return bytes;
+    }
+
+    private static byte[] text(int length) {
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; text.length() < length; i++) {
+            text.append("line ").append(i).append(": the quick brown fox jumps over the lazy dog\n");
+        }
+        return Arrays.copyOf(text.toString().getBytes(StandardCharsets.UTF_8), length);
+    }
+
+    @Test
+    void chunksRoundTrip() {
+        byte[] data = text(Protocol.CHUNK_SIZE);
+        ByteBuffer chunk = ByteBuffer.wrap(data);
+        ByteBuffer packed = ByteBuffer.allocate(Protocol.CHUNK_SIZE);
+        assertTrue(sender.compressChunk(chunk, packed));
+        assertEquals(0, chunk.position());
+        assertTrue(packed.remaining() < data.length / 2);
+
+        byte[] out = new byte[Protocol.CHUNK_SIZE];
+        assertEquals(data.length, receiver.inflateChunk(packed.array(), 0, packed.limit(), out, out.length));
+        assertArrayEquals(data, out);
+
+        // The same instances go on to the next chunk, from the middle of a buffer
+        ByteBuffer part = ByteBuffer.wrap(data, 1000, 5000).slice();
+        assertTrue(sender.compressChunk(part, packed));
+        assertEquals(5000, receiver.inflateChunk(packed.array(), 0, packed.limit(), out, 5000));
+        assertArrayEquals(Arrays.copyOfRange(data, 1000, 6000), Arrays.copyOf(out, 5000));
+    }
+
+    @Test
+    void chunksThatDoNotShrinkAreNotCompressed() {
+        ByteBuffer chunk = ByteBuffer.wrap(randomBytes(Protocol.CHUNK_SIZE));
+        assertFalse(sender.compressChunk(chunk, ByteBuffer.allocate(Protocol.CHUNK_SIZE)));
+        assertEquals(0, chunk.position());
+    }
+
+    @Test
+    void corruptOrOversizedChunksFail() {
+        byte[] data = text(10_000);
+        ByteBuffer packed = ByteBuffer.allocate(data.length);
+        assertTrue(sender.compressChunk(ByteBuffer.wrap(data), packed));
+        byte[] out = new byte[data.length];
+
+        assertEquals(-1, receiver.inflateChunk(packed.array(), 0, packed.limit(), out, data.length - 1));
+        assertEquals(-1, receiver.inflateChunk(packed.array(), 0, packed.limit() - 1, out, data.length));
+        byte[] trailing = Arrays.copyOf(packed.array(), packed.limit() + 1);
+        assertEquals(-1, receiver.inflateChunk(trailing, 0, trailing.length, out, data.length));
+        assertEquals(-1, receiver.inflateChunk(randomBytes(100), 0, 100, out, data.length));
+        // A failure leaves the instance usable
+        assertEquals(data.length, receiver.inflateChunk(packed.array(), 0, packed.limit(), out, data.length));
+        assertArrayEquals(data, out);
+    }
+
+    @Test
+    void framesRoundTrip() throws IOException {
+        Message message = new Message(Message.CHAT, "user1", "user1: " + new String(text(3000), StandardCharsets.UTF_8));
+        message.room = "lobby";
+        EncodeBuffer out = new EncodeBuffer();
+        out.writeInt(0);
+        BinaryCodec.INSTANCE.encode(message, out);
+        byte[] plain = Arrays.copyOfRange(out.array(), 4, out.length());
+
+        assertTrue(sender.compressFrame(out, 0));
+        int header = ByteBuffer.wrap(out.array()).getInt(0);
+        assertNotEquals(0, header & Protocol.COMPRESSED);
+        int length = header & ~Protocol.COMPRESSED;
+        assertEquals(out.length() - 4, length);
+        assertTrue(length < plain.length / 2);
+
+        ByteBuffer inflated = receiver.inflateFrame(out.array(), 4, length);
+        assertArrayEquals(plain, Arrays.copyOfRange(inflated.array(), inflated.position(), inflated.limit()));
+        assertEquals(message.content, BinaryCodec.INSTANCE.decode(inflated, new Message()).content);
+    }
+
+    @Test
+    void shortOrIncompressibleFramesStayAsTheyAre() {
+        EncodeBuffer out = new EncodeBuffer();
+        out.writeInt(Compression.MIN_FRAME_SIZE - 1);
+        out.write(new byte[Compression.MIN_FRAME_SIZE - 1], 0, Compression.MIN_FRAME_SIZE - 1);
+        assertFalse(sender.compressFrame(out, 0));
+        assertEquals(Compression.MIN_FRAME_SIZE + 3, out.length());
+
+        byte[] noise = randomBytes(1000);
+        out.reset();
+        out.writeInt(noise.length);
+        out.write(noise, 0, noise.length);
+        assertFalse(sender.compressFrame(out, 0));
+        assertArrayEquals(noise, Arrays.copyOfRange(out.array(), 4, out.length()));
+    }
+
+    @Test
+    void truncatedFramesAreAnError() {
+        EncodeBuffer out = new EncodeBuffer();
+        out.writeInt(0);
+        byte[] data = text(2000);
+        out.write(data, 0, data.length);
+        assertTrue(sender.compressFrame(out, 0));
+        IOException error = assertThrows(IOException.class, () -> receiver.inflateFrame(out.array(), 4, out.length() - 10));
+        assertEquals("Truncated compressed frame", error.getMessage());
+    }
+
+    @Test
+    void compressedFileTypesAndRandomDataAreNotWorthIt() {
+        assertFalse(Compression.worthTrying("song.MP3"));
+        assertFalse(Compression.worthTrying("photos.zip"));
+        assertTrue(Compression.worthTrying("notes.txt"));
+        assertTrue(Compression.worthTrying("README"));
+
+        ByteBuffer textChunk = ByteBuffer.wrap(text(Protocol.CHUNK_SIZE));
+        assertTrue(sender.worthCompressing("notes.txt", textChunk));
+        assertEquals(0, textChunk.position());
+        assertFalse(sender.worthCompressing("song.mp3", textChunk));
+        assertFalse(sender.worthCompressing("noise.bin", ByteBuffer.wrap(randomBytes(Protocol.CHUNK_SIZE))));
+    }
+}
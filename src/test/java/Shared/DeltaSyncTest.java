@@ -0,0 +1,180 @@
+package Shared;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class DeltaSyncTest {
+    @TempDir
+    Path directory;
+
+    private final Random random = new Random(42);
+
+    private byte[] randomBytes(int length) {
+        byte[] bytes = new byte[length];
+        random.nextBytes(bytes);
+        return bytes;
+    }
+
+    private FileChannel base(byte[] content) throws IOException {
+        Path file = Files.createTempFile(directory, "base", ".bin");
+        Files.write(file, content);
+        return FileChannel.open(file, StandardOpenOption.READ);
+    }
+
+    private static byte[] delta(FileChannel base, byte[] target) throws IOException {
+        byte[] signature = DeltaSync.signature(base, DeltaSync.blockSize(base.size()));
+        ByteArrayOutputStream delta = new ByteArrayOutputStream();
+        long length = DeltaSync.delta(DeltaSync.parseSignature(signature), new ByteArrayInputStream(target),
+                target.length, delta);
+        assertEquals(delta.size(), length);
+        return delta.toByteArray();
+    }
+
+    private static byte[] apply(FileChannel base, byte[] delta) throws IOException {
+        ByteArrayOutputStream rebuilt = new ByteArrayOutputStream();
+        long length = DeltaSync.apply(base, DeltaSync.blockSize(base.size()), new ByteArrayInputStream(delta), rebuilt);
+        assertEquals(rebuilt.size(), length);
+        return rebuilt.toByteArray();
+    }
+
+    // Returns the size of the delta that turned old into new
+    private long roundTrip(byte[] old, byte[] updated) throws IOException {
+        try (FileChannel base = base(old)) {
+            byte[] delta = delta(base, updated);
+            assertArrayEquals(updated, apply(base, delta));
+            return delta.length;
+        }
+    }
+
+    private static byte[] concat(byte[]... parts) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (byte[] part : parts) {
+            out.writeBytes(part);
+        }
+        return out.toByteArray();
+    }
+
+    @Test
+    void blockSizeGrowsWithTheSquareRootWithinBounds() {
+        assertEquals(DeltaSync.MIN_BLOCK_SIZE, DeltaSync.blockSize(0));
+        assertEquals(DeltaSync.MIN_BLOCK_SIZE, DeltaSync.blockSize(1000));
+        assertEquals(4096, DeltaSync.blockSize(4096L * 4096));
+        assertEquals(DeltaSync.MAX_BLOCK_SIZE, DeltaSync.blockSize(Long.MAX_VALUE / 2));
+    }
+
+    @Test
+    void anUnchangedFileIsSentAsBlockReferences() throws IOException {
+        byte[] old = randomBytes(1_000_000);
+        assertTrue(roundTrip(old, old.clone()) < 100);
+    }
+
+    @Test
+    void onlyTheChangedBytesAreSent() throws IOException {
+        byte[] old = randomBytes(1_000_000);
+        byte[] updated = old.clone();
+        Arrays.fill(updated, 500_000, 500_100, (byte) 'x');
+        byte[] inserted = concat(Arrays.copyOf(updated, 700_000), randomBytes(777),
+                Arrays.copyOfRange(updated, 700_000, updated.length));
+        byte[] removed = concat(Arrays.copyOf(inserted, 100_000), Arrays.copyOfRange(inserted, 150_000, inserted.length));
+
+        long size = roundTrip(old, removed);
+        // The edits, plus about a block around each
+        assertTrue(size < 777 + 100 + 3 * 2 * DeltaSync.blockSize(old.length), "delta of " + size + " bytes");
+    }
+
+    @Test
+    void changesAtTheEdgesAndInTheLastShortBlock() throws IOException {
+        byte[] old = randomBytes(10 * DeltaSync.MIN_BLOCK_SIZE + 123);
+        roundTrip(old, concat(randomBytes(10), old, randomBytes(10)));
+        roundTrip(old, Arrays.copyOf(old, old.length - 50));
+        roundTrip(old, Arrays.copyOfRange(old, DeltaSync.MIN_BLOCK_SIZE / 2, old.length));
+        // The old file's last block moved to the front
+        roundTrip(old, concat(Arrays.copyOfRange(old, 10 * DeltaSync.MIN_BLOCK_SIZE, old.length), old));
+    }
+
+    @Test
+    void emptyAndTinyFiles() throws IOException {
+        roundTrip(new byte[0], randomBytes(5000));
+        roundTrip(randomBytes(5000), new byte[0]);
+        roundTrip(new byte[0], new byte[0]);
+        roundTrip(randomBytes(10), randomBytes(10));
+        roundTrip(randomBytes(100), randomBytes(200_000));
+    }
+
+    @Test
+    void aTruncatedDeltaIsAnError() throws IOException {
+        byte[] old = randomBytes(100_000);
+        byte[] updated = concat(old, randomBytes(1000));
+        try (FileChannel base = base(old)) {
+            byte[] delta = delta(base, updated);
+            for (int length : new int[] {0, 5, delta.length / 2, delta.length - 1}) {
+                EOFException error = assertThrows(EOFException.class, () -> apply(base, Arrays.copyOf(delta, length)));
+                assertEquals("Truncated delta", error.getMessage());
+            }
+        }
+    }
+
+    @Test
+    void aDeltaForAnotherBaseIsAnError() throws IOException {
+        byte[] old = randomBytes(100_000);
+        byte[] delta;
+        try (FileChannel base = base(old)) {
+            delta = delta(base, old);
+        }
+        try (FileChannel shorter = base(Arrays.copyOf(old, 10_000))) {
+            IOException error = assertThrows(IOException.class, () -> apply(shorter, delta));
+            assertTrue(error.getMessage().startsWith("Delta refers to missing blocks"), error.getMessage());
+        }
+    }
+
+    @Test
+    void aDeltaProducingTheWrongLengthIsAnError() throws IOException {
+        EncodeBuffer delta = new EncodeBuffer();
+        delta.writeLong(5);
+        delta.writeByte(2);
+        delta.writeInt(3);
+        delta.write(new byte[] {1, 2, 3}, 0, 3);
+        delta.writeByte(0);
+        try (FileChannel base = base(new byte[0])) {
+            IOException error = assertThrows(IOException.class, () -> apply(base, delta.toByteArray()));
+            assertEquals("Delta produced 3 of 5 bytes", error.getMessage());
+        }
+    }
+
+    @Test
+    void invalidSignaturesAreRejected() throws IOException {
+        byte[] signature;
+        try (FileChannel base = base(randomBytes(10_000))) {
+            signature = DeltaSync.signature(base, DeltaSync.blockSize(base.size()));
+        }
+        assertThrows(IOException.class, () -> DeltaSync.parseSignature(Arrays.copyOf(signature, signature.length - 1)));
+        assertThrows(IOException.class, () -> DeltaSync.parseSignature(Arrays.copyOf(signature, 10)));
+        byte[] wrongCount = signature.clone();
+        wrongCount[15]++;
+        assertThrows(IOException.class, () -> DeltaSync.parseSignature(wrongCount));
+    }
+
+    @Test
+    void rollingTheWeakChecksumMatchesComputingIt() {
+        byte[] data = randomBytes(5000);
+        int window = 700;
+        int sum = DeltaSync.weak(data, 0, window);
+        for (int pos = 0; pos + window < data.length; pos++) {
+            sum = DeltaSync.roll(sum, data[pos], data[pos + window], window);
+            assertEquals(DeltaSync.weak(data, pos + 1, window), sum, "at " + (pos + 1));
+        }
+    }
+}